@@ -34,8 +34,9 @@ public class AppRequestQueue {
     public RequestQueue getRequestQueue() {
         if (mRequestQueue == null) {
             // getApplicationContext() is key, it keeps you from leaking the
-            // Activity or BroadcastReceiver if someone passes one in.
-            mRequestQueue = Volley.newRequestQueue(mContext.getApplicationContext());
+            // Activity or BroadcastReceiver if someone passes one in. The queue only starts
+            // its threads on first use, keeping getInstance() cheap on the startup path.
+            mRequestQueue = Volley.newLazyRequestQueue(mContext.getApplicationContext());
         }
         return mRequestQueue;
     }
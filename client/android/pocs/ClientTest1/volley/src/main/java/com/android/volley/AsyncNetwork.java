@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A {@link Network} which completes requests through a callback instead of blocking the
+ * calling thread.
+ *
+ * <p>A {@link NetworkDispatcher} hands requests to an AsyncNetwork and immediately moves on to
+ * the next one, so the number of requests in flight is no longer bounded by the number of
+ * dispatcher threads.</p>
+ */
+public abstract class AsyncNetwork implements Network {
+
+    /** Callback for the completion of an asynchronous request. */
+    public interface OnRequestComplete {
+        /** Called once the request has completed successfully. */
+        public void onSuccess(NetworkResponse networkResponse);
+
+        /** Called once the request has failed and will not be retried. */
+        public void onError(VolleyError volleyError);
+    }
+
+    /**
+     * Performs the specified request without blocking.
+     *
+     * <p>Exactly one of the callback's methods must be called, exactly once, from any thread.
+     * Retries are the responsibility of the implementation.</p>
+     *
+     * @param request Request to process
+     * @param callback Callback to notify of the outcome
+     */
+    public abstract void performRequest(Request<?> request, OnRequestComplete callback);
+
+    /**
+     * Performs the specified request, blocking until the asynchronous variant completes.
+     */
+    @Override
+    public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final NetworkResponse[] response = new NetworkResponse[1];
+        final VolleyError[] error = new VolleyError[1];
+        performRequest(request, new OnRequestComplete() {
+            @Override
+            public void onSuccess(NetworkResponse networkResponse) {
+                response[0] = networkResponse;
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(VolleyError volleyError) {
+                error[0] = volleyError;
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VolleyError(e);
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return response[0];
+    }
+}
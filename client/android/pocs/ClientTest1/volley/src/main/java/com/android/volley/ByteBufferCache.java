@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * A {@link Cache} which can return the data of an entry as a read-only buffer instead of
+ * copying it into a byte array.
+ *
+ * <p>A {@link CacheDispatcher} reads entries this way for requests which
+ * {@link Request#canParseDataBuffer() can parse a buffer}.</p>
+ */
+public interface ByteBufferCache extends Cache {
+    /**
+     * Retrieves an entry from the cache, with its data in {@link Entry#dataBuffer} and a null
+     * {@link Entry#data}.
+     * @param key Cache key
+     * @return An {@link Entry} or null in the event of a cache miss
+     */
+    public Entry getAsBuffer(String key);
+}
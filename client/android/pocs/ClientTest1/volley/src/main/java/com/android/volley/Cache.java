@@ -16,6 +16,7 @@
 
 package com.android.volley;
 
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.Map;
 
@@ -68,6 +69,12 @@ public interface Cache {
         /** The data returned from cache. */
         public byte[] data;
 
+        /**
+         * The data as a read-only buffer, when returned by
+         * {@link ByteBufferCache#getAsBuffer(String)} instead of {@link #data}; null otherwise.
+         */
+        public ByteBuffer dataBuffer;
+
         /** ETag for cache coherency. */
         public String etag;
 
@@ -18,6 +18,7 @@ package com.android.volley;
 
 import android.os.Process;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.BlockingQueue;
 
 /**
@@ -45,6 +46,9 @@ public class CacheDispatcher extends Thread {
     /** For posting responses. */
     private final ResponseDelivery mDelivery;
 
+    /** Initializes the cache before the first request is triaged. */
+    private final CacheInitializer mCacheInitializer;
+
     /** Used for telling us to die. */
     private volatile boolean mQuit = false;
 
@@ -60,10 +64,21 @@ public class CacheDispatcher extends Thread {
     public CacheDispatcher(
             BlockingQueue<Request<?>> cacheQueue, BlockingQueue<Request<?>> networkQueue,
             Cache cache, ResponseDelivery delivery) {
+        this(cacheQueue, networkQueue, cache, delivery, new CacheInitializer(cache));
+    }
+
+    /**
+     * Creates a new cache triage dispatcher thread sharing the given initializer with other
+     * dispatchers of the same cache, so that the cache is only initialized once.
+     */
+    /* package */ CacheDispatcher(
+            BlockingQueue<Request<?>> cacheQueue, BlockingQueue<Request<?>> networkQueue,
+            Cache cache, ResponseDelivery delivery, CacheInitializer cacheInitializer) {
         mCacheQueue = cacheQueue;
         mNetworkQueue = networkQueue;
         mCache = cache;
         mDelivery = delivery;
+        mCacheInitializer = cacheInitializer;
     }
 
     /**
@@ -80,78 +95,157 @@ public class CacheDispatcher extends Thread {
         if (DEBUG) VolleyLog.v("start new dispatcher");
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
-        // Make a blocking call to initialize the cache.
-        mCache.initialize();
+        // Make a blocking call to initialize the cache. Caches which load their index in the
+        // background return straight away.
+        initializeCache();
 
         while (true) {
             try {
                 // Get a request from the cache triage queue, blocking until
                 // at least one is available.
-                final Request<?> request = mCacheQueue.take();
-                request.addMarker("cache-queue-take");
-
-                // If the request has been canceled, don't bother dispatching it.
-                if (request.isCanceled()) {
-                    request.finish("cache-discard-canceled");
-                    continue;
+                processRequest(mCacheQueue.take());
+            } catch (InterruptedException e) {
+                // We may have been interrupted because it was time to quit.
+                if (mQuit) {
+                    return;
                 }
+                continue;
+            }
+        }
+    }
 
-                // Attempt to retrieve this item from cache.
-                Cache.Entry entry = mCache.get(request.getCacheKey());
-                if (entry == null) {
-                    request.addMarker("cache-miss");
-                    // Cache miss; send off to the network dispatcher.
-                    mNetworkQueue.put(request);
-                    continue;
-                }
+    /**
+     * Makes a blocking call to initialize the cache, unless another dispatcher sharing this
+     * dispatcher's initializer already did.
+     */
+    /* package */ void initializeCache() {
+        mCacheInitializer.initialize();
+    }
 
-                // If it is completely expired, just send it to the network.
-                if (entry.isExpired()) {
-                    request.addMarker("cache-hit-expired");
-                    request.setCacheEntry(entry);
-                    mNetworkQueue.put(request);
-                    continue;
-                }
+    /**
+     * Triages a single request: delivers it from cache if possible, and forwards it to the
+     * network queue otherwise. The cache must have been initialized.
+     */
+    /* package */ void processRequest(final Request<?> request) throws InterruptedException {
+        request.addMarker("cache-queue-take");
+
+        // If the request has been canceled, don't bother dispatching it.
+        if (request.isCanceled()) {
+            request.finish("cache-discard-canceled");
+            return;
+        }
+
+        if (request.holdIfPaused(false)) {
+            return;
+        }
 
-                // We have a cache hit; parse its data for delivery back to the request.
-                request.addMarker("cache-hit");
-                Response<?> response = request.parseNetworkResponse(
-                        new NetworkResponse(entry.data, entry.responseHeaders));
-                request.addMarker("cache-hit-parsed");
-
-                if (!entry.refreshNeeded()) {
-                    // Completely unexpired cache hit. Just deliver the response.
-                    mDelivery.postResponse(request, response);
-                } else {
-                    // Soft-expired cache hit. We can deliver the cached response,
-                    // but we need to also send the request to the network for
-                    // refreshing.
-                    request.addMarker("cache-hit-refresh-needed");
-                    request.setCacheEntry(entry);
-
-                    // Mark the response as intermediate.
-                    response.intermediate = true;
-
-                    // Post the intermediate response back to the user and have
-                    // the delivery then forward the request along to the network.
-                    mDelivery.postResponse(request, response, new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                mNetworkQueue.put(request);
-                            } catch (InterruptedException e) {
-                                // Not much we can do about this.
-                            }
-                        }
-                    });
+        // A request released with the response of a duplicate that just completed only needs
+        // to parse it; reading it back from the cache would be wasted I/O.
+        // A body shared as a buffer is only of use to requests which can parse one.
+        NetworkResponse sharedResponse = request.getSharedNetworkResponse();
+        if (sharedResponse != null) {
+            request.setSharedResponse(null, null);
+            if (sharedResponse.data != null || request.canParseDataBuffer()) {
+                request.addMarker("cache-hit-shared");
+                mDelivery.postResponse(request, request.parseNetworkResponse(sharedResponse));
+                return;
+            }
+        }
+
+        // Attempt to retrieve this item from cache, without copying its data if the request
+        // can parse it from a buffer.
+        Cache.Entry entry = request.canParseDataBuffer() && mCache instanceof ByteBufferCache
+                ? ((ByteBufferCache) mCache).getAsBuffer(request.getCacheKey())
+                : mCache.get(request.getCacheKey());
+        if (entry == null) {
+            request.addMarker("cache-miss");
+            // Cache miss; send off to the network dispatcher.
+            mNetworkQueue.put(request);
+            return;
+        }
+
+        // If it is completely expired, just send it to the network.
+        if (entry.isExpired()) {
+            request.addMarker("cache-hit-expired");
+            request.setCacheEntry(withDataArray(entry));
+            mNetworkQueue.put(request);
+            return;
+        }
+
+        // We have a cache hit; parse its data for delivery back to the request.
+        request.addMarker("cache-hit");
+        NetworkResponse networkResponse = entry.data != null
+                ? new NetworkResponse(entry.data, entry.responseHeaders)
+                : new NetworkResponse(entry.dataBuffer, entry.responseHeaders);
+        Response<?> response = request.parseNetworkResponse(networkResponse);
+        request.addMarker("cache-hit-parsed");
+
+        if (!entry.refreshNeeded()) {
+            // Completely unexpired cache hit. Just deliver the response.
+            if (response.isSuccess()) {
+                request.setSharedResponse(networkResponse, response);
+            }
+            mDelivery.postResponse(request, response);
+        } else {
+            // Soft-expired cache hit. We can deliver the cached response,
+            // but we need to also send the request to the network for
+            // refreshing.
+            request.addMarker("cache-hit-refresh-needed");
+            request.setCacheEntry(withDataArray(entry));
+
+            // Mark the response as intermediate.
+            response.intermediate = true;
+
+            // Post the intermediate response back to the user and have
+            // the delivery then forward the request along to the network.
+            mDelivery.postResponse(request, response, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mNetworkQueue.put(request);
+                    } catch (InterruptedException e) {
+                        // Not much we can do about this.
+                    }
                 }
+            });
+        }
+    }
 
-            } catch (InterruptedException e) {
-                // We may have been interrupted because it was time to quit.
-                if (mQuit) {
-                    return;
+    /**
+     * Copies the data of an entry read as a buffer into {@link Cache.Entry#data}, which the
+     * network path expects for revalidation and for putting the entry back into the cache.
+     */
+    private static Cache.Entry withDataArray(Cache.Entry entry) {
+        if (entry.data == null && entry.dataBuffer != null) {
+            ByteBuffer buffer = entry.dataBuffer.duplicate();
+            entry.data = new byte[buffer.remaining()];
+            buffer.get(entry.data);
+        }
+        return entry;
+    }
+
+    /**
+     * Calls {@link Cache#initialize()} exactly once on behalf of every cache dispatcher
+     * serving the same cache. Dispatchers arriving while initialization is running block
+     * until it has completed.
+     */
+    /* package */ static class CacheInitializer {
+        private final Cache mCache;
+        private volatile boolean mInitialized = false;
+
+        /* package */ CacheInitializer(Cache cache) {
+            mCache = cache;
+        }
+
+        /* package */ void initialize() {
+            if (mInitialized) {
+                return;
+            }
+            synchronized (this) {
+                if (!mInitialized) {
+                    mCache.initialize();
+                    mInitialized = true;
                 }
-                continue;
             }
         }
     }
@@ -16,6 +16,8 @@
 
 package com.android.volley;
 
+import java.util.Random;
+
 /**
  * Default retry policy for requests.
  */
@@ -32,6 +34,17 @@ public class DefaultRetryPolicy implements RetryPolicy {
     /** The backoff multiplier for the policy. */
     private final float mBackoffMultiplier;
 
+    /** The longest delay before the first retry, in milliseconds; 0 to retry at once. */
+    private final int mInitialRetryDelayMs;
+
+    /** The cap on the delay before any retry, in milliseconds. */
+    private final int mMaxRetryDelayMs;
+
+    /** The delay before the retry prepared by the last call to {@link #retry}. */
+    private long mRetryDelayMs;
+
+    private static final Random sJitter = new Random();
+
     /** The default socket timeout in milliseconds */
     public static final int DEFAULT_TIMEOUT_MS = 2500;
 
@@ -55,9 +68,31 @@ public class DefaultRetryPolicy implements RetryPolicy {
      * @param backoffMultiplier Backoff multiplier for the policy.
      */
     public DefaultRetryPolicy(int initialTimeoutMs, int maxNumRetries, float backoffMultiplier) {
+        this(initialTimeoutMs, maxNumRetries, backoffMultiplier, 0, 0);
+    }
+
+    /**
+     * Constructs a new retry policy which waits before each retry. The longest wait doubles
+     * with every retry, from {@code initialRetryDelayMs} up to {@code maxRetryDelayMs}, and the
+     * actual wait is picked at random below it so that requests which failed together don't
+     * all retry together.
+     * @param initialTimeoutMs The initial timeout for the policy.
+     * @param maxNumRetries The maximum number of retries.
+     * @param backoffMultiplier Backoff multiplier for the policy.
+     * @param initialRetryDelayMs The longest wait before the first retry, or 0 for none.
+     * @param maxRetryDelayMs The longest wait before any retry.
+     */
+    public DefaultRetryPolicy(int initialTimeoutMs, int maxNumRetries, float backoffMultiplier,
+            int initialRetryDelayMs, int maxRetryDelayMs) {
+        if (initialRetryDelayMs < 0 || maxRetryDelayMs < initialRetryDelayMs) {
+            throw new IllegalArgumentException("Invalid retry delays: initial="
+                    + initialRetryDelayMs + ", max=" + maxRetryDelayMs);
+        }
         mCurrentTimeoutMs = initialTimeoutMs;
         mMaxNumRetries = maxNumRetries;
         mBackoffMultiplier = backoffMultiplier;
+        mInitialRetryDelayMs = initialRetryDelayMs;
+        mMaxRetryDelayMs = maxRetryDelayMs;
     }
 
     /**
@@ -83,6 +118,14 @@ public class DefaultRetryPolicy implements RetryPolicy {
         return mBackoffMultiplier;
     }
 
+    /**
+     * Returns how long to wait before the retry prepared by the last call to {@link #retry},
+     * in milliseconds.
+     */
+    public long getRetryDelayMs() {
+        return mRetryDelayMs;
+    }
+
     /**
      * Prepares for the next retry by applying a backoff to the timeout.
      * @param error The error code of the last attempt.
@@ -94,6 +137,23 @@ public class DefaultRetryPolicy implements RetryPolicy {
         if (!hasAttemptRemaining()) {
             throw error;
         }
+        mRetryDelayMs = computeRetryDelayMs(mCurrentRetryCount);
+    }
+
+    /**
+     * Returns the delay before the given retry: a random wait below an exponentially growing
+     * bound, which spreads out the retries of requests that failed at the same time.
+     * @param retryCount The retry about to be made, starting at 1.
+     */
+    protected long computeRetryDelayMs(int retryCount) {
+        if (mInitialRetryDelayMs == 0) {
+            return 0;
+        }
+        // Shifting past the cap would overflow; by then the cap applies anyway.
+        long bound = retryCount > 30
+                ? mMaxRetryDelayMs
+                : Math.min(mMaxRetryDelayMs, (long) mInitialRetryDelayMs << (retryCount - 1));
+        return (long) (sJitter.nextDouble() * (bound + 1));
     }
 
     /**
@@ -22,7 +22,9 @@ import android.os.Build;
 import android.os.Process;
 import android.os.SystemClock;
 
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Provides a thread for performing network dispatch from a queue of requests.
@@ -33,6 +35,18 @@ import java.util.concurrent.BlockingQueue;
  * errors are posted back to the caller via a {@link ResponseDelivery}.
  */
 public class NetworkDispatcher extends Thread {
+    /**
+     * Decides whether an idle dispatcher may retire; used by elastic dispatcher pools.
+     */
+    /* package */ interface IdleListener {
+        /**
+         * Called when no request arrived within the idle timeout.
+         *
+         * @return true if the dispatcher should exit, false to keep waiting
+         */
+        public boolean onIdle(NetworkDispatcher dispatcher);
+    }
+
     /** The queue of requests to service. */
     private final BlockingQueue<Request<?>> mQueue;
     /** The network interface for processing requests. */
@@ -41,6 +55,12 @@ public class NetworkDispatcher extends Thread {
     private final Cache mCache;
     /** For posting responses and errors. */
     private final ResponseDelivery mDelivery;
+    /** How long to wait for a request before consulting {@link #mIdleListener}; 0 for ever. */
+    private final long mIdleTimeoutMs;
+    /** Notified when this dispatcher has been idle for {@link #mIdleTimeoutMs}. */
+    private final IdleListener mIdleListener;
+    /** The lowest priority of the requests this dispatcher takes, or null for any. */
+    private final Request.Priority mMinPriority;
     /** Used for telling us to die. */
     private volatile boolean mQuit = false;
 
@@ -56,10 +76,40 @@ public class NetworkDispatcher extends Thread {
     public NetworkDispatcher(BlockingQueue<Request<?>> queue,
             Network network, Cache cache,
             ResponseDelivery delivery) {
+        this(queue, network, cache, delivery, 0, null);
+    }
+
+    /**
+     * Creates a new network dispatcher thread which asks the given listener whether it should
+     * exit whenever it has waited {@code idleTimeoutMs} without receiving a request.
+     */
+    /* package */ NetworkDispatcher(BlockingQueue<Request<?>> queue,
+            Network network, Cache cache,
+            ResponseDelivery delivery, long idleTimeoutMs, IdleListener idleListener) {
+        this(queue, network, cache, delivery, idleTimeoutMs, idleListener, null);
+    }
+
+    /**
+     * Creates a new network dispatcher thread which only takes requests of at least the given
+     * priority from a {@link NetworkQueue}, leaving the others to the rest of the pool.
+     */
+    /* package */ NetworkDispatcher(NetworkQueue queue,
+            Network network, Cache cache,
+            ResponseDelivery delivery, Request.Priority minPriority) {
+        this(queue, network, cache, delivery, 0, null, minPriority);
+    }
+
+    private NetworkDispatcher(BlockingQueue<Request<?>> queue,
+            Network network, Cache cache,
+            ResponseDelivery delivery, long idleTimeoutMs, IdleListener idleListener,
+            Request.Priority minPriority) {
         mQueue = queue;
         mNetwork = network;
         mCache = cache;
         mDelivery = delivery;
+        mIdleTimeoutMs = idleTimeoutMs;
+        mIdleListener = idleListener;
+        mMinPriority = minPriority;
     }
 
     /**
@@ -83,11 +133,22 @@ public class NetworkDispatcher extends Thread {
     public void run() {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
         while (true) {
-            long startTimeMs = SystemClock.elapsedRealtime();
             Request<?> request;
             try {
                 // Take a request from the queue.
-                request = mQueue.take();
+                if (mMinPriority != null) {
+                    request = ((NetworkQueue) mQueue).take(mMinPriority);
+                } else if (mIdleListener == null || mIdleTimeoutMs <= 0) {
+                    request = mQueue.take();
+                } else {
+                    request = mQueue.poll(mIdleTimeoutMs, TimeUnit.MILLISECONDS);
+                    if (request == null) {
+                        if (mIdleListener.onIdle(this)) {
+                            return;
+                        }
+                        continue;
+                    }
+                }
             } catch (InterruptedException e) {
                 // We may have been interrupted because it was time to quit.
                 if (mQuit) {
@@ -96,57 +157,176 @@ public class NetworkDispatcher extends Thread {
                 continue;
             }
 
+            processRequest(request);
+        }
+    }
+
+    /**
+     * Performs a single request on the network, writes the response to cache if applicable and
+     * posts the response or error back.
+     *
+     * <p>If the network is an {@link AsyncNetwork} this returns as soon as the request has been
+     * handed to it, and the rest of the work happens on whichever thread completes it.</p>
+     */
+    /* package */ void processRequest(final Request<?> request) {
+        final long startTimeMs = SystemClock.elapsedRealtime();
+        try {
+            request.addMarker("network-queue-take");
+
+            // If the request was cancelled already, do not perform the
+            // network request.
+            if (request.isCanceled()) {
+                releaseHost(request);
+                request.finish("network-discard-cancelled");
+                return;
+            }
+
+            if (request.holdIfPaused(true)) {
+                return;
+            }
+
+            // Don't spend a connection on a request whose deadline has passed.
+            if (request.isPastDeadline(startTimeMs)) {
+                releaseHost(request);
+                request.addMarker("network-discard-deadline-exceeded");
+                // The deadline is the request's own; any identical requests waiting for it are
+                // sent in its place once it finishes.
+                mDelivery.postError(request, new DeadlineExceededError());
+                return;
+            }
+
+            addTrafficStatsTag(request);
+
+            if (mNetwork instanceof AsyncNetwork) {
+                ((AsyncNetwork) mNetwork).performRequest(request,
+                        new AsyncNetwork.OnRequestComplete() {
+                            @Override
+                            public void onSuccess(NetworkResponse networkResponse) {
+                                releaseHost(request);
+                                try {
+                                    onNetworkResponse(request, networkResponse);
+                                } catch (Exception e) {
+                                    deliverUnhandledException(request, e, startTimeMs);
+                                }
+                            }
+
+                            @Override
+                            public void onError(VolleyError volleyError) {
+                                releaseHost(request);
+                                deliverNetworkError(request, volleyError, startTimeMs);
+                            }
+                        });
+                return;
+            }
+
+            // Perform the network request.
+            NetworkResponse networkResponse;
             try {
-                request.addMarker("network-queue-take");
+                networkResponse = mNetwork.performRequest(request);
+            } finally {
+                releaseHost(request);
+            }
+            onNetworkResponse(request, networkResponse);
+        } catch (VolleyError volleyError) {
+            deliverNetworkError(request, volleyError, startTimeMs);
+        } catch (Exception e) {
+            releaseHost(request);
+            deliverUnhandledException(request, e, startTimeMs);
+        }
+    }
 
-                // If the request was cancelled already, do not perform the
-                // network request.
-                if (request.isCanceled()) {
-                    request.finish("network-discard-cancelled");
-                    continue;
-                }
+    /**
+     * Tells the network queue, if it limits requests per host, that the request no longer
+     * holds a connection to its host.
+     */
+    private void releaseHost(Request<?> request) {
+        if (mQueue instanceof NetworkQueue) {
+            ((NetworkQueue) mQueue).release(request);
+        }
+    }
+
+    /**
+     * Parses a network response, writes it to cache if applicable and posts it back.
+     */
+    private void onNetworkResponse(Request<?> request, NetworkResponse networkResponse) {
+        request.addMarker("network-http-complete");
 
-                addTrafficStatsTag(request);
+        // Don't spend time parsing a response nobody is waiting for anymore.
+        if (request.isCanceled()) {
+            request.finish("network-discard-cancelled");
+            return;
+        }
 
-                // Perform the network request.
-                NetworkResponse networkResponse = mNetwork.performRequest(request);
-                request.addMarker("network-http-complete");
+        // If the server returned 304 AND we delivered a response already,
+        // we're done -- don't deliver a second identical response.
+        if (networkResponse.notModified && request.hasHadResponseDelivered()) {
+            // The response carries the cached data, which requests staged behind this one can
+            // still parse.
+            request.setSharedResponse(networkResponse, null);
+            request.finish("not-modified");
+            return;
+        }
 
-                // If the server returned 304 AND we delivered a response already,
-                // we're done -- don't deliver a second identical response.
-                if (networkResponse.notModified && request.hasHadResponseDelivered()) {
-                    request.finish("not-modified");
-                    continue;
-                }
+        // Parse the response here on the worker thread.
+        Response<?> response = request.parseNetworkResponse(networkResponse);
+        request.addMarker("network-parse-complete");
 
-                // Parse the response here on the worker thread.
-                Response<?> response = request.parseNetworkResponse(networkResponse);
-                request.addMarker("network-parse-complete");
+        // Write to cache if applicable.
+        // TODO: Only update cache metadata instead of entire record for 304s.
+        if (request.shouldCache() && response.cacheEntry != null) {
+            mCache.put(request.getCacheKey(), response.cacheEntry);
+            request.addMarker("network-cache-written");
+        }
+        if (request.shouldCache() && response.isSuccess()) {
+            request.setSharedResponse(networkResponse, response);
+        }
 
-                // Write to cache if applicable.
-                // TODO: Only update cache metadata instead of entire record for 304s.
-                if (request.shouldCache() && response.cacheEntry != null) {
-                    mCache.put(request.getCacheKey(), response.cacheEntry);
-                    request.addMarker("network-cache-written");
-                }
+        // Post the response back, to any identical requests which waited for it as well. They
+        // are taken first so that none is sent again once this request finishes.
+        List<Request<?>> coalescedRequests = request.takeCoalescedRequests();
+        request.markDelivered();
+        mDelivery.postResponse(request, response);
+        for (Request<?> coalesced : coalescedRequests) {
+            coalesced.addMarker("network-coalesced-response");
+            coalesced.markDelivered();
+            mDelivery.postResponse(coalesced, response);
+        }
+    }
 
-                // Post the response back.
-                request.markDelivered();
-                mDelivery.postResponse(request, response);
-            } catch (VolleyError volleyError) {
-                volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-                parseAndDeliverNetworkError(request, volleyError);
-            } catch (Exception e) {
-                VolleyLog.e(e, "Unhandled exception %s", e.toString());
-                VolleyError volleyError = new VolleyError(e);
-                volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-                mDelivery.postError(request, volleyError);
+    private void deliverNetworkError(Request<?> request, VolleyError volleyError,
+            long startTimeMs) {
+        // The host slot has been released already, so the retry doesn't hold it while waiting.
+        if (volleyError instanceof RetryError) {
+            RetryError retryError = (RetryError) volleyError;
+            if (request.scheduleRetry(retryError.getRetryDelayMs())) {
+                return;
             }
+            volleyError = retryError.getError();
         }
+        volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+        parseAndDeliverNetworkError(request, volleyError);
+    }
+
+    private void deliverUnhandledException(Request<?> request, Exception e, long startTimeMs) {
+        VolleyLog.e(e, "Unhandled exception %s", e.toString());
+        VolleyError volleyError = new VolleyError(e);
+        volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+        postError(request, volleyError);
     }
 
     private void parseAndDeliverNetworkError(Request<?> request, VolleyError error) {
-        error = request.parseNetworkError(error);
+        postError(request, request.parseNetworkError(error));
+    }
+
+    /**
+     * Posts an error back, to any identical requests which waited for this one as well, so
+     * that they don't each go to the network in turn.
+     */
+    private void postError(Request<?> request, VolleyError error) {
+        List<Request<?>> coalescedRequests = request.takeCoalescedRequests();
         mDelivery.postError(request, error);
+        for (Request<?> coalesced : coalescedRequests) {
+            mDelivery.postError(coalesced, error);
+        }
     }
 }
@@ -0,0 +1,693 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.SystemClock;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The queue of requests waiting for a {@link NetworkDispatcher}.
+ *
+ * <p>Requests are taken in priority order, including any priority
+ * {@link #inheritPriority inherited} from requests waiting on them, then earliest
+ * {@link Request#getDeadline deadline} first, then in the order they were added. Each host
+ * keeps one lane per priority, and the hosts with requests in each lane are tracked, so taking
+ * a request only compares the heads of the highest non-empty lanes, and a dispatcher may
+ * restrict itself to the top lanes. A queued request changes lane when its priority is
+ * {@link #setPriority changed}. Requests whose host already has its maximum number of
+ * requests in flight are skipped until one of those is {@link #release released}. A host is
+ * forgotten once it has nothing queued or in flight. A request
+ * counts as in flight from the moment it is taken. A request {@link #offerDelayed offered} with
+ * a not-before time, such as a scheduled retry, is kept aside until then.</p>
+ *
+ * <p>Also records when each request was queued so that the time it spent waiting for a
+ * dispatcher can be reported to a {@link Listener} when it is taken.</p>
+ */
+/* package */ class NetworkQueue extends AbstractQueue<Request<?>>
+        implements BlockingQueue<Request<?>> {
+
+    /** Observes the load on the queue. */
+    /* package */ interface Listener {
+        /** Called after a request has been queued, with the resulting queue depth. */
+        public void onRequestQueued(int depth);
+
+        /** Called after a request has been taken, with the time it spent in the queue. */
+        public void onRequestTaken(long queueWaitMs);
+
+        /** Called when requests skipped because their host was saturated may be taken. */
+        public void onHostAvailable();
+    }
+
+    private static final Request.Priority[] PRIORITIES = Request.Priority.values();
+
+    /** Orders the requests of a lane by deadline, then sequence number. */
+    private static final Comparator<Request<?>> LANE_ORDER = new Comparator<Request<?>>() {
+        @Override
+        public int compare(Request<?> left, Request<?> right) {
+            long leftDeadline = left.getDeadline() > 0 ? left.getDeadline() : Long.MAX_VALUE;
+            long rightDeadline = right.getDeadline() > 0 ? right.getDeadline() : Long.MAX_VALUE;
+            if (leftDeadline != rightDeadline) {
+                return leftDeadline < rightDeadline ? -1 : 1;
+            }
+            return left.getSequence() - right.getSequence();
+        }
+    };
+
+    /** Orders delayed requests by the time they may be sent. */
+    private static final Comparator<Request<?>> NOT_BEFORE_ORDER = new Comparator<Request<?>>() {
+        @Override
+        public int compare(Request<?> left, Request<?> right) {
+            long leftNotBefore = left.getNotBeforeMs();
+            long rightNotBefore = right.getNotBeforeMs();
+            if (leftNotBefore != rightNotBefore) {
+                return leftNotBefore < rightNotBefore ? -1 : 1;
+            }
+            return left.getSequence() - right.getSequence();
+        }
+    };
+
+    /** The requests queued and in flight for a single host. */
+    private static class HostQueue {
+        final String host;
+        /** Queued requests, by priority ordinal. */
+        final List<PriorityQueue<Request<?>>> lanes =
+                new ArrayList<PriorityQueue<Request<?>>>(PRIORITIES.length);
+        int queued;
+        int inFlight;
+        int peakQueued;
+
+        HostQueue(String host) {
+            this.host = host;
+            for (int i = 0; i < PRIORITIES.length; i++) {
+                lanes.add(new PriorityQueue<Request<?>>(11, LANE_ORDER));
+            }
+        }
+    }
+
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /** Signalled when a request may have become available. */
+    private final Condition mAvailable = mLock.newCondition();
+
+    /**
+     * Queued and in-flight requests by host, for hosts with any. Guarded by {@link #mLock}.
+     */
+    private final Map<String, HostQueue> mHosts = new HashMap<String, HostQueue>();
+
+    /**
+     * The hosts with requests in each lane, by priority ordinal. Guarded by {@link #mLock}.
+     */
+    private final List<Set<HostQueue>> mNonEmptyHosts = newNonEmptyHosts();
+
+    /**
+     * Requests which may not be sent before their {@link Request#getNotBeforeMs()}, earliest
+     * first. Counted in {@link #mSize} but in no host queue. Guarded by {@link #mLock}.
+     */
+    private final PriorityQueue<Request<?>> mDelayed =
+            new PriorityQueue<Request<?>>(11, NOT_BEFORE_ORDER);
+
+    /** Requests taken and not yet released. Guarded by {@link #mLock}. */
+    private final Set<Request<?>> mInFlight = new HashSet<Request<?>>();
+
+    /** Per-host overrides of {@link #mDefaultHostLimit}. Guarded by {@link #mLock}. */
+    private final Map<String, Integer> mHostLimits = new HashMap<String, Integer>();
+
+    /** Maximum number of requests in flight per host. Guarded by {@link #mLock}. */
+    private int mDefaultHostLimit = Integer.MAX_VALUE;
+
+    /** Total number of queued requests. Guarded by {@link #mLock}. */
+    private int mSize;
+
+    private volatile Listener mListener;
+
+    /* package */ void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the maximum number of requests in flight for any host without a limit of its own.
+     */
+    /* package */ void setDefaultHostLimit(int limit) {
+        mLock.lock();
+        try {
+            mDefaultHostLimit = limit;
+        } finally {
+            mLock.unlock();
+        }
+        onHostAvailable();
+    }
+
+    /**
+     * Sets the maximum number of requests in flight for the given host, or restores the
+     * default if {@code limit} is null.
+     */
+    /* package */ void setHostLimit(String host, Integer limit) {
+        mLock.lock();
+        try {
+            if (limit == null) {
+                mHostLimits.remove(host);
+            } else {
+                mHostLimits.put(host, limit);
+            }
+        } finally {
+            mLock.unlock();
+        }
+        onHostAvailable();
+    }
+
+    /**
+     * Releases the in-flight slot a request has held since it was taken. Has no effect if the
+     * request is not in flight.
+     */
+    /* package */ void release(Request<?> request) {
+        boolean available;
+        mLock.lock();
+        try {
+            if (!mInFlight.remove(request)) {
+                return;
+            }
+            HostQueue hostQueue = mHosts.get(request.getHost());
+            hostQueue.inFlight--;
+            available = hostQueue.queued > 0;
+            forgetIfIdleLocked(hostQueue);
+        } finally {
+            mLock.unlock();
+        }
+        if (available) {
+            onHostAvailable();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the load on every host with requests queued or in flight.
+     */
+    /* package */ Map<String, RequestQueue.HostStats> getHostStats() {
+        mLock.lock();
+        try {
+            Map<String, RequestQueue.HostStats> stats =
+                    new HashMap<String, RequestQueue.HostStats>();
+            for (Map.Entry<String, HostQueue> entry : mHosts.entrySet()) {
+                HostQueue hostQueue = entry.getValue();
+                stats.put(entry.getKey(), new RequestQueue.HostStats(entry.getKey(),
+                        hostQueue.queued, hostQueue.inFlight, hostQueue.peakQueued,
+                        getHostLimitLocked(entry.getKey())));
+            }
+            return stats;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Request<?> request) {
+        if (request == null) {
+            throw new NullPointerException();
+        }
+        request.setNetworkQueuedTimeMs(SystemClock.elapsedRealtime());
+        int depth;
+        mLock.lock();
+        try {
+            addToLaneLocked(request);
+            depth = ++mSize;
+            mAvailable.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onRequestQueued(depth);
+        }
+        return true;
+    }
+
+    /**
+     * Queues a request which must not be taken before the given time, in the
+     * {@link SystemClock#elapsedRealtime()} time base. It is not reported to the
+     * {@link Listener} as queued, since no dispatcher may take it yet.
+     */
+    /* package */ void offerDelayed(Request<?> request, long notBeforeMs) {
+        request.setNotBeforeMs(notBeforeMs);
+        mLock.lock();
+        try {
+            mDelayed.add(request);
+            mSize++;
+            // Waiting dispatchers may need to wake up earlier than they planned.
+            mAvailable.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the time left until the earliest {@link #offerDelayed delayed} request may be
+     * taken, in milliseconds, or -1 if there is none.
+     */
+    /* package */ long getNextDelayMs() {
+        mLock.lock();
+        try {
+            Request<?> next = mDelayed.peek();
+            if (next == null) {
+                return -1;
+            }
+            return Math.max(0, next.getNotBeforeMs() - SystemClock.elapsedRealtime());
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Request<?> request) {
+        offer(request);
+    }
+
+    @Override
+    public boolean offer(Request<?> request, long timeout, TimeUnit unit) {
+        return offer(request);
+    }
+
+    @Override
+    public Request<?> take() throws InterruptedException {
+        return take(Request.Priority.LOW);
+    }
+
+    /**
+     * Takes the next request of at least the given priority, waiting for one if necessary.
+     */
+    /* package */ Request<?> take(Request.Priority minPriority) throws InterruptedException {
+        Request<?> request;
+        mLock.lockInterruptibly();
+        try {
+            while ((request = pollAvailableLocked(minPriority)) == null) {
+                long delayNanos = nanosUntilNextDelayedLocked();
+                if (delayNanos < 0) {
+                    mAvailable.await();
+                } else {
+                    mAvailable.awaitNanos(delayNanos);
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        return onTaken(request);
+    }
+
+    @Override
+    public Request<?> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return poll(Request.Priority.LOW, timeout, unit);
+    }
+
+    /**
+     * Takes the next request of at least the given priority, waiting up to the given time for
+     * one.
+     */
+    /* package */ Request<?> poll(Request.Priority minPriority, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        Request<?> request;
+        mLock.lockInterruptibly();
+        try {
+            while ((request = pollAvailableLocked(minPriority)) == null && nanos > 0) {
+                long delayNanos = nanosUntilNextDelayedLocked();
+                if (delayNanos >= 0 && delayNanos < nanos) {
+                    nanos -= delayNanos - mAvailable.awaitNanos(delayNanos);
+                } else {
+                    nanos = mAvailable.awaitNanos(nanos);
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        return onTaken(request);
+    }
+
+    @Override
+    public Request<?> poll() {
+        Request<?> request;
+        mLock.lock();
+        try {
+            request = pollAvailableLocked(Request.Priority.LOW);
+        } finally {
+            mLock.unlock();
+        }
+        return onTaken(request);
+    }
+
+    /**
+     * Returns the request the next {@link #poll()} would take, or null if every queued request
+     * is for a saturated host.
+     */
+    @Override
+    public Request<?> peek() {
+        mLock.lock();
+        try {
+            return nextAvailableLocked(Request.Priority.LOW);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof Request)) {
+            return false;
+        }
+        mLock.lock();
+        try {
+            if (mDelayed.remove(o)) {
+                mSize--;
+                return true;
+            }
+            HostQueue hostQueue = mHosts.get(((Request<?>) o).getHost());
+            if (hostQueue == null) {
+                return false;
+            }
+            for (int lane = 0; lane < PRIORITIES.length; lane++) {
+                if (removeFromLaneLocked(hostQueue, lane, (Request<?>) o)) {
+                    hostQueue.queued--;
+                    mSize--;
+                    forgetIfIdleLocked(hostQueue);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the priority of the request, moving it to the matching lane if it is queued.
+     *
+     * @param priority The new priority, or null to restore {@link Request#getPriority()}
+     */
+    /* package */ void setPriority(Request<?> request, Request.Priority priority) {
+        mLock.lock();
+        try {
+            HostQueue hostQueue = mHosts.get(request.getHost());
+            boolean queued = hostQueue != null
+                    && removeFromLaneLocked(hostQueue, laneOf(request), request);
+            request.setPriorityOverride(priority);
+            if (queued) {
+                addToLaneLocked(hostQueue, laneOf(request), request);
+                mAvailable.signalAll();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Makes the request inherit the given priority if it is higher than the one it is queued
+     * at, moving it to the matching lane if it is still queued.
+     */
+    /* package */ void inheritPriority(Request<?> request, Request.Priority priority) {
+        mLock.lock();
+        try {
+            if (priority.ordinal() <= laneOf(request)) {
+                return;
+            }
+            HostQueue hostQueue = mHosts.get(request.getHost());
+            boolean queued = hostQueue != null
+                    && removeFromLaneLocked(hostQueue, laneOf(request), request);
+            request.setInheritedPriority(priority);
+            if (queued) {
+                addToLaneLocked(hostQueue, laneOf(request), request);
+                mAvailable.signalAll();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Removes and returns the queued request which would be taken last among those of a
+     * priority lower than the given one, or null if there is none.
+     */
+    /* package */ Request<?> removeLowest(Request.Priority below) {
+        mLock.lock();
+        try {
+            for (int priority = 0; priority < below.ordinal(); priority++) {
+                HostQueue victimHost = null;
+                Request<?> victim = null;
+                for (HostQueue hostQueue : mNonEmptyHosts.get(priority)) {
+                    for (Request<?> request : hostQueue.lanes.get(priority)) {
+                        if (victim == null || LANE_ORDER.compare(request, victim) > 0) {
+                            victimHost = hostQueue;
+                            victim = request;
+                        }
+                    }
+                }
+                if (victim != null) {
+                    removeFromLaneLocked(victimHost, priority, victim);
+                    victimHost.queued--;
+                    mSize--;
+                    forgetIfIdleLocked(victimHost);
+                    return victim;
+                }
+            }
+            return null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mSize;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queued requests, in no particular order.
+     */
+    @Override
+    public Iterator<Request<?>> iterator() {
+        List<Request<?>> snapshot = new ArrayList<Request<?>>();
+        mLock.lock();
+        try {
+            for (HostQueue hostQueue : mHosts.values()) {
+                for (PriorityQueue<Request<?>> lane : hostQueue.lanes) {
+                    snapshot.addAll(lane);
+                }
+            }
+            snapshot.addAll(mDelayed);
+        } finally {
+            mLock.unlock();
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request<?>> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request<?>> c, int maxElements) {
+        int count = 0;
+        Request<?> request;
+        while (count < maxElements && (request = poll()) != null) {
+            c.add(request);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Takes the highest priority request of at least the given priority whose host is below
+     * its limit.
+     */
+    private Request<?> pollAvailableLocked(Request.Priority minPriority) {
+        Request<?> request = nextAvailableLocked(minPriority);
+        if (request == null) {
+            return null;
+        }
+        HostQueue hostQueue = mHosts.get(request.getHost());
+        int lane = laneOf(request);
+        hostQueue.lanes.get(lane).poll();
+        if (hostQueue.lanes.get(lane).isEmpty()) {
+            mNonEmptyHosts.get(lane).remove(hostQueue);
+        }
+        hostQueue.queued--;
+        hostQueue.inFlight++;
+        mInFlight.add(request);
+        mSize--;
+        return request;
+    }
+
+    /**
+     * Returns the next request of at least the given priority to take, or null if there is
+     * none. It is at the head of its lane.
+     */
+    private Request<?> nextAvailableLocked(Request.Priority minPriority) {
+        if (mSize == 0) {
+            return null;
+        }
+        if (!mDelayed.isEmpty()) {
+            moveDueDelayedLocked();
+        }
+        for (int priority = PRIORITIES.length - 1; priority >= minPriority.ordinal();
+                priority--) {
+            Request<?> best = null;
+            for (HostQueue hostQueue : mNonEmptyHosts.get(priority)) {
+                if (hostQueue.inFlight >= getHostLimitLocked(hostQueue.host)) {
+                    continue;
+                }
+                Request<?> head = hostQueue.lanes.get(priority).peek();
+                if (best == null || LANE_ORDER.compare(head, best) < 0) {
+                    best = head;
+                }
+            }
+            if (best != null) {
+                return best;
+            }
+        }
+        return null;
+    }
+
+    /** Adds a request to the lane of its host and priority. */
+    private void addToLaneLocked(Request<?> request) {
+        String host = request.getHost();
+        HostQueue hostQueue = mHosts.get(host);
+        if (hostQueue == null) {
+            hostQueue = new HostQueue(host);
+            mHosts.put(host, hostQueue);
+        }
+        addToLaneLocked(hostQueue, laneOf(request), request);
+        hostQueue.queued++;
+        hostQueue.peakQueued = Math.max(hostQueue.peakQueued, hostQueue.queued);
+    }
+
+    private void addToLaneLocked(HostQueue hostQueue, int lane, Request<?> request) {
+        PriorityQueue<Request<?>> queue = hostQueue.lanes.get(lane);
+        queue.add(request);
+        if (queue.size() == 1) {
+            mNonEmptyHosts.get(lane).add(hostQueue);
+        }
+    }
+
+    /** Removes a request from a lane of its host; returns whether it was there. */
+    private boolean removeFromLaneLocked(HostQueue hostQueue, int lane, Request<?> request) {
+        PriorityQueue<Request<?>> queue = hostQueue.lanes.get(lane);
+        if (!queue.remove(request)) {
+            return false;
+        }
+        if (queue.isEmpty()) {
+            mNonEmptyHosts.get(lane).remove(hostQueue);
+        }
+        return true;
+    }
+
+    /** Forgets a host once it has nothing queued or in flight. */
+    private void forgetIfIdleLocked(HostQueue hostQueue) {
+        if (hostQueue.queued == 0 && hostQueue.inFlight == 0) {
+            mHosts.remove(hostQueue.host);
+        }
+    }
+
+    private static List<Set<HostQueue>> newNonEmptyHosts() {
+        List<Set<HostQueue>> hosts = new ArrayList<Set<HostQueue>>(PRIORITIES.length);
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            hosts.add(new LinkedHashSet<HostQueue>());
+        }
+        return hosts;
+    }
+
+    /** Moves the delayed requests whose time has come to their lanes. */
+    private void moveDueDelayedLocked() {
+        long now = SystemClock.elapsedRealtime();
+        Request<?> next;
+        while ((next = mDelayed.peek()) != null && next.getNotBeforeMs() <= now) {
+            mDelayed.poll();
+            // Time spent delayed isn't time spent waiting for a dispatcher.
+            next.setNetworkQueuedTimeMs(now);
+            addToLaneLocked(next);
+        }
+    }
+
+    /**
+     * Returns the time left until the earliest delayed request may be taken, in nanoseconds,
+     * or -1 if there is none.
+     */
+    private long nanosUntilNextDelayedLocked() {
+        Request<?> next = mDelayed.peek();
+        if (next == null) {
+            return -1;
+        }
+        return TimeUnit.MILLISECONDS.toNanos(
+                Math.max(0, next.getNotBeforeMs() - SystemClock.elapsedRealtime()));
+    }
+
+    /** Returns the index of the lane for the request's priority. */
+    private static int laneOf(Request<?> request) {
+        Request.Priority priority = request.getEffectivePriority();
+        return priority != null ? priority.ordinal() : Request.Priority.NORMAL.ordinal();
+    }
+
+    private int getHostLimitLocked(String host) {
+        Integer limit = mHostLimits.get(host);
+        return limit != null ? limit : mDefaultHostLimit;
+    }
+
+    private void onHostAvailable() {
+        mLock.lock();
+        try {
+            mAvailable.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onHostAvailable();
+        }
+    }
+
+    private Request<?> onTaken(Request<?> request) {
+        Listener listener = mListener;
+        if (request != null && listener != null) {
+            listener.onRequestTaken(
+                    SystemClock.elapsedRealtime() - request.getNetworkQueuedTimeMs());
+        }
+        return request;
+    }
+}
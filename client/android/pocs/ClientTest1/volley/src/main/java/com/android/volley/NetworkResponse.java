@@ -18,6 +18,7 @@ package com.android.volley;
 
 import org.apache.http.HttpStatus;
 
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.Map;
 
@@ -35,8 +36,23 @@ public class NetworkResponse {
      */
     public NetworkResponse(int statusCode, byte[] data, Map<String, String> headers,
             boolean notModified, long networkTimeMs) {
+        this(statusCode, data, null, headers, notModified, networkTimeMs);
+    }
+
+    /**
+     * Creates a new network response, whose body may be given as a buffer.
+     * @param statusCode the HTTP status code
+     * @param data Response body, or null if given as a buffer
+     * @param dataBuffer Response body as a read-only buffer, or null
+     * @param headers Headers returned with this response, or null for none
+     * @param notModified True if the server returned a 304 and the data was already in cache
+     * @param networkTimeMs Round-trip network time to receive network response
+     */
+    public NetworkResponse(int statusCode, byte[] data, ByteBuffer dataBuffer,
+            Map<String, String> headers, boolean notModified, long networkTimeMs) {
         this.statusCode = statusCode;
         this.data = data;
+        this.dataBuffer = dataBuffer;
         this.headers = headers;
         this.notModified = notModified;
         this.networkTimeMs = networkTimeMs;
@@ -55,12 +71,24 @@ public class NetworkResponse {
         this(HttpStatus.SC_OK, data, headers, false, 0);
     }
 
+    public NetworkResponse(ByteBuffer dataBuffer, Map<String, String> headers) {
+        this(HttpStatus.SC_OK, null, dataBuffer, headers, false, 0);
+    }
+
     /** The HTTP status code. */
     public final int statusCode;
 
     /** Raw data from this response. */
     public final byte[] data;
 
+    /**
+     * Raw data from this response as a read-only buffer, when {@link #data} is null. Only
+     * given to requests which {@link Request#canParseDataBuffer() can parse it}. The buffer may
+     * be shared with other requests, so read it through absolute gets or a
+     * {@link ByteBuffer#duplicate() duplicate}.
+     */
+    public final ByteBuffer dataBuffer;
+
     /** Response headers. */
     public final Map<String, String> headers;
 
@@ -27,6 +27,8 @@ import com.android.volley.VolleyLog.MarkerLog;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.Collections;
+import java.util.Locale;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -83,8 +85,25 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /** Whether or not responses to this request should be cached. */
     private boolean mShouldCache = true;
 
+    /** Whether identical requests in flight at the same time may share a network call. */
+    private boolean mShouldCoalesce = false;
+
+    /** Whether a slow response to this request may be raced by a second copy of it. */
+    private boolean mShouldHedge = false;
+
+    /**
+     * The key of the coalesced group this request performs the network call for, or null if
+     * it leads none. Guarded by the request queue's coalescing lock.
+     */
+    private String mCoalesceKey;
+
     /** Whether or not this request has been canceled. */
-    private boolean mCanceled = false;
+    private volatile boolean mCanceled = false;
+
+    /** Aborts the work in progress for this request. Guarded by {@link #mCancelLock}. */
+    private Runnable mCancelAction;
+
+    private final Object mCancelLock = new Object();
 
     /** Whether or not a response has been delivered for this request yet. */
     private boolean mResponseDelivered = false;
@@ -105,6 +124,43 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /** An opaque token tagging this request; used for bulk cancellation. */
     private Object mTag;
 
+    /** Time at which this request was last placed on the network queue. */
+    private volatile long mNetworkQueuedTimeMs;
+
+    /** Time after which this request is no longer wanted; 0 for none. */
+    private volatile long mDeadlineMs;
+
+    /** Time before which a scheduled retry of this request must not be sent; 0 for none. */
+    private volatile long mNotBeforeMs;
+
+    /** The host of this request's URL, lower case; computed on first use. */
+    private volatile String mHost;
+
+    /**
+     * The last complete response to this request, kept until it finishes so that requests
+     * staged behind it with the same cache key can be answered from memory. A staged request
+     * released with a response of another request carries it here until it is triaged.
+     */
+    private volatile NetworkResponse mSharedNetworkResponse;
+
+    /** The parsed form of {@link #mSharedNetworkResponse}, or null if not available. */
+    private volatile Response<?> mSharedResponse;
+
+    /** Priority set through {@link RequestQueue#setPriority}, replacing getPriority(), or null. */
+    private volatile Priority mPriorityOverride;
+
+    /** Priority inherited from requests staged behind this one, or null. */
+    private volatile Priority mInheritedPriority;
+
+    /** Expected size of the response body in bytes, or -1 if unknown. */
+    private int mResponseSizeEstimate = -1;
+
+    /**
+     * Bytes this request accounts for in its queue's admission limits, or -1 if it holds no
+     * admission. Written with the queue's admission lock held.
+     */
+    private volatile long mAdmittedBytes = -1;
+
     /**
      * Creates a new request with the given URL and error listener.  Note that
      * the normal response listener is not provided here as delivery of responses
@@ -148,6 +204,9 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     public Request<?> setTag(Object tag) {
         mTag = tag;
+        if (mRequestQueue != null) {
+            mRequestQueue.onTagChanged(this);
+        }
         return this;
     }
 
@@ -269,6 +328,34 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mSequence;
     }
 
+    /**
+     * Records the time at which this request was placed on the network queue.
+     */
+    /* package */ void setNetworkQueuedTimeMs(long networkQueuedTimeMs) {
+        mNetworkQueuedTimeMs = networkQueuedTimeMs;
+    }
+
+    /**
+     * Returns the time at which this request was last placed on the network queue.
+     */
+    /* package */ long getNetworkQueuedTimeMs() {
+        return mNetworkQueuedTimeMs;
+    }
+
+    /**
+     * Records the time before which a scheduled retry of this request must not be sent.
+     */
+    /* package */ void setNotBeforeMs(long notBeforeMs) {
+        mNotBeforeMs = notBeforeMs;
+    }
+
+    /**
+     * Returns the time before which a scheduled retry of this request must not be sent.
+     */
+    /* package */ long getNotBeforeMs() {
+        return mNotBeforeMs;
+    }
+
     /**
      * Returns the URL of this request.
      */
@@ -276,6 +363,26 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mUrl;
     }
 
+    /**
+     * Returns the host component of this request's URL in lower case, or an empty string if
+     * there is none.
+     */
+    /* package */ String getHost() {
+        String host = mHost;
+        if (host == null) {
+            String url = getUrl();
+            if (!TextUtils.isEmpty(url)) {
+                Uri uri = Uri.parse(url);
+                if (uri != null) {
+                    host = uri.getHost();
+                }
+            }
+            host = host != null ? host.toLowerCase(Locale.US) : "";
+            mHost = host;
+        }
+        return host;
+    }
+
     /**
      * Returns the cache key for this request.  By default, this is the URL.
      */
@@ -303,9 +410,40 @@ public abstract class Request<T> implements Comparable<Request<T>> {
 
     /**
      * Mark this request as canceled.  No callback will be delivered.
+     *
+     * <p>Also aborts the HTTP exchange performing the request, if any, so that the network
+     * dispatcher is freed without downloading the rest of the response.</p>
      */
     public void cancel() {
-        mCanceled = true;
+        Runnable cancelAction;
+        synchronized (mCancelLock) {
+            mCanceled = true;
+            cancelAction = mCancelAction;
+            mCancelAction = null;
+        }
+        if (cancelAction != null) {
+            cancelAction.run();
+        }
+    }
+
+    /**
+     * Sets an action to run when this request is cancelled, such as aborting the HTTP exchange
+     * performing it. An {@link com.android.volley.toolbox.HttpStack} sets it while the request
+     * is on the wire, and the {@link Network} clears it once the response has been read.
+     *
+     * <p>The action runs on the thread calling {@link #cancel()}, often the main thread, so it
+     * must not block. It runs immediately if the request has already been cancelled.</p>
+     *
+     * @param cancelAction The action, or null to clear it
+     */
+    public void setCancelAction(Runnable cancelAction) {
+        synchronized (mCancelLock) {
+            if (!mCanceled || cancelAction == null) {
+                mCancelAction = cancelAction;
+                return;
+            }
+        }
+        cancelAction.run();
     }
 
     /**
@@ -475,6 +613,107 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mShouldCache;
     }
 
+    /**
+     * Set whether or not this request may share a network call with identical requests.
+     *
+     * <p>Only applies to GET and HEAD requests which are not cached; cached requests are already
+     * collapsed by cache key. A request added while another of the same class, method, URL and
+     * headers is on the network does not go out itself: it receives the response parsed for
+     * the other one, or its error. Listeners therefore share a single parsed result.</p>
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public final Request<?> setShouldCoalesce(boolean shouldCoalesce) {
+        mShouldCoalesce = shouldCoalesce;
+        return this;
+    }
+
+    /**
+     * Returns true if this request may share a network call with identical requests.
+     */
+    public final boolean shouldCoalesce() {
+        return mShouldCoalesce;
+    }
+
+    /**
+     * Set whether or not a second copy of this request may be sent if the first is slow to
+     * answer, when performed by a {@link com.android.volley.toolbox.HedgingNetwork}.
+     *
+     * <p>Only applies to GET and HEAD requests, which the server must be able to answer twice
+     * without side effects.</p>
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public final Request<?> setShouldHedge(boolean shouldHedge) {
+        mShouldHedge = shouldHedge;
+        return this;
+    }
+
+    /**
+     * Returns true if a second copy of this request may be sent if the first is slow.
+     */
+    public final boolean shouldHedge() {
+        return mShouldHedge;
+    }
+
+    /**
+     * Returns true if {@link #parseNetworkResponse(NetworkResponse)} can read the body from
+     * {@link NetworkResponse#dataBuffer} when {@link NetworkResponse#data} is null. Bodies
+     * cached by a {@link ByteBufferCache} are then handed over without being copied into a
+     * byte array. False by default.
+     */
+    public boolean canParseDataBuffer() {
+        return false;
+    }
+
+    /* package */ void setCoalesceKey(String coalesceKey) {
+        mCoalesceKey = coalesceKey;
+    }
+
+    /* package */ String getCoalesceKey() {
+        return mCoalesceKey;
+    }
+
+    /**
+     * Returns the requests which were waiting for this request's network call, which should
+     * now be given its response. Later identical requests make a call of their own.
+     */
+    /* package */ List<Request<?>> takeCoalescedRequests() {
+        if (mRequestQueue == null) {
+            return Collections.emptyList();
+        }
+        return mRequestQueue.takeCoalescedRequests(this);
+    }
+
+    /**
+     * Hands the request back to its queue if its tag is {@link RequestQueue#pause paused}, to
+     * be dispatched again from the given stage once resumed.
+     *
+     * @return true if the request was held and must not be processed any further for now
+     */
+    /* package */ boolean holdIfPaused(boolean networkStage) {
+        return mRequestQueue != null && mRequestQueue.holdIfPaused(this, networkStage);
+    }
+
+    /**
+     * Returns true if a {@link Network} may throw a {@link RetryError} to have this request
+     * sent again later by its {@link RequestQueue}, and false if it must retry by itself, as
+     * for a request performed outside of any queue.
+     */
+    public boolean canScheduleRetry() {
+        return mRequestQueue != null;
+    }
+
+    /**
+     * Hands the request back to its queue to be sent again once the given delay has elapsed.
+     *
+     * @return true if the retry was scheduled, false if the error of the failed attempt should
+     *         be delivered instead
+     */
+    /* package */ boolean scheduleRetry(long delayMs) {
+        return mRequestQueue != null && mRequestQueue.scheduleRetry(this, delayMs);
+    }
+
     /**
      * Sets whether or not the request should be retried in the event of an HTTP 5xx (server) error.
      *
@@ -510,6 +749,39 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return Priority.NORMAL;
     }
 
+    /**
+     * Raises the priority this request is queued at to that of a request waiting on it, if
+     * higher. Must only be changed while the request is not in a sorted queue.
+     */
+    /* package */ void setInheritedPriority(Priority priority) {
+        mInheritedPriority = priority;
+    }
+
+    /**
+     * Replaces the priority returned by {@link #getPriority()}, or restores it if null. Must
+     * only be changed while the request is not in a sorted queue.
+     */
+    /* package */ void setPriorityOverride(Priority priority) {
+        mPriorityOverride = priority;
+    }
+
+    /**
+     * Returns the priority this request is queued at: the higher of its own priority, as
+     * given by {@link #getPriority()} or {@link RequestQueue#setPriority}, and that inherited
+     * from requests waiting on it.
+     */
+    /* package */ Priority getEffectivePriority() {
+        Priority priority = mPriorityOverride;
+        if (priority == null) {
+            priority = getPriority();
+        }
+        Priority inherited = mInheritedPriority;
+        if (priority == null || (inherited != null && inherited.ordinal() > priority.ordinal())) {
+            return inherited;
+        }
+        return priority;
+    }
+
     /**
      * Returns the socket timeout in milliseconds per retry attempt. (This value can be changed
      * per retry attempt if a backoff is specified via backoffTimeout()). If there are no retry
@@ -519,6 +791,97 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mRetryPolicy.getCurrentTimeout();
     }
 
+    /**
+     * Sets the time after which this request is no longer worth sending, in the
+     * {@link android.os.SystemClock#elapsedRealtime()} time base.
+     *
+     * <p>Among network requests of the same priority, those with the earliest deadline are sent
+     * first. A request whose deadline has passed by the time a network dispatcher picks it up
+     * is not sent, and fails with a {@link DeadlineExceededError}. Must be set before the
+     * request is added to a queue.</p>
+     *
+     * @param deadlineMs The deadline, or 0 for none (the default)
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setDeadline(long deadlineMs) {
+        mDeadlineMs = deadlineMs;
+        return this;
+    }
+
+    /**
+     * Returns the deadline of this request, or 0 if it has none.
+     * @see #setDeadline(long)
+     */
+    public long getDeadline() {
+        return mDeadlineMs;
+    }
+
+    /**
+     * Returns whether this request has a deadline which had passed at the given time.
+     */
+    /* package */ boolean isPastDeadline(long nowMs) {
+        long deadlineMs = mDeadlineMs;
+        return deadlineMs > 0 && nowMs > deadlineMs;
+    }
+
+    /**
+     * Sets the expected size of the response body, which a {@link RequestQueue} with an
+     * {@link RequestQueue.AdmissionPolicy admission policy} reserves while the request is
+     * outstanding. Must be set before the request is added to a queue.
+     *
+     * @param bytes The expected size, or -1 to use the policy's default (the default)
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setResponseSizeEstimate(int bytes) {
+        mResponseSizeEstimate = bytes;
+        return this;
+    }
+
+    /**
+     * Returns the expected size of the response body, or -1 if unknown.
+     * @see #setResponseSizeEstimate(int)
+     */
+    public int getResponseSizeEstimate() {
+        return mResponseSizeEstimate;
+    }
+
+    /* package */ void setAdmittedBytes(long admittedBytes) {
+        mAdmittedBytes = admittedBytes;
+    }
+
+    /* package */ long getAdmittedBytes() {
+        return mAdmittedBytes;
+    }
+
+    /* package */ void setSharedResponse(NetworkResponse networkResponse, Response<?> response) {
+        mSharedNetworkResponse = networkResponse;
+        mSharedResponse = response;
+    }
+
+    /* package */ NetworkResponse getSharedNetworkResponse() {
+        return mSharedNetworkResponse;
+    }
+
+    /* package */ Response<?> getSharedResponse() {
+        return mSharedResponse;
+    }
+
+    /**
+     * Returns a key identifying how this request parses responses. A response parsed by a
+     * request may be delivered as is to others with the same cache key and an equal parsed
+     * response key, such as requests which were waiting for it to complete, or which hit the
+     * queue's {@link RequestQueue#setParsedResponseCacheSize parsed response cache}. Other
+     * requests parse the raw response themselves.
+     *
+     * <p>Returns null by default, so each request parses its own response. Requests sharing a
+     * parsed response also share the parsed result object, so a subclass should only return a
+     * key if its results are immutable and it can tell every way it parses apart, typically
+     * its class name plus any parsing parameters.</p>
+     */
+    protected String getParsedResponseKey() {
+        return null;
+    }
+
     /**
      * Returns the retry policy that should be used  for this request.
      */
@@ -590,8 +953,8 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     @Override
     public int compareTo(Request<T> other) {
-        Priority left = this.getPriority();
-        Priority right = other.getPriority();
+        Priority left = this.getEffectivePriority();
+        Priority right = other.getEffectivePriority();
 
         // High-priority requests are "lesser" so they are sorted to the front.
         // Equal priorities are sorted by sequence number to provide FIFO ordering.
@@ -18,15 +18,25 @@ package com.android.volley;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Queue;
-import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -36,6 +46,10 @@ import java.util.concurrent.atomic.AtomicInteger;
  * Calling {@link #add(Request)} will enqueue the given Request for dispatch,
  * resolving from either cache or network on a worker thread, and then delivering
  * a parsed response on the main thread.
+ *
+ * <p>By default the queue owns its worker threads. Alternatively, cache triage and network
+ * work can be run on caller-supplied {@link Executor}s, which may be shared between several
+ * queues.</p>
  */
 public class RequestQueue {
 
@@ -45,6 +59,216 @@ public class RequestQueue {
         public void onRequestFinished(Request<T> request);
     }
 
+    /**
+     * Sizing policy for an elastic pool of network dispatchers, which grows while requests are
+     * backing up in the network queue and shrinks again once dispatchers sit idle.
+     *
+     * @see RequestQueue#setElasticPoolPolicy(ElasticPoolPolicy)
+     */
+    public static class ElasticPoolPolicy {
+        /** The number of dispatchers kept alive even when idle. */
+        public final int minThreads;
+
+        /** The maximum number of dispatchers. */
+        public final int maxThreads;
+
+        /** Queue depth above which another dispatcher is started. */
+        public final int queueDepthThreshold;
+
+        /** Time a request may wait in the queue before another dispatcher is started. */
+        public final long queueWaitThresholdMs;
+
+        /** Time a dispatcher above {@link #minThreads} may sit idle before it exits. */
+        public final long idleTimeoutMs;
+
+        /**
+         * @param minThreads Number of dispatchers kept alive even when idle
+         * @param maxThreads Maximum number of dispatchers
+         * @param queueDepthThreshold Network queue depth above which the pool grows
+         * @param queueWaitThresholdMs Network queue wait time above which the pool grows
+         * @param idleTimeoutMs Idle time after which a dispatcher above the minimum exits
+         */
+        public ElasticPoolPolicy(int minThreads, int maxThreads, int queueDepthThreshold,
+                long queueWaitThresholdMs, long idleTimeoutMs) {
+            if (minThreads < 0 || maxThreads < 1 || maxThreads < minThreads) {
+                throw new IllegalArgumentException("Invalid thread bounds: min=" + minThreads
+                        + ", max=" + maxThreads);
+            }
+            if (idleTimeoutMs <= 0) {
+                throw new IllegalArgumentException("Idle timeout must be positive");
+            }
+            this.minThreads = minThreads;
+            this.maxThreads = maxThreads;
+            this.queueDepthThreshold = queueDepthThreshold;
+            this.queueWaitThresholdMs = queueWaitThresholdMs;
+            this.idleTimeoutMs = idleTimeoutMs;
+        }
+    }
+
+    /**
+     * A snapshot of the network load for a single host.
+     *
+     * @see RequestQueue#getNetworkHostStats()
+     */
+    public static class HostStats {
+        /** The host, in lower case. */
+        public final String host;
+
+        /** The number of requests waiting in the network queue. */
+        public final int queued;
+
+        /** The number of requests being performed. */
+        public final int inFlight;
+
+        /**
+         * The largest number of requests that have waited in the network queue at once since
+         * the host last had nothing queued or in flight.
+         */
+        public final int peakQueued;
+
+        /** The maximum number of requests in flight, or {@link Integer#MAX_VALUE}. */
+        public final int maxInFlight;
+
+        /* package */ HostStats(String host, int queued, int inFlight, int peakQueued,
+                int maxInFlight) {
+            this.host = host;
+            this.queued = queued;
+            this.inFlight = inFlight;
+            this.peakQueued = peakQueued;
+            this.maxInFlight = maxInFlight;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: queued=%d, inFlight=%d/%s, peakQueued=%d", host, queued,
+                    inFlight, maxInFlight == Integer.MAX_VALUE ? "-" : maxInFlight, peakQueued);
+        }
+    }
+
+    /**
+     * Bounds on the requests outstanding in a queue, and what to do with requests beyond them.
+     *
+     * @see RequestQueue#setAdmissionPolicy(AdmissionPolicy)
+     */
+    public static class AdmissionPolicy {
+        /** What {@link RequestQueue#add(Request)} does with a request that doesn't fit. */
+        public enum Overflow {
+            /** Fail the new request with a {@link QueueFullError}. */
+            REJECT_NEW,
+            /**
+             * Fail the request waiting for the network with the lowest priority below that of
+             * the new request with a {@link QueueFullError}, as many times as needed. Fail the
+             * new request if there is no such request left.
+             */
+            DROP_LOWEST_PRIORITY,
+            /**
+             * Block the calling thread until enough requests have finished. Never use this on
+             * the main thread.
+             */
+            BLOCK
+        }
+
+        /** Maximum number of requests added and not yet finished. */
+        public final int maxRequests;
+
+        /** Maximum estimated size of the responses of all requests added and not yet finished. */
+        public final long maxResponseBytes;
+
+        /** Response size assumed for requests without a {@link Request#setResponseSizeEstimate}. */
+        public final int defaultResponseBytes;
+
+        public final Overflow overflow;
+
+        /**
+         * @param maxRequests Maximum number of outstanding requests
+         * @param maxResponseBytes Maximum estimated size of their responses
+         * @param defaultResponseBytes Response size assumed for requests without an estimate
+         * @param overflow What to do with a request which doesn't fit
+         */
+        public AdmissionPolicy(int maxRequests, long maxResponseBytes, int defaultResponseBytes,
+                Overflow overflow) {
+            if (maxRequests < 1 || maxResponseBytes < 1) {
+                throw new IllegalArgumentException("Invalid bounds: requests=" + maxRequests
+                        + ", bytes=" + maxResponseBytes);
+            }
+            if (overflow == null) {
+                throw new IllegalArgumentException("Overflow behavior is required");
+            }
+            this.maxRequests = maxRequests;
+            this.maxResponseBytes = maxResponseBytes;
+            this.defaultResponseBytes = defaultResponseBytes;
+            this.overflow = overflow;
+        }
+    }
+
+    /**
+     * A snapshot of the load admitted to a queue, and of the requests it turned away.
+     *
+     * @see RequestQueue#getAdmissionStats()
+     */
+    public static class AdmissionStats {
+        /** The number of requests added and not yet finished. */
+        public final int requests;
+
+        /** The estimated size of their responses. */
+        public final long responseBytes;
+
+        /** The number of new requests failed because the queue was full. */
+        public final long rejected;
+
+        /** The number of queued requests failed to make room for more urgent ones. */
+        public final long dropped;
+
+        /** The number of calls to {@link RequestQueue#add(Request)} which had to wait. */
+        public final long blocked;
+
+        /* package */ AdmissionStats(int requests, long responseBytes, long rejected,
+                long dropped, long blocked) {
+            this.requests = requests;
+            this.responseBytes = responseBytes;
+            this.rejected = rejected;
+            this.dropped = dropped;
+            this.blocked = blocked;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests=%d, responseBytes=%d, rejected=%d, dropped=%d, "
+                    + "blocked=%d", requests, responseBytes, rejected, dropped, blocked);
+        }
+    }
+
+    /**
+     * Bounds the retries a queue makes on behalf of all its requests, so that retries can't
+     * take over the network dispatchers while a server is failing every request. Each request
+     * added earns the queue a fraction of a retry, up to a maximum balance which the queue
+     * starts with; each retry spends one. A retry which finds no whole retry left is not made,
+     * and the error of the failed attempt is delivered instead.
+     *
+     * @see RequestQueue#setRetryBudget(RetryBudget)
+     */
+    public static class RetryBudget {
+        /** The retries earned by each request added. */
+        public final float retryRatio;
+
+        /** The largest number of retries which may be saved up, and made in a burst. */
+        public final int maxRetries;
+
+        /**
+         * @param retryRatio Retries earned by each request added, such as 0.1 to allow one
+         *         retry for every ten requests
+         * @param maxRetries Largest number of retries which may be saved up
+         */
+        public RetryBudget(float retryRatio, int maxRetries) {
+            if (retryRatio < 0 || maxRetries < 0) {
+                throw new IllegalArgumentException("Invalid retry budget: ratio=" + retryRatio
+                        + ", max=" + maxRetries);
+            }
+            this.retryRatio = retryRatio;
+            this.maxRetries = maxRetries;
+        }
+    }
+
     /** Used for generating monotonically-increasing sequence numbers for requests. */
     private AtomicInteger mSequenceGenerator = new AtomicInteger();
 
@@ -61,24 +285,104 @@ public class RequestQueue {
     private final Map<String, Queue<Request<?>>> mWaitingRequests =
             new HashMap<String, Queue<Request<?>>>();
 
+    /**
+     * The in flight request for each cache key in {@link #mWaitingRequests}, which inherits the
+     * priority of requests staged behind it. Guarded by {@link #mWaitingRequests}.
+     */
+    private final Map<String, Request<?>> mStagingLeaders = new HashMap<String, Request<?>>();
+
+    /**
+     * Uncached requests waiting on an identical request's network call, by coalescing key.
+     *
+     * <ul>
+     *     <li>containsKey(key) indicates that there is a request in flight for the given key;
+     *          that request's {@link Request#getCoalesceKey()} is the key.</li>
+     *     <li>get(key) returns the requests waiting for its response. The in flight request is
+     *          <em>not</em> contained in that list.</li>
+     * </ul>
+     */
+    private final Map<String, List<Request<?>>> mCoalescedRequests =
+            new HashMap<String, List<Request<?>>>();
+
+    /** A request held back by {@link #pause(Object)}, with the stage to dispatch it from. */
+    private static class HeldRequest {
+        final Request<?> request;
+        final Object tag;
+        final boolean networkStage;
+
+        HeldRequest(Request<?> request, Object tag, boolean networkStage) {
+            this.request = request;
+            this.tag = tag;
+            this.networkStage = networkStage;
+        }
+    }
+
+    /** Parsed responses in access order, evicting the eldest beyond {@link #maxEntries}. */
+    @SuppressWarnings("serial")
+    private static class ParsedResponseMap extends LinkedHashMap<String, Response<?>> {
+        int maxEntries;
+
+        ParsedResponseMap() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Response<?>> eldest) {
+            return size() > maxEntries;
+        }
+    }
+
+    /** Orders held requests the way the queues they return to would. */
+    private static final Comparator<HeldRequest> HELD_ORDER = new Comparator<HeldRequest>() {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        @Override
+        public int compare(HeldRequest left, HeldRequest right) {
+            return ((Request) left.request).compareTo(right.request);
+        }
+    };
+
+    /**
+     * Requests held back by dispatchers, by paused tag. Tags are compared by identity. Guarded
+     * by itself.
+     */
+    private final Map<Object, List<HeldRequest>> mPausedTags =
+            new IdentityHashMap<Object, List<HeldRequest>>();
+
+    /**
+     * Fresh parsed responses by cache key and parsed response key, least recently used first.
+     * Guarded by itself.
+     */
+    private final ParsedResponseMap mParsedResponses = new ParsedResponseMap();
+
+    /** Maximum number of entries in {@link #mParsedResponses}; 0 disables it. */
+    private volatile int mParsedResponseCacheSize = 0;
+
+    /** Whether any tag is paused, so that dispatchers only look tags up while one is. */
+    private volatile boolean mAnyPaused;
+
     /**
      * The set of all requests currently being processed by this RequestQueue. A Request
      * will be in this set if it is waiting in any queue or currently being processed by
      * any dispatcher.
      */
-    private final Set<Request<?>> mCurrentRequests = new HashSet<Request<?>>();
+    private final RequestRegistry mCurrentRequests = new RequestRegistry();
 
-    /** The cache triage queue. */
-    private final PriorityBlockingQueue<Request<?>> mCacheQueue =
-        new PriorityBlockingQueue<Request<?>>();
+    /**
+     * The cache triage queues, one per cache dispatcher. Requests are routed to a queue by the
+     * hash of their cache key so that requests for the same key are always triaged in order by
+     * the same dispatcher.
+     */
+    private final List<PriorityBlockingQueue<Request<?>>> mCacheQueues;
 
     /** The queue of requests that are actually going out to the network. */
-    private final PriorityBlockingQueue<Request<?>> mNetworkQueue =
-        new PriorityBlockingQueue<Request<?>>();
+    private final NetworkQueue mNetworkQueue = new NetworkQueue();
 
     /** Number of network request dispatcher threads to start. */
     private static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
 
+    /** Number of cache triage dispatcher threads to start. */
+    private static final int DEFAULT_CACHE_THREAD_POOL_SIZE = 1;
+
     /** Cache interface for retrieving and storing responses. */
     private final Cache mCache;
 
@@ -88,14 +392,100 @@ public class RequestQueue {
     /** Response delivery mechanism. */
     private final ResponseDelivery mDelivery;
 
-    /** The network dispatchers. */
+    /** Guards the network dispatcher pool. */
+    private final Object mDispatcherLock = new Object();
+
+    /** Number of network dispatchers of the fixed-size pool. */
+    private final int mThreadPoolSize;
+
+    /**
+     * The network dispatchers. Slots are null while their dispatcher is not running.
+     * Guarded by {@link #mDispatcherLock}.
+     */
     private NetworkDispatcher[] mDispatchers;
 
-    /** The cache dispatcher. */
-    private CacheDispatcher mCacheDispatcher;
+    /**
+     * Network dispatchers which only take requests of at least {@link #mReservedMinPriority},
+     * in addition to the pool. Slots are null while not running. Guarded by
+     * {@link #mDispatcherLock}.
+     */
+    private NetworkDispatcher[] mReservedDispatchers = new NetworkDispatcher[0];
+
+    /** The lowest priority served by the reserved dispatchers. */
+    private Request.Priority mReservedMinPriority = Request.Priority.HIGH;
+
+    /** Sizing policy for the network dispatchers, or null for a fixed-size pool. */
+    private volatile ElasticPoolPolicy mElasticPoolPolicy;
+
+    /** Whether the dispatchers are running. Written with {@link #mDispatcherLock} held. */
+    private volatile boolean mStarted = false;
 
-    private List<RequestFinishedListener> mFinishedListeners =
-            new ArrayList<RequestFinishedListener>();
+    /** Whether {@link #start()} is deferred until the next request is added. */
+    private volatile boolean mStartOnAdd = false;
+
+    /** The cache dispatchers, one per cache triage queue. */
+    private CacheDispatcher[] mCacheDispatchers;
+
+    /** Runs cache triage, or null if this queue owns its cache dispatcher threads. */
+    private final Executor mCacheExecutor;
+
+    /** Runs network requests, or null if this queue owns its network dispatcher threads. */
+    private final Executor mNetworkExecutor;
+
+    /** Triages requests on {@link #mCacheExecutor}; never started as a thread. */
+    private volatile CacheDispatcher mCacheProcessor;
+
+    /** Performs requests on {@link #mNetworkExecutor}; never started as a thread. */
+    private volatile NetworkDispatcher mNetworkProcessor;
+
+    /** Guards the admission state below, and is notified when requests are released. */
+    private final Object mAdmissionLock = new Object();
+
+    /** Bounds on outstanding requests, or null for none. Guarded by {@link #mAdmissionLock}. */
+    private AdmissionPolicy mAdmissionPolicy;
+
+    /** Requests admitted and not yet released. Guarded by {@link #mAdmissionLock}. */
+    private int mAdmittedRequests;
+
+    /** Estimated response bytes of the admitted requests. Guarded by {@link #mAdmissionLock}. */
+    private long mAdmittedBytes;
+
+    /** Counters for {@link AdmissionStats}. Guarded by {@link #mAdmissionLock}. */
+    private long mRejectedCount;
+    private long mDroppedCount;
+    private long mBlockedCount;
+
+    /** Guards the retry budget state below. */
+    private final Object mRetryLock = new Object();
+
+    /** Bounds on retries, or null for none. Guarded by {@link #mRetryLock}. */
+    private RetryBudget mRetryBudget;
+
+    /** Retries currently allowed by {@link #mRetryBudget}. Guarded by {@link #mRetryLock}. */
+    private float mRetryBalance;
+
+    /**
+     * Wakes the network executor for delayed retries; created on first use and cancelled by
+     * {@link #stop()}. Guarded by {@link #mDispatcherLock}.
+     */
+    private Timer mRetryTimer;
+
+    /** Listeners notified of finished requests; copied on write so finish() takes no lock. */
+    private final List<RequestFinishedListener> mFinishedListeners =
+            new CopyOnWriteArrayList<RequestFinishedListener>();
+
+    /**
+     * Creates the worker pool. Processing will not begin until {@link #start()} is called.
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param threadPoolSize Number of network dispatcher threads to create
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     */
+    public RequestQueue(Cache cache, Network network, int threadPoolSize,
+            ResponseDelivery delivery) {
+        this(cache, network, threadPoolSize, DEFAULT_CACHE_THREAD_POOL_SIZE, delivery);
+    }
 
     /**
      * Creates the worker pool. Processing will not begin until {@link #start()} is called.
@@ -103,14 +493,86 @@ public class RequestQueue {
      * @param cache A Cache to use for persisting responses to disk
      * @param network A Network interface for performing HTTP requests
      * @param threadPoolSize Number of network dispatcher threads to create
+     * @param cacheThreadPoolSize Number of cache dispatcher threads to create; requests are
+     *         partitioned between them by cache key
      * @param delivery A ResponseDelivery interface for posting responses and errors
      */
     public RequestQueue(Cache cache, Network network, int threadPoolSize,
+            int cacheThreadPoolSize, ResponseDelivery delivery) {
+        this(cache, network, threadPoolSize, cacheThreadPoolSize, null, null, delivery);
+    }
+
+    /**
+     * Creates a queue which runs its cache triage and network requests on the given executors
+     * instead of on threads of its own. Processing will not begin until {@link #start()} is
+     * called.
+     *
+     * <p>Each request handed to an executor is a short task that takes the highest priority
+     * request from the queue, so executors may be bounded and shared between queues. The
+     * same executor may be passed for both cache and network work.</p>
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param cacheExecutor Executor to perform cache triage on
+     * @param networkExecutor Executor to perform network requests on
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     */
+    public RequestQueue(Cache cache, Network network, Executor cacheExecutor,
+            Executor networkExecutor, ResponseDelivery delivery) {
+        this(cache, network, 0, DEFAULT_CACHE_THREAD_POOL_SIZE, checkNotNull(cacheExecutor),
+                checkNotNull(networkExecutor), delivery);
+    }
+
+    private RequestQueue(Cache cache, Network network, int threadPoolSize,
+            int cacheThreadPoolSize, Executor cacheExecutor, Executor networkExecutor,
             ResponseDelivery delivery) {
+        if (cacheThreadPoolSize < 1) {
+            throw new IllegalArgumentException("At least one cache dispatcher is required");
+        }
         mCache = cache;
         mNetwork = network;
+        mThreadPoolSize = threadPoolSize;
         mDispatchers = new NetworkDispatcher[threadPoolSize];
+        mCacheExecutor = cacheExecutor;
+        mNetworkExecutor = networkExecutor;
+        mCacheQueues = new ArrayList<PriorityBlockingQueue<Request<?>>>(cacheThreadPoolSize);
+        for (int i = 0; i < cacheThreadPoolSize; i++) {
+            mCacheQueues.add(new PriorityBlockingQueue<Request<?>>());
+        }
+        mCacheDispatchers = new CacheDispatcher[cacheThreadPoolSize];
         mDelivery = delivery;
+        mNetworkQueue.setListener(new NetworkQueue.Listener() {
+            @Override
+            public void onRequestQueued(int depth) {
+                if (mNetworkExecutor != null) {
+                    if (mStarted) {
+                        mNetworkExecutor.execute(mNetworkTask);
+                    }
+                    return;
+                }
+                ElasticPoolPolicy policy = mElasticPoolPolicy;
+                if (policy != null) {
+                    maybeGrowNetworkPool(depth > policy.queueDepthThreshold);
+                }
+            }
+
+            @Override
+            public void onRequestTaken(long queueWaitMs) {
+                ElasticPoolPolicy policy = mElasticPoolPolicy;
+                if (policy != null && queueWaitMs > policy.queueWaitThresholdMs) {
+                    maybeGrowNetworkPool(true);
+                }
+            }
+
+            @Override
+            public void onHostAvailable() {
+                // Dispatcher threads are woken by the queue itself; executors need a new task
+                // for the requests that were skipped.
+                if (mNetworkExecutor != null && mStarted) {
+                    mNetworkExecutor.execute(mNetworkTask);
+                }
+            }
+        });
     }
 
     /**
@@ -135,34 +597,442 @@ public class RequestQueue {
         this(cache, network, DEFAULT_NETWORK_THREAD_POOL_SIZE);
     }
 
+    private static Executor checkNotNull(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor must not be null");
+        }
+        return executor;
+    }
+
     /**
      * Starts the dispatchers in this queue.
      */
     public void start() {
         stop();  // Make sure any currently running dispatchers are stopped.
-        // Create the cache dispatcher and start it.
-        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery);
-        mCacheDispatcher.start();
+        if (mCacheExecutor != null) {
+            startOnExecutors();
+            return;
+        }
+        // Create the cache dispatchers and start them. They share a single initializer so the
+        // cache is only initialized once.
+        CacheDispatcher.CacheInitializer cacheInitializer =
+                new CacheDispatcher.CacheInitializer(mCache);
+        for (int i = 0; i < mCacheDispatchers.length; i++) {
+            CacheDispatcher cacheDispatcher = new CacheDispatcher(mCacheQueues.get(i),
+                    mNetworkQueue, mCache, mDelivery, cacheInitializer);
+            mCacheDispatchers[i] = cacheDispatcher;
+            cacheDispatcher.start();
+        }
 
-        // Create network dispatchers (and corresponding threads) up to the pool size.
-        for (int i = 0; i < mDispatchers.length; i++) {
-            NetworkDispatcher networkDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork,
-                    mCache, mDelivery);
-            mDispatchers[i] = networkDispatcher;
-            networkDispatcher.start();
+        // Create network dispatchers (and corresponding threads) up to the pool size, or up to
+        // the minimum size of an elastic pool.
+        synchronized (mDispatcherLock) {
+            mStarted = true;
+            int initialSize = mElasticPoolPolicy == null
+                    ? mDispatchers.length : mElasticPoolPolicy.minThreads;
+            for (int i = 0; i < initialSize; i++) {
+                startNetworkDispatcher(i);
+            }
+            for (int i = 0; i < mReservedDispatchers.length; i++) {
+                mReservedDispatchers[i] = new NetworkDispatcher(mNetworkQueue, mNetwork, mCache,
+                        mDelivery, mReservedMinPriority);
+                mReservedDispatchers[i].start();
+            }
+            if (!mNetworkQueue.isEmpty()) {
+                maybeGrowNetworkPool(mElasticPoolPolicy != null
+                        && mNetworkQueue.size() > mElasticPoolPolicy.queueDepthThreshold);
+            }
         }
     }
 
+    /**
+     * Starts the dispatchers in this queue when the first request is added, rather than now.
+     * This keeps creating the queue cheap, for instance on an application's startup path: no
+     * thread is created and the cache isn't initialized until the queue is first used.
+     */
+    public void startLazily() {
+        stop();
+        mStartOnAdd = true;
+    }
+
+    /**
+     * Starts processing on the caller-supplied executors, first scheduling a task for every
+     * request queued before the start.
+     */
+    private void startOnExecutors() {
+        synchronized (mDispatcherLock) {
+            mCacheProcessor = new CacheDispatcher(mCacheQueues.get(0), mNetworkQueue, mCache,
+                    mDelivery, new CacheDispatcher.CacheInitializer(mCache));
+            mNetworkProcessor = new NetworkDispatcher(mNetworkQueue, mNetwork, mCache, mDelivery);
+            // Publish the started state before counting queued requests; requests queued
+            // concurrently are then scheduled at least once. Surplus tasks find nothing to do.
+            mStarted = true;
+            for (int i = mCacheQueues.get(0).size(); i > 0; i--) {
+                mCacheExecutor.execute(mCacheTask);
+            }
+            for (int i = mNetworkQueue.size(); i > 0; i--) {
+                mNetworkExecutor.execute(mNetworkTask);
+            }
+        }
+    }
+
+    /** Triages the highest priority request of the cache queue on {@link #mCacheExecutor}. */
+    private final Runnable mCacheTask = new Runnable() {
+        @Override
+        public void run() {
+            CacheDispatcher processor = mCacheProcessor;
+            if (!mStarted || processor == null) {
+                // Stopped; the request stays queued until the next start().
+                return;
+            }
+            Request<?> request = mCacheQueues.get(0).poll();
+            if (request == null) {
+                return;
+            }
+            try {
+                processor.initializeCache();
+                processor.processRequest(request);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    };
+
+    /** Performs the highest priority request of the network queue on {@link #mNetworkExecutor}. */
+    private final Runnable mNetworkTask = new Runnable() {
+        @Override
+        public void run() {
+            NetworkDispatcher processor = mNetworkProcessor;
+            if (!mStarted || processor == null) {
+                // Stopped; the request stays queued until the next start().
+                return;
+            }
+            Request<?> request = mNetworkQueue.poll();
+            if (request != null) {
+                processor.processRequest(request);
+                return;
+            }
+            // Nothing to send yet; come back when the next delayed retry is due.
+            long delayMs = mNetworkQueue.getNextDelayMs();
+            if (delayMs >= 0) {
+                scheduleNetworkTask(delayMs);
+            }
+        }
+    };
+
+    /** Runs {@link #mNetworkTask} on the network executor after the given delay. */
+    private void scheduleNetworkTask(long delayMs) {
+        synchronized (mDispatcherLock) {
+            if (mRetryTimer == null) {
+                mRetryTimer = new Timer("Volley-RetryTimer", true);
+            }
+            mRetryTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    if (mStarted) {
+                        mNetworkExecutor.execute(mNetworkTask);
+                    }
+                }
+            }, delayMs);
+        }
+    }
+
+    /**
+     * Hands requests that were just added to the cache queue over to the cache executor, if
+     * this queue uses one.
+     */
+    private void scheduleCacheTriage(int count) {
+        if (mCacheExecutor != null && mStarted) {
+            for (int i = 0; i < count; i++) {
+                mCacheExecutor.execute(mCacheTask);
+            }
+        }
+    }
+
+    /**
+     * Makes the network dispatcher pool elastic. Must be called before {@link #start()}; the
+     * pool then starts {@link ElasticPoolPolicy#minThreads} dispatchers and adds more, up to
+     * {@link ElasticPoolPolicy#maxThreads}, while the network queue is backed up.
+     *
+     * @param policy The sizing policy, or null to restore a fixed-size pool of the size given
+     *         at construction
+     */
+    public void setElasticPoolPolicy(ElasticPoolPolicy policy) {
+        synchronized (mDispatcherLock) {
+            if (mStarted) {
+                throw new IllegalStateException("Cannot change the pool policy while started");
+            }
+            if (mNetworkExecutor != null) {
+                throw new IllegalStateException("Pool policy does not apply to executors");
+            }
+            mElasticPoolPolicy = policy;
+            mDispatchers = new NetworkDispatcher[
+                    policy != null ? policy.maxThreads : mThreadPoolSize];
+        }
+    }
+
+    /**
+     * Reserves network dispatchers for urgent requests. Must be called before {@link #start()}.
+     *
+     * <p>The reserved dispatchers run in addition to the pool and only take requests of at
+     * least the given priority, so such requests don't wait behind a pool busy with bulk
+     * traffic. They still respect {@link #setMaxRequestsPerHost(int) per-host limits}.</p>
+     *
+     * @param count Number of reserved dispatchers, or 0 for none (the default)
+     * @param minPriority The lowest priority the reserved dispatchers take
+     */
+    public void setReservedNetworkDispatchers(int count, Request.Priority minPriority) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Negative dispatcher count");
+        }
+        synchronized (mDispatcherLock) {
+            if (mStarted) {
+                throw new IllegalStateException("Cannot reserve dispatchers while started");
+            }
+            if (mNetworkExecutor != null) {
+                throw new IllegalStateException("Reserved dispatchers do not apply to executors");
+            }
+            mReservedDispatchers = new NetworkDispatcher[count];
+            mReservedMinPriority = minPriority;
+        }
+    }
+
+    /**
+     * Returns the number of network dispatcher threads currently running, not counting
+     * {@link #setReservedNetworkDispatchers reserved} ones. Always 0 for a queue running on
+     * caller-supplied executors.
+     */
+    public int getNetworkThreadPoolSize() {
+        synchronized (mDispatcherLock) {
+            int size = 0;
+            for (NetworkDispatcher dispatcher : mDispatchers) {
+                if (dispatcher != null) {
+                    size++;
+                }
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Starts one more network dispatcher if the pool is elastic and has room, and either
+     * {@code backedUp} is set or no dispatcher is running at all.
+     */
+    private void maybeGrowNetworkPool(boolean backedUp) {
+        synchronized (mDispatcherLock) {
+            if (!mStarted || mElasticPoolPolicy == null) {
+                return;
+            }
+            int freeSlot = -1;
+            int size = 0;
+            for (int i = 0; i < mDispatchers.length; i++) {
+                if (mDispatchers[i] != null) {
+                    size++;
+                } else if (freeSlot < 0) {
+                    freeSlot = i;
+                }
+            }
+            if (freeSlot >= 0 && (backedUp || size == 0)) {
+                if (VolleyLog.DEBUG) {
+                    VolleyLog.v("Growing network pool to %d dispatchers", size + 1);
+                }
+                startNetworkDispatcher(freeSlot);
+            }
+        }
+    }
+
+    /**
+     * Creates and starts a network dispatcher in the given slot. Elastic dispatchers retire
+     * themselves after sitting idle while the pool is above its minimum size.
+     */
+    private void startNetworkDispatcher(final int slot) {
+        NetworkDispatcher networkDispatcher;
+        if (mElasticPoolPolicy == null) {
+            networkDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork, mCache, mDelivery);
+        } else {
+            networkDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork, mCache, mDelivery,
+                    mElasticPoolPolicy.idleTimeoutMs, new NetworkDispatcher.IdleListener() {
+                @Override
+                public boolean onIdle(NetworkDispatcher dispatcher) {
+                    return retireNetworkDispatcher(slot, dispatcher);
+                }
+            });
+        }
+        mDispatchers[slot] = networkDispatcher;
+        networkDispatcher.start();
+    }
+
+    /**
+     * Releases the slot of an idle elastic dispatcher, unless that would shrink the pool below
+     * its minimum or strand queued requests. The last dispatcher also stays while delayed
+     * retries are queued: nothing starts a dispatcher when they become due.
+     *
+     * @return true if the dispatcher should exit
+     */
+    private boolean retireNetworkDispatcher(int slot, NetworkDispatcher dispatcher) {
+        synchronized (mDispatcherLock) {
+            if (mDispatchers[slot] != dispatcher) {
+                // Already stopped and replaced.
+                return true;
+            }
+            int poolSize = getNetworkThreadPoolSize();
+            if (poolSize <= mElasticPoolPolicy.minThreads || mNetworkQueue.peek() != null
+                    || (poolSize == 1 && mNetworkQueue.size() > 0)) {
+                return false;
+            }
+            mDispatchers[slot] = null;
+            if (VolleyLog.DEBUG) {
+                VolleyLog.v("Retiring idle network dispatcher");
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Limits the number of requests performed at once for every host without a limit of its
+     * own. Queued requests for a host at its limit are skipped, so that they don't hold up
+     * requests for other hosts. Unlimited by default.
+     *
+     * @param maxRequests Maximum number of requests in flight per host
+     */
+    public void setMaxRequestsPerHost(int maxRequests) {
+        if (maxRequests < 1) {
+            throw new IllegalArgumentException("At least one request per host is required");
+        }
+        mNetworkQueue.setDefaultHostLimit(maxRequests);
+    }
+
+    /**
+     * Limits the number of requests performed at once for the given host, overriding
+     * {@link #setMaxRequestsPerHost(int)}.
+     *
+     * @param host The host, as in the request URL; case insensitive
+     * @param maxRequests Maximum number of requests in flight for the host, or 0 to restore
+     *         the default
+     */
+    public void setMaxRequestsPerHost(String host, int maxRequests) {
+        if (maxRequests < 0) {
+            throw new IllegalArgumentException("Negative limit for " + host);
+        }
+        mNetworkQueue.setHostLimit(host.toLowerCase(Locale.US),
+                maxRequests == 0 ? null : maxRequests);
+    }
+
+    /**
+     * Bounds the number of outstanding requests and the estimated size of their responses.
+     * A request is outstanding from the moment it is added until it finishes. Requests already
+     * added are unaffected by a new policy.
+     *
+     * @param policy The bounds, or null for none (the default)
+     */
+    public void setAdmissionPolicy(AdmissionPolicy policy) {
+        synchronized (mAdmissionLock) {
+            mAdmissionPolicy = policy;
+            // Blocked callers re-check against the new bounds.
+            mAdmissionLock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the requests outstanding and of those turned away so far.
+     */
+    public AdmissionStats getAdmissionStats() {
+        synchronized (mAdmissionLock) {
+            return new AdmissionStats(mAdmittedRequests, mAdmittedBytes, mRejectedCount,
+                    mDroppedCount, mBlockedCount);
+        }
+    }
+
+    /**
+     * Bounds the retries made for all requests of this queue. Retries are unbounded by
+     * default, leaving each request's {@link RetryPolicy} in charge.
+     *
+     * @param budget The bounds, or null for none
+     */
+    public void setRetryBudget(RetryBudget budget) {
+        synchronized (mRetryLock) {
+            mRetryBudget = budget;
+            mRetryBalance = budget != null ? budget.maxRetries : 0;
+        }
+    }
+
+    /**
+     * Called from {@link Request#scheduleRetry(long)} when the network failed an attempt which
+     * may be retried. Queues the request for the network again, to be sent once the delay has
+     * elapsed, unless that would be past its deadline or over the {@link RetryBudget}.
+     *
+     * @return true if the retry was scheduled
+     */
+    /* package */ boolean scheduleRetry(final Request<?> request, long delayMs) {
+        long notBeforeMs = SystemClock.elapsedRealtime() + delayMs;
+        if (request.isPastDeadline(notBeforeMs)) {
+            request.addMarker("retry-past-deadline");
+            return false;
+        }
+        synchronized (mRetryLock) {
+            if (mRetryBudget != null) {
+                if (mRetryBalance < 1) {
+                    request.addMarker("retry-budget-exhausted");
+                    return false;
+                }
+                mRetryBalance--;
+            }
+        }
+        request.addMarker("retry-scheduled [delay=" + delayMs + "]");
+        // Don't let a cancelled request sit out its delay before it finishes. Set first, so that
+        // it can't replace the action of a network which has taken the request already.
+        request.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                if (mNetworkQueue.remove(request)) {
+                    request.finish("network-discard-cancelled");
+                }
+            }
+        });
+        mNetworkQueue.offerDelayed(request, notBeforeMs);
+        if (mNetworkExecutor != null && mStarted) {
+            scheduleNetworkTask(delayMs);
+        }
+        return true;
+    }
+
+    /**
+     * Returns a snapshot of the network queue depth and requests in flight for every host with
+     * requests queued or in flight, keyed by host. Useful for finding which origin a backlog is
+     * waiting on.
+     */
+    public Map<String, HostStats> getNetworkHostStats() {
+        return mNetworkQueue.getHostStats();
+    }
+
     /**
      * Stops the cache and network dispatchers.
      */
     public void stop() {
-        if (mCacheDispatcher != null) {
-            mCacheDispatcher.quit();
+        mStartOnAdd = false;
+        for (int i = 0; i < mCacheDispatchers.length; i++) {
+            if (mCacheDispatchers[i] != null) {
+                mCacheDispatchers[i].quit();
+            }
         }
-        for (int i = 0; i < mDispatchers.length; i++) {
-            if (mDispatchers[i] != null) {
-                mDispatchers[i].quit();
+        synchronized (mDispatcherLock) {
+            mStarted = false;
+            for (int i = 0; i < mDispatchers.length; i++) {
+                if (mDispatchers[i] != null) {
+                    mDispatchers[i].quit();
+                    mDispatchers[i] = null;
+                }
+            }
+            for (int i = 0; i < mReservedDispatchers.length; i++) {
+                if (mReservedDispatchers[i] != null) {
+                    mReservedDispatchers[i].quit();
+                    mReservedDispatchers[i] = null;
+                }
+            }
+            // Delayed retries stay queued, and are rescheduled by the next start().
+            if (mRetryTimer != null) {
+                mRetryTimer.cancel();
+                mRetryTimer = null;
             }
         }
     }
@@ -174,6 +1044,17 @@ public class RequestQueue {
         return mSequenceGenerator.incrementAndGet();
     }
 
+    /**
+     * Returns the cache triage queue responsible for the given cache key.
+     */
+    private PriorityBlockingQueue<Request<?>> getCacheQueue(String cacheKey) {
+        if (mCacheQueues.size() == 1) {
+            return mCacheQueues.get(0);
+        }
+        int hash = cacheKey == null ? 0 : cacheKey.hashCode();
+        return mCacheQueues.get((hash & Integer.MAX_VALUE) % mCacheQueues.size());
+    }
+
     /**
      * Gets the {@link Cache} instance being used.
      */
@@ -194,13 +1075,7 @@ public class RequestQueue {
      * @param filter The filtering function to use
      */
     public void cancelAll(RequestFilter filter) {
-        synchronized (mCurrentRequests) {
-            for (Request<?> request : mCurrentRequests) {
-                if (filter.apply(request)) {
-                    request.cancel();
-                }
-            }
-        }
+        mCurrentRequests.cancelAll(filter);
     }
 
     /**
@@ -211,12 +1086,158 @@ public class RequestQueue {
         if (tag == null) {
             throw new IllegalArgumentException("Cannot cancelAll with a null tag");
         }
-        cancelAll(new RequestFilter() {
-            @Override
-            public boolean apply(Request<?> request) {
-                return request.getTag() == tag;
+        mCurrentRequests.cancelAll(tag);
+    }
+
+    /**
+     * Changes the priority of a request, re-sorting it in whichever queue it is waiting in.
+     * Has no effect on when a request already being processed is delivered, but applies if
+     * it goes back to a queue, for instance to be retried.
+     *
+     * @param request The request to change
+     * @param priority The new priority, or null to restore {@link Request#getPriority()}
+     */
+    public void setPriority(Request<?> request, Request.Priority priority) {
+        synchronized (mWaitingRequests) {
+            setPriorityLocked(request, priority);
+        }
+    }
+
+    /**
+     * Changes the priority of all requests in this queue with the given tag, as
+     * {@link #setPriority(Request, Request.Priority)} does. Tag must be non-null and equality
+     * is by identity.
+     */
+    public void setPriority(Object tag, Request.Priority priority) {
+        if (tag == null) {
+            throw new IllegalArgumentException("Cannot setPriority with a null tag");
+        }
+        List<Request<?>> tagged = mCurrentRequests.getRequests(tag);
+        synchronized (mWaitingRequests) {
+            for (Request<?> request : tagged) {
+                setPriorityLocked(request, priority);
             }
-        });
+        }
+    }
+
+    private void setPriorityLocked(Request<?> request, Request.Priority priority) {
+        PriorityBlockingQueue<Request<?>> cacheQueue =
+                request.shouldCache() ? getCacheQueue(request.getCacheKey()) : null;
+        // Cache queues only sort requests as they are inserted.
+        boolean cacheQueued = cacheQueue != null && cacheQueue.remove(request);
+        mNetworkQueue.setPriority(request, priority);
+        if (cacheQueued) {
+            cacheQueue.add(request);
+            // A cache task may have found the queue empty while the request was out of it.
+            scheduleCacheTriage(1);
+        }
+        // A staged request passes a raised priority on to the request it waits for.
+        Request<?> leader =
+                request.shouldCache() ? mStagingLeaders.get(request.getCacheKey()) : null;
+        Request.Priority effective = request.getEffectivePriority();
+        if (leader != null && leader != request && effective != null) {
+            inheritPriorityLocked(leader, effective);
+        }
+    }
+
+    /**
+     * Holds back requests with the given tag, for instance while a list is flung, without
+     * cancelling them. Dispatchers set aside such requests when they reach the front of a
+     * queue and keep serving others; a request already on the network completes as usual.
+     * Tag must be non-null and equality is by identity.
+     */
+    public void pause(Object tag) {
+        if (tag == null) {
+            throw new IllegalArgumentException("Cannot pause with a null tag");
+        }
+        synchronized (mPausedTags) {
+            if (!mPausedTags.containsKey(tag)) {
+                mPausedTags.put(tag, new ArrayList<HeldRequest>());
+            }
+            mAnyPaused = true;
+        }
+    }
+
+    /**
+     * Releases the requests with the given tag held back since {@link #pause(Object)}, in
+     * priority order, back to the queues they were taken from. Has no effect if the tag is
+     * not paused.
+     */
+    public void resume(Object tag) {
+        List<HeldRequest> held;
+        synchronized (mPausedTags) {
+            held = mPausedTags.remove(tag);
+            mAnyPaused = !mPausedTags.isEmpty();
+        }
+        if (held == null) {
+            return;
+        }
+        Collections.sort(held, HELD_ORDER);
+        for (HeldRequest request : held) {
+            request.request.setCancelAction(null);
+            request.request.addMarker("resumed");
+            redispatch(request);
+        }
+    }
+
+    /**
+     * Called from {@link Request#holdIfPaused(boolean)} by a dispatcher which just took the
+     * request; sets it aside if its tag is paused.
+     */
+    /* package */ boolean holdIfPaused(Request<?> request, boolean networkStage) {
+        if (!mAnyPaused) {
+            return false;
+        }
+        Object tag = request.getTag();
+        if (tag == null) {
+            return false;
+        }
+        synchronized (mPausedTags) {
+            List<HeldRequest> held = mPausedTags.get(tag);
+            if (held == null) {
+                return false;
+            }
+            request.addMarker(networkStage ? "network-held-paused" : "cache-held-paused");
+            if (networkStage) {
+                // Give the host slot to another request while this one is held.
+                mNetworkQueue.release(request);
+            }
+            final HeldRequest heldRequest = new HeldRequest(request, tag, networkStage);
+            held.add(heldRequest);
+            // A held request is still cancellable; let a dispatcher discard it right away.
+            request.setCancelAction(new Runnable() {
+                @Override
+                public void run() {
+                    boolean removed;
+                    synchronized (mPausedTags) {
+                        List<HeldRequest> held = mPausedTags.get(heldRequest.tag);
+                        removed = held != null && held.remove(heldRequest);
+                    }
+                    if (removed) {
+                        redispatch(heldRequest);
+                    }
+                }
+            });
+            return true;
+        }
+    }
+
+    private void redispatch(HeldRequest held) {
+        Request<?> request = held.request;
+        if (held.networkStage) {
+            mNetworkQueue.add(request);
+        } else {
+            getCacheQueue(request.getCacheKey()).add(request);
+            scheduleCacheTriage(1);
+        }
+    }
+
+    /**
+     * Called from {@link Request#setTag(Object)} so that requests re-tagged after being added
+     * can still be cancelled by their new tag.
+     */
+    /* package */ void onTagChanged(Request<?> request) {
+        mCurrentRequests.onTagChanged(request);
     }
 
     /**
@@ -225,19 +1246,37 @@ public class RequestQueue {
      * @return The passed-in request
      */
     public <T> Request<T> add(Request<T> request) {
+        if (mStartOnAdd) {
+            startDeferred();
+        }
         // Tag the request as belonging to this queue and add it to the set of current requests.
         request.setRequestQueue(this);
-        synchronized (mCurrentRequests) {
-            mCurrentRequests.add(request);
+        if (mParsedResponseCacheSize > 0 && deliverParsedResponse(request)) {
+            return request;
+        }
+        if (!admit(request)) {
+            request.addMarker("admission-rejected");
+            mDelivery.postError(request, new QueueFullError());
+            return request;
+        }
+        synchronized (mRetryLock) {
+            if (mRetryBudget != null) {
+                mRetryBalance = Math.min(mRetryBudget.maxRetries,
+                        mRetryBalance + mRetryBudget.retryRatio);
+            }
         }
+        mCurrentRequests.add(request);
 
         // Process requests in the order they are added.
         request.setSequence(getSequenceNumber());
         request.addMarker("add-to-queue");
 
-        // If the request is uncacheable, skip the cache queue and go straight to the network.
+        // If the request is uncacheable, skip the cache queue and go straight to the network,
+        // unless it can wait for an identical request which is already going there.
         if (!request.shouldCache()) {
-            mNetworkQueue.add(request);
+            if (!request.shouldCoalesce() || !coalesce(request)) {
+                mNetworkQueue.add(request);
+            }
             return request;
         }
 
@@ -255,63 +1294,389 @@ public class RequestQueue {
                 if (VolleyLog.DEBUG) {
                     VolleyLog.v("Request for cacheKey=%s is in flight, putting on hold.", cacheKey);
                 }
+                // Don't let the request wait behind its own duplicate's lower priority.
+                Request<?> leader = mStagingLeaders.get(cacheKey);
+                Request.Priority priority = request.getEffectivePriority();
+                if (leader != null && priority != null) {
+                    inheritPriorityLocked(leader, priority);
+                }
             } else {
                 // Insert 'null' queue for this cacheKey, indicating there is now a request in
                 // flight.
                 mWaitingRequests.put(cacheKey, null);
-                mCacheQueue.add(request);
+                mStagingLeaders.put(cacheKey, request);
+                getCacheQueue(cacheKey).add(request);
+                scheduleCacheTriage(1);
             }
             return request;
         }
     }
 
+    /**
+     * Raises the priority of an in flight request to that of a request staged behind it,
+     * re-sorting it in whichever queue it is waiting in. Must hold {@link #mWaitingRequests}.
+     */
+    private void inheritPriorityLocked(Request<?> leader, Request.Priority priority) {
+        Request.Priority current = leader.getEffectivePriority();
+        if (current != null && current.ordinal() >= priority.ordinal()) {
+            return;
+        }
+        leader.addMarker("priority-inherited");
+        // Cache queues only sort requests as they are inserted.
+        PriorityBlockingQueue<Request<?>> cacheQueue = getCacheQueue(leader.getCacheKey());
+        boolean cacheQueued = cacheQueue.remove(leader);
+        mNetworkQueue.inheritPriority(leader, priority);
+        if (cacheQueued) {
+            cacheQueue.add(leader);
+            // A cache task may have found the queue empty while the request was out of it.
+            scheduleCacheTriage(1);
+        }
+    }
+
+    /** Performs the start deferred by {@link #startLazily()}, if another add() hasn't. */
+    private void startDeferred() {
+        synchronized (mDispatcherLock) {
+            if (!mStartOnAdd) {
+                return;
+            }
+            mStartOnAdd = false;
+        }
+        start();
+    }
+
+    /**
+     * Keeps up to the given number of fresh parsed responses in memory, so that a request
+     * added for one of them is answered from within {@link #add(Request)}, on the calling
+     * thread, instead of being read back from the cache on a cache dispatcher and then posted
+     * back. Only responses which don't need a refresh are kept and served, to requests with
+     * the same cache key and {@link Request#getParsedResponseKey parsed response key} as the
+     * request which parsed them; they therefore share the parsed result object. Soft-expired
+     * entries and misses take the normal path.
+     *
+     * <p>Entries are not affected by changes made directly to the {@link Cache}. Disabled by
+     * default; setting a size of 0 disables it again and drops the kept responses.</p>
+     */
+    public void setParsedResponseCacheSize(int maxEntries) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("maxEntries must not be negative");
+        }
+        synchronized (mParsedResponses) {
+            mParsedResponseCacheSize = maxEntries;
+            mParsedResponses.maxEntries = maxEntries;
+            if (maxEntries == 0) {
+                mParsedResponses.clear();
+            }
+        }
+    }
+
+    private void putParsedResponse(String cacheKey, String parsedResponseKey,
+            Response<?> response) {
+        if (mParsedResponseCacheSize == 0 || response.cacheEntry == null
+                || response.cacheEntry.refreshNeeded()) {
+            return;
+        }
+        synchronized (mParsedResponses) {
+            if (mParsedResponseCacheSize > 0) {
+                mParsedResponses.put(cacheKey + '\n' + parsedResponseKey, response);
+            }
+        }
+    }
+
+    /**
+     * Delivers a fresh parsed response kept for the request right away, if there is one.
+     *
+     * @return true if the request was answered and finished
+     */
+    @SuppressWarnings("unchecked")
+    private <T> boolean deliverParsedResponse(Request<T> request) {
+        String parsedResponseKey = request.getParsedResponseKey();
+        if (!request.shouldCache() || parsedResponseKey == null || request.isCanceled()) {
+            return false;
+        }
+        Response<?> response;
+        synchronized (mParsedResponses) {
+            String key = request.getCacheKey() + '\n' + parsedResponseKey;
+            response = mParsedResponses.get(key);
+            if (response == null) {
+                return false;
+            }
+            if (response.cacheEntry.refreshNeeded()) {
+                mParsedResponses.remove(key);
+                return false;
+            }
+        }
+        request.addMarker("parsed-response-cache-hit");
+        request.markDelivered();
+        request.deliverResponse((T) response.result);
+        request.finish("done");
+        return true;
+    }
+
+    /**
+     * Accounts for a new request against the admission policy, dropping or waiting for other
+     * requests as the policy says if it doesn't fit.
+     *
+     * @return false if the request was not admitted
+     */
+    private boolean admit(Request<?> request) {
+        List<Request<?>> dropped = null;
+        boolean admitted = true;
+        synchronized (mAdmissionLock) {
+            boolean blocked = false;
+            long bytes = 0;
+            AdmissionPolicy policy;
+            while ((policy = mAdmissionPolicy) != null) {
+                bytes = estimateResponseBytes(request, policy);
+                // A request larger than the byte bound is still admitted on its own.
+                if (mAdmittedRequests < policy.maxRequests
+                        && (mAdmittedBytes == 0
+                                || mAdmittedBytes + bytes <= policy.maxResponseBytes)) {
+                    break;
+                }
+                if (policy.overflow == AdmissionPolicy.Overflow.DROP_LOWEST_PRIORITY) {
+                    Request<?> victim = mNetworkQueue.removeLowest(request.getPriority());
+                    if (victim != null) {
+                        releaseAdmissionLocked(victim);
+                        mDroppedCount++;
+                        if (dropped == null) {
+                            dropped = new ArrayList<Request<?>>();
+                        }
+                        dropped.add(victim);
+                        continue;
+                    }
+                } else if (policy.overflow == AdmissionPolicy.Overflow.BLOCK) {
+                    if (!blocked) {
+                        blocked = true;
+                        mBlockedCount++;
+                    }
+                    try {
+                        mAdmissionLock.wait();
+                        continue;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                mRejectedCount++;
+                admitted = false;
+                break;
+            }
+            if (admitted && policy != null) {
+                mAdmittedRequests++;
+                mAdmittedBytes += bytes;
+                request.setAdmittedBytes(bytes);
+            }
+        }
+        if (dropped != null) {
+            for (Request<?> victim : dropped) {
+                victim.addMarker("admission-dropped");
+                mDelivery.postError(victim, new QueueFullError());
+            }
+        }
+        return admitted;
+    }
+
+    private static long estimateResponseBytes(Request<?> request, AdmissionPolicy policy) {
+        if (request.getResponseSizeEstimate() >= 0) {
+            return request.getResponseSizeEstimate();
+        }
+        return policy.defaultResponseBytes;
+    }
+
+    /** Gives back the admission a request holds, if any, waking up blocked callers. */
+    private void releaseAdmission(Request<?> request) {
+        if (request.getAdmittedBytes() < 0) {
+            // Never admitted, or already released.
+            return;
+        }
+        synchronized (mAdmissionLock) {
+            releaseAdmissionLocked(request);
+        }
+    }
+
+    private void releaseAdmissionLocked(Request<?> request) {
+        long bytes = request.getAdmittedBytes();
+        if (bytes < 0) {
+            return;
+        }
+        request.setAdmittedBytes(-1);
+        mAdmittedRequests--;
+        mAdmittedBytes -= bytes;
+        mAdmissionLock.notifyAll();
+    }
+
+    /**
+     * Attaches a request to an identical one in flight, or makes it the request in flight for
+     * its coalescing key.
+     *
+     * @return true if the request was attached and must not be sent itself
+     */
+    private boolean coalesce(Request<?> request) {
+        String key = getCoalesceKey(request);
+        if (key == null) {
+            return false;
+        }
+        synchronized (mCoalescedRequests) {
+            List<Request<?>> waitingRequests = mCoalescedRequests.get(key);
+            if (waitingRequests == null) {
+                mCoalescedRequests.put(key, new ArrayList<Request<?>>());
+                request.setCoalesceKey(key);
+                return false;
+            }
+            waitingRequests.add(request);
+        }
+        request.addMarker("network-coalesced");
+        return true;
+    }
+
+    /**
+     * Returns the key identifying requests which may share a network call with the given one,
+     * or null if it must be sent on its own.
+     */
+    private static String getCoalesceKey(Request<?> request) {
+        int method = request.getMethod();
+        if (method != Request.Method.GET && method != Request.Method.HEAD) {
+            return null;
+        }
+        Map<String, String> headers;
+        try {
+            // Sorted, so that the key doesn't depend on the iteration order of the headers.
+            headers = new TreeMap<String, String>(request.getHeaders());
+        } catch (AuthFailureError e) {
+            return null;
+        }
+        // The class is part of the key since waiting requests are handed the leader's parsed
+        // response.
+        return request.getClass().getName() + ' ' + method + ' ' + request.getUrl() + ' '
+                + headers;
+    }
+
+    /**
+     * Called from {@link Request#takeCoalescedRequests()} once a response or error is about to
+     * be delivered for the given request. Identical requests added from now on no longer wait
+     * for it.
+     */
+    /* package */ List<Request<?>> takeCoalescedRequests(Request<?> request) {
+        synchronized (mCoalescedRequests) {
+            String key = request.getCoalesceKey();
+            if (key == null) {
+                return Collections.emptyList();
+            }
+            request.setCoalesceKey(null);
+            return mCoalescedRequests.remove(key);
+        }
+    }
+
     /**
      * Called from {@link Request#finish(String)}, indicating that processing of the given request
      * has finished.
      *
      * <p>Releases waiting requests for <code>request.getCacheKey()</code> if
-     *      <code>request.shouldCache()</code>.</p>
+     *      <code>request.shouldCache()</code>. If the request completed with a response, the
+     *      waiting requests are given that response rather than looking it up in the cache
+     *      again: those with the same {@link Request#getParsedResponseKey parsed response key}
+     *      have its parsed form delivered right away, and the others parse it on a cache
+     *      dispatcher. A fresh parsed response is also kept in the
+     *      {@link #setParsedResponseCacheSize parsed response cache}, if enabled.</p>
+     *
+     * <p>If the request was coalescing identical requests and finished without handing them a
+     *      response, for instance because it was cancelled, the first of them is sent in its
+     *      place.</p>
      */
     <T> void finish(Request<T> request) {
         // Remove from the set of requests currently being processed.
-        synchronized (mCurrentRequests) {
-            mCurrentRequests.remove(request);
+        mCurrentRequests.remove(request);
+        releaseAdmission(request);
+
+        NetworkResponse sharedNetworkResponse = request.getSharedNetworkResponse();
+        Response<?> sharedResponse = request.getSharedResponse();
+        request.setSharedResponse(null, null);
+        String parsedResponseKey = request.getParsedResponseKey();
+        if (request.shouldCache() && sharedResponse != null && parsedResponseKey != null) {
+            putParsedResponse(request.getCacheKey(), parsedResponseKey, sharedResponse);
         }
-        synchronized (mFinishedListeners) {
-          for (RequestFinishedListener<T> listener : mFinishedListeners) {
+
+        for (RequestFinishedListener<T> listener : mFinishedListeners) {
             listener.onRequestFinished(request);
-          }
+        }
+
+        if (!request.shouldCache() && request.shouldCoalesce()) {
+            promoteCoalescedRequest(request);
         }
 
         if (request.shouldCache()) {
+            List<Request<?>> answered = null;
             synchronized (mWaitingRequests) {
                 String cacheKey = request.getCacheKey();
-                Queue<Request<?>> waitingRequests = mWaitingRequests.remove(cacheKey);
+                // Requests released earlier, or answered without being staged, must not release
+                // the requests staged behind a later one.
+                Queue<Request<?>> waitingRequests = null;
+                if (mStagingLeaders.get(cacheKey) == request) {
+                    waitingRequests = mWaitingRequests.remove(cacheKey);
+                    mStagingLeaders.remove(cacheKey);
+                }
                 if (waitingRequests != null) {
                     if (VolleyLog.DEBUG) {
                         VolleyLog.v("Releasing %d waiting requests for cacheKey=%s.",
                                 waitingRequests.size(), cacheKey);
                     }
+                    if (sharedNetworkResponse != null) {
+                        answered = new ArrayList<Request<?>>(waitingRequests.size());
+                        for (Iterator<Request<?>> it = waitingRequests.iterator();
+                                it.hasNext(); ) {
+                            Request<?> waiting = it.next();
+                            if (sharedResponse != null && parsedResponseKey != null
+                                    && parsedResponseKey.equals(
+                                            waiting.getParsedResponseKey())) {
+                                answered.add(waiting);
+                                it.remove();
+                            } else {
+                                waiting.setSharedResponse(sharedNetworkResponse, null);
+                            }
+                        }
+                    }
                     // Process all queued up requests. They won't be considered as in flight, but
                     // that's not a problem as the cache has been primed by 'request'.
-                    mCacheQueue.addAll(waitingRequests);
+                    getCacheQueue(cacheKey).addAll(waitingRequests);
+                    scheduleCacheTriage(waitingRequests.size());
                 }
             }
+            if (answered != null) {
+                // Delivered outside the lock; delivery may finish the requests right away.
+                for (Request<?> waiting : answered) {
+                    waiting.addMarker("duplicate-response-shared");
+                    mDelivery.postResponse(waiting, sharedResponse);
+                }
+            }
+        }
+    }
+
+    private void promoteCoalescedRequest(Request<?> request) {
+        Request<?> next;
+        synchronized (mCoalescedRequests) {
+            String key = request.getCoalesceKey();
+            if (key == null) {
+                return;
+            }
+            request.setCoalesceKey(null);
+            List<Request<?>> waitingRequests = mCoalescedRequests.remove(key);
+            if (waitingRequests.isEmpty()) {
+                return;
+            }
+            next = waitingRequests.remove(0);
+            next.setCoalesceKey(key);
+            mCoalescedRequests.put(key, waitingRequests);
         }
+        mNetworkQueue.add(next);
     }
 
     public  <T> void addRequestFinishedListener(RequestFinishedListener<T> listener) {
-      synchronized (mFinishedListeners) {
-        mFinishedListeners.add(listener);
-      }
+      mFinishedListeners.add(listener);
     }
 
     /**
      * Remove a RequestFinishedListener. Has no effect if listener was not previously added.
      */
     public  <T> void removeRequestFinishedListener(RequestFinishedListener<T> listener) {
-      synchronized (mFinishedListeners) {
-        mFinishedListeners.remove(listener);
-      }
+      mFinishedListeners.remove(listener);
     }
 }
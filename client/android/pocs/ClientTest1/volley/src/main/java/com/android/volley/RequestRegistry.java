@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The set of requests being processed by a {@link RequestQueue}, indexed by tag.
+ *
+ * <p>Registration and removal never take a lock shared by all requests: the set itself is a
+ * concurrent map and the tag index is split into independently locked stripes. Cancelling
+ * by tag only visits requests carrying that tag.</p>
+ */
+/* package */ class RequestRegistry {
+
+    /** Stands in for a null tag, since the concurrent map can't hold null values. */
+    private static final Object NO_TAG = new Object();
+
+    private static final int STRIPE_COUNT = 16;
+
+    /** A part of the tag index, guarded by its own monitor. Tags are compared by identity. */
+    private static class Stripe {
+        final Map<Object, Set<Request<?>>> requestsByTag =
+                new IdentityHashMap<Object, Set<Request<?>>>();
+    }
+
+    /** Every registered request, mapped to the tag it is indexed under, or NO_TAG. */
+    private final ConcurrentHashMap<Request<?>, Object> mRequests =
+            new ConcurrentHashMap<Request<?>, Object>();
+
+    private final Stripe[] mStripes = new Stripe[STRIPE_COUNT];
+
+    /* package */ RequestRegistry() {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    /** Registers a request under its current tag. */
+    /* package */ void add(Request<?> request) {
+        Object tag = request.getTag();
+        if (mRequests.putIfAbsent(request, tag != null ? tag : NO_TAG) == null && tag != null) {
+            index(tag, request);
+            if (mRequests.get(request) != tag) {
+                // Removed or re-tagged concurrently; whoever did so may have missed our entry.
+                unindex(tag, request);
+            }
+        }
+    }
+
+    /** Unregisters a request. Has no effect if it isn't registered. */
+    /* package */ void remove(Request<?> request) {
+        Object tag = mRequests.remove(request);
+        if (tag != null && tag != NO_TAG) {
+            unindex(tag, request);
+        }
+    }
+
+    /** Moves a registered request to the index of its new tag. */
+    /* package */ void onTagChanged(Request<?> request) {
+        Object tag = request.getTag();
+        Object newKey = tag != null ? tag : NO_TAG;
+        Object oldKey = mRequests.get(request);
+        if (oldKey == null || oldKey == newKey || !mRequests.replace(request, oldKey, newKey)) {
+            // Not registered, unchanged, or concurrently removed or re-tagged.
+            return;
+        }
+        if (oldKey != NO_TAG) {
+            unindex(oldKey, request);
+        }
+        if (newKey != NO_TAG) {
+            index(newKey, request);
+            if (mRequests.get(request) != newKey) {
+                unindex(newKey, request);
+            }
+        }
+    }
+
+    /** Returns the number of registered requests. */
+    /* package */ int size() {
+        return mRequests.size();
+    }
+
+    /** Cancels every registered request for which the filter applies. */
+    /* package */ void cancelAll(RequestQueue.RequestFilter filter) {
+        for (Request<?> request : mRequests.keySet()) {
+            if (filter.apply(request)) {
+                request.cancel();
+            }
+        }
+    }
+
+    /** Cancels every registered request with the given tag. */
+    /* package */ void cancelAll(Object tag) {
+        // Cancel outside the lock; cancel() is overridable and may finish the request.
+        for (Request<?> request : getRequests(tag)) {
+            request.cancel();
+        }
+    }
+
+    /** Returns a snapshot of the registered requests with the given tag. */
+    /* package */ List<Request<?>> getRequests(Object tag) {
+        List<Request<?>> tagged;
+        Stripe stripe = stripeFor(tag);
+        synchronized (stripe) {
+            Set<Request<?>> requests = stripe.requestsByTag.get(tag);
+            if (requests == null) {
+                return Collections.emptyList();
+            }
+            tagged = new ArrayList<Request<?>>(requests);
+        }
+        // Drop requests re-tagged since they were indexed.
+        for (Iterator<Request<?>> it = tagged.iterator(); it.hasNext(); ) {
+            if (it.next().getTag() != tag) {
+                it.remove();
+            }
+        }
+        return tagged;
+    }
+
+    private void index(Object tag, Request<?> request) {
+        Stripe stripe = stripeFor(tag);
+        synchronized (stripe) {
+            Set<Request<?>> requests = stripe.requestsByTag.get(tag);
+            if (requests == null) {
+                requests = new HashSet<Request<?>>();
+                stripe.requestsByTag.put(tag, requests);
+            }
+            requests.add(request);
+        }
+    }
+
+    private void unindex(Object tag, Request<?> request) {
+        Stripe stripe = stripeFor(tag);
+        synchronized (stripe) {
+            Set<Request<?>> requests = stripe.requestsByTag.get(tag);
+            if (requests != null && requests.remove(request) && requests.isEmpty()) {
+                // Don't keep the tag, often an Activity, reachable once its requests are done.
+                stripe.requestsByTag.remove(tag);
+            }
+        }
+    }
+
+    private Stripe stripeFor(Object tag) {
+        int hash = System.identityHashCode(tag);
+        // Spread the bits; identity hashes of objects allocated together are often close.
+        hash ^= (hash >>> 16);
+        return mStripes[(hash & Integer.MAX_VALUE) % STRIPE_COUNT];
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * Thrown by a {@link Network} when a failed attempt may be retried, to have the request sent
+ * again from its {@link RequestQueue} once the given delay has elapsed rather than retrying on
+ * the dispatcher's thread. Never delivered to a request; if the retry can't be scheduled, the
+ * {@link #getError() error} of the failed attempt is delivered instead.
+ *
+ * @see Request#canScheduleRetry()
+ */
+@SuppressWarnings("serial")
+public class RetryError extends VolleyError {
+    private final VolleyError mError;
+    private final long mRetryDelayMs;
+
+    /**
+     * @param error The error of the failed attempt
+     * @param retryDelayMs How long to wait before the next attempt
+     */
+    public RetryError(VolleyError error, long retryDelayMs) {
+        super(error);
+        mError = error;
+        mRetryDelayMs = retryDelayMs;
+    }
+
+    /** Returns the error of the failed attempt. */
+    public VolleyError getError() {
+        return mError;
+    }
+
+    /** Returns how long to wait before the next attempt, in milliseconds. */
+    public long getRetryDelayMs() {
+        return mRetryDelayMs;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+
+import org.apache.http.HttpResponse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * An {@link HttpStack} which executes requests without blocking the calling thread.
+ */
+public abstract class AsyncHttpStack implements HttpStack {
+
+    /** Callback for the completion of an asynchronous HTTP request. */
+    public interface OnRequestComplete {
+        /**
+         * Called once a response has been received. Its entity, if any, is read on the
+         * calling thread, so it should already be buffered.
+         */
+        public void onSuccess(HttpResponse httpResponse);
+
+        /** Called if the request's headers or body could not be obtained. */
+        public void onAuthError(AuthFailureError authFailureError);
+
+        /** Called if no response could be received. */
+        public void onError(IOException ioException);
+    }
+
+    /**
+     * Executes an HTTP request with the given parameters, as {@link #performRequest} would,
+     * without blocking.
+     *
+     * <p>Exactly one of the callback's methods must be called, exactly once, from any
+     * thread.</p>
+     *
+     * @param request the request to perform
+     * @param additionalHeaders additional headers to be sent together with
+     *         {@link Request#getHeaders()}
+     * @param callback the callback to notify of the outcome
+     */
+    public abstract void executeRequest(Request<?> request,
+            Map<String, String> additionalHeaders, OnRequestComplete callback);
+
+    /**
+     * Performs the request, blocking until {@link #executeRequest} completes.
+     */
+    @Override
+    public HttpResponse performRequest(Request<?> request, Map<String, String> additionalHeaders)
+            throws IOException, AuthFailureError {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final HttpResponse[] response = new HttpResponse[1];
+        final AuthFailureError[] authError = new AuthFailureError[1];
+        final IOException[] ioError = new IOException[1];
+        executeRequest(request, additionalHeaders, new OnRequestComplete() {
+            @Override
+            public void onSuccess(HttpResponse httpResponse) {
+                response[0] = httpResponse;
+                latch.countDown();
+            }
+
+            @Override
+            public void onAuthError(AuthFailureError authFailureError) {
+                authError[0] = authFailureError;
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(IOException ioException) {
+                ioError[0] = ioException;
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (authError[0] != null) {
+            throw authError[0];
+        }
+        if (ioError[0] != null) {
+            throw ioError[0];
+        }
+        return response[0];
+    }
+}
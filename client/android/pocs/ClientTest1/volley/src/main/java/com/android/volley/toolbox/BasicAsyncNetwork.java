@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.SystemClock;
+
+import com.android.volley.AsyncNetwork;
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.VolleyError;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * An asynchronous network performing Volley requests over an {@link AsyncHttpStack}.
+ *
+ * <p>Behaves like {@link BasicNetwork}, including retries, but never blocks a thread while a
+ * request is in flight.</p>
+ */
+public class BasicAsyncNetwork extends AsyncNetwork {
+
+    private static final int DEFAULT_POOL_SIZE = 4096;
+
+    private final AsyncHttpStack mAsyncStack;
+
+    private final ByteArrayPool mPool;
+
+    /**
+     * @param asyncStack HTTP stack to be used
+     */
+    public BasicAsyncNetwork(AsyncHttpStack asyncStack) {
+        this(asyncStack, new ByteArrayPool(DEFAULT_POOL_SIZE));
+    }
+
+    /**
+     * @param asyncStack HTTP stack to be used
+     * @param pool a buffer pool that improves GC performance in copy operations
+     */
+    public BasicAsyncNetwork(AsyncHttpStack asyncStack, ByteArrayPool pool) {
+        mAsyncStack = asyncStack;
+        mPool = pool;
+    }
+
+    @Override
+    public void performRequest(Request<?> request, OnRequestComplete callback) {
+        attempt(request, callback, SystemClock.elapsedRealtime());
+    }
+
+    private void attempt(final Request<?> request, final OnRequestComplete callback,
+            final long requestStart) {
+        Map<String, String> headers = NetworkUtility.getCacheHeaders(request.getCacheEntry());
+        mAsyncStack.executeRequest(request, headers, new AsyncHttpStack.OnRequestComplete() {
+            @Override
+            public void onSuccess(HttpResponse httpResponse) {
+                onResponse(request, callback, requestStart, httpResponse);
+            }
+
+            @Override
+            public void onAuthError(AuthFailureError authFailureError) {
+                request.setCancelAction(null);
+                callback.onError(authFailureError);
+            }
+
+            @Override
+            public void onError(IOException ioException) {
+                onFailure(request, callback, requestStart, ioException, null,
+                        Collections.<String, String>emptyMap(), null);
+            }
+        });
+    }
+
+    private void onResponse(Request<?> request, OnRequestComplete callback, long requestStart,
+            HttpResponse httpResponse) {
+        int statusCode = httpResponse.getStatusLine().getStatusCode();
+        Map<String, String> responseHeaders =
+                BasicNetwork.convertHeaders(httpResponse.getAllHeaders());
+        // Handle cache validation.
+        if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+            request.setCancelAction(null);
+            callback.onSuccess(NetworkUtility.getNotModifiedNetworkResponse(request,
+                    responseHeaders, SystemClock.elapsedRealtime() - requestStart));
+            return;
+        }
+
+        byte[] responseContents;
+        try {
+            // Some responses such as 204s do not have content.
+            if (httpResponse.getEntity() != null) {
+                responseContents = NetworkUtility.entityToBytes(httpResponse.getEntity(), mPool);
+            } else {
+                responseContents = new byte[0];
+            }
+        } catch (VolleyError e) {
+            request.setCancelAction(null);
+            callback.onError(e);
+            return;
+        } catch (IOException e) {
+            onFailure(request, callback, requestStart, e, httpResponse, responseHeaders, null);
+            return;
+        }
+        // The response has been read; nothing is left to abort.
+        request.setCancelAction(null);
+
+        long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
+        NetworkUtility.logSlowRequests(requestLifetime, request, responseContents, statusCode);
+
+        if (statusCode < 200 || statusCode > 299) {
+            onFailure(request, callback, requestStart, new IOException(), httpResponse,
+                    responseHeaders, responseContents);
+            return;
+        }
+        callback.onSuccess(new NetworkResponse(statusCode, responseContents, responseHeaders,
+                false, SystemClock.elapsedRealtime() - requestStart));
+    }
+
+    /** Either retries the request or delivers the error, as {@link BasicNetwork} would. */
+    private void onFailure(Request<?> request, OnRequestComplete callback, long requestStart,
+            IOException exception, HttpResponse httpResponse,
+            Map<String, String> responseHeaders, byte[] responseContents) {
+        // Cleared before any retry, which may set an action of its own.
+        request.setCancelAction(null);
+        try {
+            NetworkUtility.handleException(request, exception, requestStart, httpResponse,
+                    responseHeaders, responseContents);
+        } catch (VolleyError e) {
+            callback.onError(e);
+            return;
+        } catch (RuntimeException e) {
+            // A bad URL; there's no dispatcher frame above us to catch it.
+            callback.onError(new VolleyError(e));
+            return;
+        }
+        attempt(request, callback, requestStart);
+    }
+}
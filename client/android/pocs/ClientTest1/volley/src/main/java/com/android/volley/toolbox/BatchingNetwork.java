@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import com.android.volley.AsyncNetwork;
+import com.android.volley.AuthFailureError;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.android.volley.VolleyLog;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A network which sends GET requests to the host of a batch endpoint together, as a single
+ * HTTP exchange with that endpoint.
+ *
+ * <p>Batchable requests are held for a short window, or until enough of them have gathered,
+ * and then posted to the batch URL as a JSON array with one object per request:</p>
+ *
+ * <pre>
+ * [{"method": "GET", "url": "http://example.com/a?b=c", "headers": {"Accept": "..."}}, ...]
+ * </pre>
+ *
+ * <p>The endpoint must answer with a JSON array holding one object per request, in the same
+ * order:</p>
+ *
+ * <pre>
+ * [{"status": 200, "headers": {"Cache-Control": "..."}, "body": "..."}, ...]
+ * </pre>
+ *
+ * <p>Each of these is turned into the {@link NetworkResponse} of its request, so caching,
+ * parsing and delivery are unaffected. Bodies are carried as text, which makes batching suited
+ * to small textual responses such as JSON. Other requests, and batches of a single request, are
+ * performed by the wrapped network.</p>
+ */
+public class BatchingNetwork extends AsyncNetwork {
+
+    /** How long a request waits for others to join its batch by default. */
+    public static final int DEFAULT_WINDOW_MS = 10;
+
+    /** The largest batch sent by default. */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 20;
+
+    private static final String PROTOCOL_CHARSET = "utf-8";
+
+    /** The network performing batches and requests which aren't batched. */
+    private final Network mNetwork;
+
+    private final String mBatchUrl;
+
+    /** The scheme, host and port of {@link #mBatchUrl}. */
+    private final String mBatchOrigin;
+
+    private final int mWindowMs;
+
+    private final int mMaxBatchSize;
+
+    /** Fires the end of batching windows. */
+    private final ScheduledThreadPoolExecutor mTimer;
+
+    /** Performs batches. */
+    private final Executor mSendExecutor;
+
+    private final Object mLock = new Object();
+
+    /** Requests waiting for their batch to be sent. Guarded by {@link #mLock}. */
+    private List<Entry> mPending = new ArrayList<Entry>();
+
+    /** Sends the pending batch at the end of its window. Guarded by {@link #mLock}. */
+    private ScheduledFuture<?> mScheduledFlush;
+
+    /** A request waiting in, or sent as part of, a batch. */
+    private static class Entry {
+        final Request<?> request;
+        final OnRequestComplete callback;
+        final Map<String, String> headers;
+        final long requestStart;
+
+        Entry(Request<?> request, OnRequestComplete callback, Map<String, String> headers,
+                long requestStart) {
+            this.request = request;
+            this.callback = callback;
+            this.headers = headers;
+            this.requestStart = requestStart;
+        }
+    }
+
+    /**
+     * @param network Network performing the batches and any request which isn't batched
+     * @param batchUrl URL of the batch endpoint; requests to other origins are never batched
+     */
+    public BatchingNetwork(Network network, String batchUrl) {
+        this(network, batchUrl, DEFAULT_WINDOW_MS, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * @param network Network performing the batches and any request which isn't batched
+     * @param batchUrl URL of the batch endpoint; requests to other origins are never batched
+     * @param windowMs How long a request waits for others to join its batch
+     * @param maxBatchSize Number of requests at which a batch is sent without waiting any longer
+     */
+    public BatchingNetwork(Network network, String batchUrl, int windowMs, int maxBatchSize) {
+        mNetwork = network;
+        mBatchUrl = batchUrl;
+        mBatchOrigin = getOrigin(batchUrl);
+        mWindowMs = windowMs;
+        mMaxBatchSize = maxBatchSize;
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Volley-Batch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        mTimer = new ScheduledThreadPoolExecutor(1, threadFactory);
+        mTimer.setKeepAliveTime(1, TimeUnit.SECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+        mSendExecutor = Executors.newCachedThreadPool(threadFactory);
+    }
+
+    /**
+     * Returns whether the given request may be sent as part of a batch. By default, GET requests
+     * to the origin of the batch endpoint are.
+     */
+    protected boolean isBatchable(Request<?> request) {
+        return request.getMethod() == Request.Method.GET
+                && mBatchOrigin.equals(getOrigin(request.getUrl()))
+                && !mBatchUrl.equals(request.getUrl());
+    }
+
+    @Override
+    public void performRequest(Request<?> request, OnRequestComplete callback) {
+        if (!isBatchable(request)) {
+            performDirectly(request, callback);
+            return;
+        }
+        Map<String, String> headers;
+        try {
+            headers = new TreeMap<String, String>(request.getHeaders());
+        } catch (AuthFailureError e) {
+            callback.onError(e);
+            return;
+        }
+        headers.putAll(NetworkUtility.getCacheHeaders(request.getCacheEntry()));
+        enqueue(new Entry(request, callback, headers, SystemClock.elapsedRealtime()));
+    }
+
+    private void enqueue(Entry entry) {
+        List<Entry> batch = null;
+        synchronized (mLock) {
+            mPending.add(entry);
+            if (mPending.size() >= mMaxBatchSize) {
+                batch = takePendingLocked();
+            } else if (mScheduledFlush == null) {
+                mScheduledFlush = mTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<Entry> batch;
+                        synchronized (mLock) {
+                            mScheduledFlush = null;
+                            batch = takePendingLocked();
+                        }
+                        sendInBackground(batch);
+                    }
+                }, mWindowMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (batch != null) {
+            sendInBackground(batch);
+        }
+    }
+
+    private List<Entry> takePendingLocked() {
+        if (mScheduledFlush != null) {
+            mScheduledFlush.cancel(false);
+            mScheduledFlush = null;
+        }
+        List<Entry> batch = mPending;
+        mPending = new ArrayList<Entry>();
+        return batch;
+    }
+
+    private void sendInBackground(final List<Entry> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        mSendExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                send(batch);
+            }
+        });
+    }
+
+    private void send(List<Entry> batch) {
+        // Entries are taken off this list before being handed to their callback or queued
+        // again, so that whatever is left can be failed if anything throws.
+        LinkedList<Entry> remaining = new LinkedList<Entry>(batch);
+        try {
+            send(remaining);
+        } catch (RuntimeException e) {
+            VolleyLog.e(e, "Failed to send batch");
+            VolleyError error = new VolleyError(e);
+            Entry entry;
+            while ((entry = remaining.poll()) != null) {
+                entry.callback.onError(error);
+            }
+        }
+    }
+
+    private void send(LinkedList<Entry> remaining) {
+        // Don't spend part of the batch on requests nobody is waiting for anymore.
+        for (Iterator<Entry> it = remaining.iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.request.isCanceled()) {
+                it.remove();
+                entry.callback.onError(new VolleyError("Request cancelled before batching"));
+            }
+        }
+        if (remaining.isEmpty()) {
+            return;
+        }
+        if (remaining.size() == 1) {
+            Entry entry = remaining.poll();
+            performDirectly(entry.request, entry.callback);
+            return;
+        }
+
+        int count = remaining.size();
+        List<NetworkResponse> responses;
+        try {
+            BatchRequest batchRequest = new BatchRequest(mBatchUrl, remaining);
+            responses = parseBatchResponse(mNetwork.performRequest(batchRequest), count);
+        } catch (VolleyError e) {
+            for (int i = 0; i < count; i++) {
+                onBatchError(remaining.poll(), e);
+            }
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            onResponse(remaining.poll(), responses.get(i));
+        }
+    }
+
+    /** Completes a request with its part of a batch response, or queues it for a retry. */
+    private void onResponse(Entry entry, NetworkResponse response) {
+        long requestLifetime = SystemClock.elapsedRealtime() - entry.requestStart;
+        if (response.statusCode == HttpStatus.SC_NOT_MODIFIED) {
+            entry.callback.onSuccess(NetworkUtility.getNotModifiedNetworkResponse(
+                    entry.request, response.headers, requestLifetime));
+            return;
+        }
+        NetworkUtility.logSlowRequests(requestLifetime, entry.request, response.data,
+                response.statusCode);
+        if (response.statusCode >= 200 && response.statusCode <= 299) {
+            entry.callback.onSuccess(new NetworkResponse(response.statusCode, response.data,
+                    response.headers, false, requestLifetime));
+            return;
+        }
+        retryOrFail(entry, new IOException(), response);
+    }
+
+    /**
+     * Fails a request whose batch failed as a whole, or queues it for a retry if its own
+     * retry policy allows one.
+     */
+    private void onBatchError(Entry entry, VolleyError error) {
+        if (error instanceof ParseError) {
+            // The endpoint answered, but not as expected; sending again won't help.
+            entry.callback.onError(error);
+            return;
+        }
+        IOException exception = error instanceof TimeoutError
+                ? new SocketTimeoutException() : new IOException(error);
+        retryOrFail(entry, exception, error.networkResponse);
+    }
+
+    /**
+     * Runs a failed attempt through the request's retry policy, as for an unbatched request:
+     * fails the request if it allows no other attempt, and otherwise joins the next batch.
+     * @param response The response to the attempt, or null if there was none
+     */
+    private void retryOrFail(Entry entry, IOException exception, NetworkResponse response) {
+        try {
+            if (response != null) {
+                NetworkUtility.handleException(entry.request, exception, entry.requestStart,
+                        new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1),
+                                response.statusCode, ""),
+                        response.headers, response.data);
+            } else {
+                NetworkUtility.handleException(entry.request, exception, entry.requestStart,
+                        null, null, null);
+            }
+        } catch (VolleyError e) {
+            entry.callback.onError(e);
+            return;
+        }
+        // The retry policy allows another attempt; join the next batch.
+        enqueue(entry);
+    }
+
+    private void performDirectly(Request<?> request, OnRequestComplete callback) {
+        if (mNetwork instanceof AsyncNetwork) {
+            try {
+                ((AsyncNetwork) mNetwork).performRequest(request, callback);
+            } catch (RuntimeException e) {
+                VolleyLog.e(e, "Failed to perform %s", request.getUrl());
+                callback.onError(new VolleyError(e));
+            }
+            return;
+        }
+        NetworkResponse response;
+        try {
+            response = mNetwork.performRequest(request);
+        } catch (VolleyError e) {
+            callback.onError(e);
+            return;
+        } catch (RuntimeException e) {
+            VolleyLog.e(e, "Failed to perform %s", request.getUrl());
+            callback.onError(new VolleyError(e));
+            return;
+        }
+        callback.onSuccess(response);
+    }
+
+    /**
+     * Splits a batch response into the responses of the requests it holds, in order. Only the
+     * status code, headers and body of the returned responses are meaningful.
+     */
+    private static List<NetworkResponse> parseBatchResponse(NetworkResponse batchResponse,
+            int expectedCount) throws ParseError {
+        try {
+            JSONArray parts = new JSONArray(new String(batchResponse.data, PROTOCOL_CHARSET));
+            if (parts.length() != expectedCount) {
+                throw new ParseError(batchResponse);
+            }
+            List<NetworkResponse> responses = new ArrayList<NetworkResponse>(expectedCount);
+            for (int i = 0; i < expectedCount; i++) {
+                JSONObject part = parts.getJSONObject(i);
+                Map<String, String> headers =
+                        new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+                JSONObject partHeaders = part.optJSONObject("headers");
+                if (partHeaders != null) {
+                    Iterator<?> names = partHeaders.keys();
+                    while (names.hasNext()) {
+                        String name = (String) names.next();
+                        headers.put(name, partHeaders.getString(name));
+                    }
+                }
+                byte[] body = part.optString("body", "").getBytes(PROTOCOL_CHARSET);
+                responses.add(new NetworkResponse(part.getInt("status"), body, headers, false));
+            }
+            return responses;
+        } catch (UnsupportedEncodingException e) {
+            throw new ParseError(e);
+        } catch (JSONException e) {
+            throw new ParseError(e);
+        }
+    }
+
+    private static String getOrigin(String url) {
+        Uri uri = Uri.parse(url);
+        return uri.getScheme() + "://" + uri.getEncodedAuthority();
+    }
+
+    /** The request sent to the batch endpoint on behalf of several others. */
+    private static class BatchRequest extends Request<byte[]> {
+        private final byte[] mBody;
+
+        BatchRequest(String batchUrl, List<Entry> batch) throws VolleyError {
+            super(Method.POST, batchUrl, null);
+            setShouldCache(false);
+            int timeoutMs = 0;
+            JSONArray parts = new JSONArray();
+            try {
+                for (Entry entry : batch) {
+                    JSONObject part = new JSONObject();
+                    part.put("method", "GET");
+                    part.put("url", entry.request.getUrl());
+                    part.put("headers", new JSONObject(entry.headers));
+                    parts.put(part);
+                    timeoutMs = Math.max(timeoutMs, entry.request.getTimeoutMs());
+                }
+                mBody = parts.toString().getBytes(PROTOCOL_CHARSET);
+            } catch (JSONException e) {
+                throw new VolleyError(e);
+            } catch (UnsupportedEncodingException e) {
+                throw new VolleyError(e);
+            }
+            // The batch is answered once its slowest part is.
+            setRetryPolicy(new DefaultRetryPolicy(timeoutMs, 0,
+                    DefaultRetryPolicy.DEFAULT_BACKOFF_MULT));
+            if (VolleyLog.DEBUG) {
+                VolleyLog.v("Batching %d requests to %s", batch.size(), batchUrl);
+            }
+        }
+
+        @Override
+        public String getBodyContentType() {
+            return "application/json; charset=" + PROTOCOL_CHARSET;
+        }
+
+        @Override
+        public byte[] getBody() {
+            return mBody;
+        }
+
+        @Override
+        protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
+            return Response.success(response.data, null);
+        }
+
+        @Override
+        protected void deliverResponse(byte[] response) {
+        }
+    }
+}
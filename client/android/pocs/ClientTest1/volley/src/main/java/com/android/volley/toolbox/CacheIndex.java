@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import java.util.Arrays;
+
+/**
+ * In-memory index of the entries of a {@link DiskBasedCache}, kept in primitive arrays rather
+ * than one object per entry.
+ *
+ * <p>Entries are identified by a 64-bit id derived from their key, and are addressed by an
+ * int handle which stays valid until the entry is removed. An open-addressing hash table with
+ * linear probing maps ids to handles, and a doubly linked list threaded through the arrays
+ * keeps the entries in least recently used order. Not thread safe.
+ */
+/* package */ class CacheIndex {
+
+    /** Returned in place of a handle when there is no such entry. */
+    /* package */ static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Per-entry fields, indexed by handle. */
+    private long[] mIds;
+    private int[] mSizes;
+    private long[] mTtls;
+    private long[] mSoftTtls;
+    private int[] mDataOffsets;
+
+    /** Links of the LRU list, indexed by handle. mNewer also links the free handles. */
+    private int[] mOlder;
+    private int[] mNewer;
+
+    /** Hash table of handle + 1, 0 marking an empty slot; twice as long as the arrays. */
+    private int[] mTable;
+
+    private int mEldest = NONE;
+    private int mNewest = NONE;
+    private int mFree = NONE;
+    /** Handles at or above this one have never been used. */
+    private int mUnused;
+    private int mSize;
+
+    /* package */ CacheIndex() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /** Returns the number of entries. */
+    /* package */ int size() {
+        return mSize;
+    }
+
+    /** Returns the handle of the entry with the given id, or {@link #NONE}. */
+    /* package */ int find(long id) {
+        int mask = mTable.length - 1;
+        for (int slot = slotFor(id, mask); mTable[slot] != 0; slot = (slot + 1) & mask) {
+            int entry = mTable[slot] - 1;
+            if (mIds[entry] == id) {
+                return entry;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Adds an entry, or updates the entry with the same id, and makes it the most recently
+     * used one.
+     * @return The handle of the entry.
+     */
+    /* package */ int put(long id, int size, long ttl, long softTtl, int dataOffset) {
+        int entry = find(id);
+        if (entry == NONE) {
+            entry = allocateEntry();
+            mIds[entry] = id;
+            insertIntoTable(entry);
+            linkNewest(entry);
+            mSize++;
+        } else {
+            moveToNewest(entry);
+        }
+        mSizes[entry] = size;
+        mTtls[entry] = ttl;
+        mSoftTtls[entry] = softTtl;
+        mDataOffsets[entry] = dataOffset;
+        return entry;
+    }
+
+    /** Removes an entry. Its handle may be reused by the next put. */
+    /* package */ void remove(int entry) {
+        removeFromTable(entry);
+        unlink(entry);
+        mNewer[entry] = mFree;
+        mFree = entry;
+        mSize--;
+    }
+
+    /** Removes all entries. */
+    /* package */ void clear() {
+        allocate(INITIAL_CAPACITY);
+        mEldest = NONE;
+        mNewest = NONE;
+        mFree = NONE;
+        mUnused = 0;
+        mSize = 0;
+    }
+
+    /** Makes an entry the most recently used one. */
+    /* package */ void moveToNewest(int entry) {
+        if (entry != mNewest) {
+            unlink(entry);
+            linkNewest(entry);
+        }
+    }
+
+    /** Returns the handle of the least recently used entry, or {@link #NONE}. */
+    /* package */ int getEldest() {
+        return mEldest;
+    }
+
+    /** Returns the handle of the entry used next after the given one, or {@link #NONE}. */
+    /* package */ int getNewer(int entry) {
+        return mNewer[entry];
+    }
+
+    /* package */ long getId(int entry) {
+        return mIds[entry];
+    }
+
+    /* package */ int getSize(int entry) {
+        return mSizes[entry];
+    }
+
+    /* package */ long getTtl(int entry) {
+        return mTtls[entry];
+    }
+
+    /* package */ long getSoftTtl(int entry) {
+        return mSoftTtls[entry];
+    }
+
+    /** Returns the offset of the entry's data in its file, after the header. */
+    /* package */ int getDataOffset(int entry) {
+        return mDataOffsets[entry];
+    }
+
+    /** Returns the number of bytes taken by the elements of the arrays. */
+    // Visible for testing.
+    /* package */ long getArrayBytes() {
+        return 8L * (mIds.length + mTtls.length + mSoftTtls.length)
+                + 4L * (mSizes.length + mDataOffsets.length + mOlder.length + mNewer.length
+                        + mTable.length);
+    }
+
+    private void allocate(int capacity) {
+        mIds = new long[capacity];
+        mSizes = new int[capacity];
+        mTtls = new long[capacity];
+        mSoftTtls = new long[capacity];
+        mDataOffsets = new int[capacity];
+        mOlder = new int[capacity];
+        mNewer = new int[capacity];
+        mTable = new int[capacity * 2];
+    }
+
+    private int allocateEntry() {
+        if (mFree != NONE) {
+            int entry = mFree;
+            mFree = mNewer[entry];
+            return entry;
+        }
+        if (mUnused == mIds.length) {
+            grow();
+        }
+        return mUnused++;
+    }
+
+    /** Doubles the capacity of the arrays and rehashes the table. */
+    private void grow() {
+        int capacity = mIds.length * 2;
+        mIds = Arrays.copyOf(mIds, capacity);
+        mSizes = Arrays.copyOf(mSizes, capacity);
+        mTtls = Arrays.copyOf(mTtls, capacity);
+        mSoftTtls = Arrays.copyOf(mSoftTtls, capacity);
+        mDataOffsets = Arrays.copyOf(mDataOffsets, capacity);
+        mOlder = Arrays.copyOf(mOlder, capacity);
+        mNewer = Arrays.copyOf(mNewer, capacity);
+        mTable = new int[capacity * 2];
+        // The table only holds live entries, which are all on the LRU list.
+        for (int entry = mEldest; entry != NONE; entry = mNewer[entry]) {
+            insertIntoTable(entry);
+        }
+    }
+
+    private void insertIntoTable(int entry) {
+        int mask = mTable.length - 1;
+        int slot = slotFor(mIds[entry], mask);
+        while (mTable[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        mTable[slot] = entry + 1;
+    }
+
+    /**
+     * Removes an entry from the table, shifting back the entries probed past it so that
+     * lookups don't need tombstones.
+     */
+    private void removeFromTable(int entry) {
+        int mask = mTable.length - 1;
+        int hole = slotFor(mIds[entry], mask);
+        while (mTable[hole] != entry + 1) {
+            hole = (hole + 1) & mask;
+        }
+        for (int slot = (hole + 1) & mask; mTable[slot] != 0; slot = (slot + 1) & mask) {
+            int home = slotFor(mIds[mTable[slot] - 1], mask);
+            // The entry can fill the hole unless its home slot lies cyclically after the hole.
+            boolean homeAfterHole = hole <= slot
+                    ? hole < home && home <= slot
+                    : hole < home || home <= slot;
+            if (!homeAfterHole) {
+                mTable[hole] = mTable[slot];
+                hole = slot;
+            }
+        }
+        mTable[hole] = 0;
+    }
+
+    private void linkNewest(int entry) {
+        mOlder[entry] = mNewest;
+        mNewer[entry] = NONE;
+        if (mNewest != NONE) {
+            mNewer[mNewest] = entry;
+        } else {
+            mEldest = entry;
+        }
+        mNewest = entry;
+    }
+
+    private void unlink(int entry) {
+        int older = mOlder[entry];
+        int newer = mNewer[entry];
+        if (older != NONE) {
+            mNewer[older] = newer;
+        } else {
+            mEldest = newer;
+        }
+        if (newer != NONE) {
+            mOlder[newer] = older;
+        } else {
+            mNewest = older;
+        }
+    }
+
+    private static int slotFor(long id, int mask) {
+        long hash = id * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & mask;
+    }
+}
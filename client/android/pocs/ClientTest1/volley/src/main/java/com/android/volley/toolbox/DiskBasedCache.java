@@ -18,11 +18,13 @@ package com.android.volley.toolbox;
 
 import android.os.SystemClock;
 
-import com.android.volley.Cache;
+import com.android.volley.ByteBufferCache;
 import com.android.volley.VolleyLog;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -31,25 +33,57 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Cache implementation that caches files directly onto the hard disk in the specified
  * directory. The default disk usage size is 5MB, but is configurable.
+ *
+ * <p>The index of entries is kept in an append-only journal next to the cached files, so
+ * that {@link #initialize()} replays a single file instead of opening every entry; files
+ * the journal doesn't account for, left by a crash, are then deleted by name. The
+ * journal is compacted once it is mostly stale records, and rebuilt from the headers of
+ * the cached files when it is missing or corrupt. The index holds a few primitive fields per
+ * entry; the rest of its header, response headers included, is only read from the entry's
+ * file when the entry is returned. The index can be loaded in the background,
+ * see {@link #setInitializationMode(InitializationMode)}.
+ *
+ * <p>Entries with different keys are read and written concurrently: the files of entries are
+ * only accessed under per-key locks, striped over {@link #KEY_LOCK_STRIPES} locks, while the
+ * index is only locked briefly to look up and update entries.
  */
-public class DiskBasedCache implements Cache {
+public class DiskBasedCache implements ByteBufferCache {
 
-    /** Map of the Key, CacheHeader pairs */
-    private final Map<String, CacheHeader> mEntries =
-            new LinkedHashMap<String, CacheHeader>(16, .75f, true);
+    /** Index of the entries by key id, in least recently used order. */
+    private final CacheIndex mEntries = new CacheIndex();
 
     /** Total amount of space currently used by the cache in bytes. */
     private long mTotalSize = 0;
 
+    /** Number of locks the entries are spread over by key id; a power of two. */
+    private static final int KEY_LOCK_STRIPES = 32;
+
+    /**
+     * Locks serializing the reads and writes of entry files, picked by key id. A key's lock
+     * is taken before the monitor of the cache, which guards the index, the total size and
+     * the journal and is never held while an entry's file is read or written.
+     */
+    private final ReentrantLock[] mKeyLocks = new ReentrantLock[KEY_LOCK_STRIPES];
+
     /** The root directory to use for the cache. */
     private final File mRootDirectory;
 
@@ -65,6 +99,100 @@ public class DiskBasedCache implements Cache {
     /** Magic number for current version of cache file format. */
     private static final int CACHE_MAGIC = 0x20150306;
 
+    /** Name of the journal file in the root directory. */
+    // Visible for testing.
+    static final String JOURNAL_FILE_NAME = "journal";
+
+    /** Suffix of the files entries and the journal are written to before replacing them. */
+    private static final String TMP_FILE_SUFFIX = ".tmp";
+
+    /** Name of the file a compacted journal is written to before replacing the journal. */
+    private static final String JOURNAL_TMP_FILE_NAME = JOURNAL_FILE_NAME + TMP_FILE_SUFFIX;
+
+    /**
+     * Data at least this large is memory-mapped by {@link #getAsBuffer(String)}; mapping
+     * smaller data costs more than reading it.
+     */
+    private static final int MIN_MAPPED_BYTES = 32 * 1024;
+
+    /** Magic number for current version of journal file format. */
+    private static final int JOURNAL_MAGIC = 0x20161001;
+
+    /** Journal record types. */
+    private static final int JOURNAL_PUT = 1;
+    private static final int JOURNAL_REMOVE = 2;
+    private static final int JOURNAL_READ = 3;
+
+    /**
+     * Number of records the journal may hold before it is compacted, if at least half of
+     * them are stale.
+     */
+    // Visible for testing.
+    static final int JOURNAL_COMPACT_THRESHOLD = 2000;
+
+    /** Number of journal records replayed into the index at a time while it loads. */
+    private static final int JOURNAL_REPLAY_BATCH_SIZE = 256;
+
+    /** The journal file, listing puts, removes and reads of entries in order. */
+    private final File mJournalFile;
+
+    /**
+     * Appends to the journal, or to {@link #mPendingJournal} while the index is loading;
+     * null until the cache is initialized.
+     */
+    private OutputStream mJournalWriter;
+
+    /** Number of records in the journal, live or stale. */
+    private int mJournalRecordCount;
+
+    /** Journal records of changes made while the index is loading, or null. */
+    private ByteArrayOutputStream mPendingJournal;
+
+    /** Number of threads reading file headers when the index is rebuilt from the files. */
+    private static final int SCAN_THREADS = 4;
+
+    private static final ThreadFactory sScanThreadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Volley-CacheScan");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    /**
+     * How {@link #initialize()} loads the index of entries, and how lookups made while it is
+     * loading behave.
+     */
+    public enum InitializationMode {
+        /** {@link #initialize()} returns once the index is loaded. */
+        BLOCKING,
+        /**
+         * {@link #initialize()} returns immediately. Lookups of entries not indexed yet wait
+         * until they are, or until loading completes.
+         */
+        ASYNC_WAIT_WHILE_LOADING,
+        /**
+         * {@link #initialize()} returns immediately. Lookups of entries not indexed yet are
+         * misses, so their requests go to the network.
+         */
+        ASYNC_MISS_WHILE_LOADING
+    }
+
+    private InitializationMode mInitializationMode = InitializationMode.BLOCKING;
+
+    /** Whether the index is being loaded. */
+    private boolean mLoading;
+
+    /** File names of entries put or removed while the index is loading. */
+    private final Set<String> mChangedWhileLoading = new HashSet<String>();
+
+    /** Incremented by clear(), to discard the index being loaded. */
+    private int mGeneration;
+
+    /** Number of lookups waiting for the index to load. */
+    private int mWaitingLookups;
+
     /**
      * Constructs an instance of the DiskBasedCache at the specified directory.
      * @param rootDirectory The root directory of the cache.
@@ -73,6 +201,10 @@ public class DiskBasedCache implements Cache {
     public DiskBasedCache(File rootDirectory, int maxCacheSizeInBytes) {
         mRootDirectory = rootDirectory;
         mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mJournalFile = new File(rootDirectory, JOURNAL_FILE_NAME);
+        for (int i = 0; i < KEY_LOCK_STRIPES; i++) {
+            mKeyLocks[i] = new ReentrantLock();
+        }
     }
 
     /**
@@ -88,7 +220,31 @@ public class DiskBasedCache implements Cache {
      * Clears the cache. Deletes all cached files from disk.
      */
     @Override
-    public synchronized void clear() {
+    public void clear() {
+        // With every key's lock held, no entry file is being read or written.
+        for (ReentrantLock lock : mKeyLocks) {
+            lock.lock();
+        }
+        try {
+            clearFilesAndIndex();
+        } finally {
+            for (ReentrantLock lock : mKeyLocks) {
+                lock.unlock();
+            }
+        }
+    }
+
+    private synchronized void clearFilesAndIndex() {
+        boolean journaling = mJournalWriter != null;
+        closeJournal();
+        // Whatever is still being loaded is gone too.
+        mGeneration++;
+        if (mLoading) {
+            mPendingJournal = null;
+            mLoading = false;
+            mChangedWhileLoading.clear();
+            notifyAll();
+        }
         File[] files = mRootDirectory.listFiles();
         if (files != null) {
             for (File file : files) {
@@ -97,6 +253,9 @@ public class DiskBasedCache implements Cache {
         }
         mEntries.clear();
         mTotalSize = 0;
+        if (journaling) {
+            rebuildJournal();
+        }
         VolleyLog.d("Cache cleared.");
     }
 
@@ -104,100 +263,618 @@ public class DiskBasedCache implements Cache {
      * Returns the cache entry with the specified key if it exists, null otherwise.
      */
     @Override
-    public synchronized Entry get(String key) {
-        CacheHeader entry = mEntries.get(key);
-        // if the entry does not exist, return.
-        if (entry == null) {
+    public Entry get(String key) {
+        long id = getKeyId(key);
+        if (!awaitEntry(id)) {
+            return null;
+        }
+
+        File file = getFileForKey(key);
+        ReentrantLock lock = getLockForKeyId(id);
+        lock.lock();
+        try {
+            // The entry may have been removed since it was looked up.
+            if (findDataOffset(id) < 0) {
+                return null;
+            }
+            CountingInputStream cis = null;
+            try {
+                cis = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+                CacheHeader header = CacheHeader.readHeader(cis);
+                if (!key.equals(header.key)) {
+                    // The file belongs to another key with the same file name.
+                    VolleyLog.d("%s: key=%s, found key=%s",
+                            file.getAbsolutePath(), key, header.key);
+                    return null;
+                }
+                byte[] data = streamToBytes(cis, (int) (file.length() - cis.bytesRead));
+                markRead(id);
+                return header.toCacheEntry(data);
+            } catch (IOException e) {
+                VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+                remove(key);
+                return null;
+            } finally {
+                if (cis != null) {
+                    try {
+                        cis.close();
+                    } catch (IOException ioe) {
+                        return null;
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the cache entry with the specified key if it exists, null otherwise. Its data is
+     * not copied to the heap: it is returned as a read-only buffer, memory-mapped from the
+     * entry's file for large entries and read with a single positional read for small ones.
+     */
+    @Override
+    public Entry getAsBuffer(String key) {
+        long id = getKeyId(key);
+        if (!awaitEntry(id)) {
             return null;
         }
 
         File file = getFileForKey(key);
-        CountingInputStream cis = null;
+        ReentrantLock lock = getLockForKeyId(id);
+        lock.lock();
+        RandomAccessFile raf = null;
         try {
-            cis = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
-            CacheHeader.readHeader(cis); // eat header
-            byte[] data = streamToBytes(cis, (int) (file.length() - cis.bytesRead));
-            return entry.toCacheEntry(data);
+            // The index knows where the header ends, so no stream needs to parse up to there.
+            int dataOffset = findDataOffset(id);
+            if (dataOffset < 0) {
+                return null;
+            }
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            long dataLength = channel.size() - dataOffset;
+            if (dataLength < 0) {
+                throw new IOException("File shorter than its header");
+            }
+            ByteBuffer headerBytes = ByteBuffer.allocate(dataOffset);
+            readFully(channel, headerBytes, 0);
+            ByteArrayInputStream headerStream = new ByteArrayInputStream(headerBytes.array());
+            CacheHeader header = CacheHeader.readHeader(headerStream);
+            if (headerStream.available() != 0) {
+                throw new IOException("Header shorter than indexed");
+            }
+            if (!key.equals(header.key)) {
+                // The file belongs to another key with the same file name.
+                VolleyLog.d("%s: key=%s, found key=%s", file.getAbsolutePath(), key, header.key);
+                return null;
+            }
+            ByteBuffer data;
+            if (dataLength >= MIN_MAPPED_BYTES) {
+                data = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset, dataLength);
+            } else {
+                data = ByteBuffer.allocate((int) dataLength);
+                readFully(channel, data, dataOffset);
+                data.flip();
+            }
+            markRead(id);
+            Entry result = header.toCacheEntry(null);
+            result.dataBuffer = data.asReadOnlyBuffer();
+            return result;
         } catch (IOException e) {
             VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
             remove(key);
             return null;
         } finally {
-            if (cis != null) {
+            if (raf != null) {
                 try {
-                    cis.close();
-                } catch (IOException ioe) {
-                    return null;
-                }
+                    raf.close();
+                } catch (IOException ignored) { }
             }
+            lock.unlock();
         }
     }
 
     /**
-     * Initializes the DiskBasedCache by scanning for all files currently in the
-     * specified root directory. Creates the root directory if necessary.
+     * Returns whether an entry with the given id is indexed. While the index is loading, waits
+     * for the entry unless in {@link InitializationMode#ASYNC_MISS_WHILE_LOADING} mode.
+     */
+    private synchronized boolean awaitEntry(long id) {
+        int entry = mEntries.find(id);
+        if (entry == CacheIndex.NONE && mLoading
+                && mInitializationMode != InitializationMode.ASYNC_MISS_WHILE_LOADING) {
+            entry = waitForIndex(id);
+        }
+        return entry != CacheIndex.NONE;
+    }
+
+    /**
+     * Returns the offset of the data in the file of the entry with the given id, or -1 if
+     * there is no such entry.
+     */
+    private synchronized int findDataOffset(long id) {
+        int entry = mEntries.find(id);
+        return entry != CacheIndex.NONE ? mEntries.getDataOffset(entry) : -1;
+    }
+
+    /**
+     * Makes the entry with the given id, if it is still indexed, the most recently used one.
+     */
+    private synchronized void markRead(long id) {
+        int entry = mEntries.find(id);
+        if (entry != CacheIndex.NONE) {
+            mEntries.moveToNewest(entry);
+            appendToJournal(JOURNAL_READ, id, false);
+        }
+    }
+
+    /**
+     * Returns the lock guarding the file of the entries with the given id.
+     */
+    private ReentrantLock getLockForKeyId(long id) {
+        int hash = (int) (id ^ (id >>> 32));
+        return mKeyLocks[(hash ^ (hash >>> 16)) & (KEY_LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Fills the remaining space of a buffer from the channel, starting at the given position.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        long offset = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Initializes the DiskBasedCache by replaying its journal, or if there is no usable
+     * journal, by reading the headers of all files currently in the specified root directory
+     * in parallel and writing a new journal. Creates the root directory if necessary.
+     *
+     * <p>Unless the cache is in {@link InitializationMode#BLOCKING} mode, the index is loaded
+     * on a background thread and this returns immediately.
      */
     @Override
-    public synchronized void initialize() {
-        if (!mRootDirectory.exists()) {
-            if (!mRootDirectory.mkdirs()) {
-                VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+    public void initialize() {
+        final int generation;
+        boolean blocking;
+        synchronized (this) {
+            if (mLoading) {
+                return;
             }
+            if (!mRootDirectory.exists()) {
+                if (!mRootDirectory.mkdirs()) {
+                    VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+                    return;
+                }
+                rebuildJournal();
+                return;
+            }
+
+            // Changes made while the index loads are journaled once it is loaded.
+            closeJournal();
+            mPendingJournal = new ByteArrayOutputStream();
+            mJournalWriter = mPendingJournal;
+            mJournalRecordCount = 0;
+            mLoading = true;
+            generation = mGeneration;
+            blocking = mInitializationMode == InitializationMode.BLOCKING;
+        }
+        if (blocking) {
+            loadIndex(generation);
             return;
         }
+        Thread loader = new Thread("Volley-CacheLoader") {
+            @Override
+            public void run() {
+                loadIndex(generation);
+            }
+        };
+        loader.setDaemon(true);
+        loader.start();
+    }
 
-        File[] files = mRootDirectory.listFiles();
+    /**
+     * Sets how {@link #initialize()} loads the index and how lookups made meanwhile behave.
+     * Must be called before the cache is initialized; defaults to
+     * {@link InitializationMode#BLOCKING}.
+     */
+    public synchronized void setInitializationMode(InitializationMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode must not be null");
+        }
+        mInitializationMode = mode;
+    }
+
+    /**
+     * Loads the index from the journal, or from the files if the journal is unusable, then
+     * switches journaling from the pending buffer to the journal file.
+     * @param generation The value of {@link #mGeneration} when loading started; a clear()
+     *     since then discards whatever is loaded.
+     */
+    private void loadIndex(int generation) {
+        boolean replayed = replayJournal(generation);
+        File[] files = null;
+        if (!replayed) {
+            scanFiles(generation);
+        } else {
+            files = mRootDirectory.listFiles();
+        }
+        synchronized (this) {
+            if (generation != mGeneration) {
+                return;
+            }
+            if (replayed) {
+                deleteUnindexedFiles(files);
+            }
+            finishLoading(replayed);
+        }
+        pruneIfNeeded(0);
+    }
+
+    /**
+     * Replays the journal into the in-memory index as it is read, applying the records in
+     * batches of {@link #JOURNAL_REPLAY_BATCH_SIZE} so that lookups waiting for an entry are
+     * served as soon as it is indexed.
+     * @return False if there is no journal or it could not be read, in which case the entries
+     *     replayed so far are dropped again.
+     */
+    private boolean replayJournal(int generation) {
+        if (!mJournalFile.exists()) {
+            return false;
+        }
+        List<JournalRecord> batch = new ArrayList<JournalRecord>(JOURNAL_REPLAY_BATCH_SIZE);
+        BufferedInputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(mJournalFile));
+            if (readInt(is) != JOURNAL_MAGIC) {
+                throw new IOException("Unexpected journal magic");
+            }
+            int type;
+            while ((type = is.read()) != -1) {
+                JournalRecord record = new JournalRecord(type, readLong(is));
+                if (type == JOURNAL_PUT) {
+                    record.size = readInt(is);
+                    record.ttl = readLong(is);
+                    record.softTtl = readLong(is);
+                    record.dataOffset = readInt(is);
+                } else if (type != JOURNAL_REMOVE && type != JOURNAL_READ) {
+                    throw new IOException("Unexpected journal record type " + type);
+                }
+                batch.add(record);
+                if (batch.size() == JOURNAL_REPLAY_BATCH_SIZE
+                        && !applyJournalRecords(batch, generation)) {
+                    // Cleared meanwhile; there is nothing left to load.
+                    return true;
+                }
+            }
+            applyJournalRecords(batch, generation);
+            return true;
+        } catch (IOException e) {
+            VolleyLog.d("Rebuilding journal %s: %s", mJournalFile.getAbsolutePath(), e.toString());
+            dropReplayedEntries(generation);
+            return false;
+        } finally {
+            try {
+                if (is != null) {
+                    is.close();
+                }
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * Applies a batch of replayed journal records to the in-memory index and empties it.
+     * @return False if the cache was cleared since loading started; nothing is applied then.
+     */
+    private synchronized boolean applyJournalRecords(List<JournalRecord> records,
+            int generation) {
+        if (generation != mGeneration) {
+            return false;
+        }
+        for (JournalRecord record : records) {
+            applyJournalRecord(record);
+        }
+        mJournalRecordCount += records.size();
+        records.clear();
+        if (mWaitingLookups > 0) {
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Removes the entries replayed from a journal that turned out to be unusable, so that the
+     * files are scanned into the index instead. Entries changed while the index was loading
+     * are kept.
+     */
+    private synchronized void dropReplayedEntries(int generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+        int entry = mEntries.getEldest();
+        while (entry != CacheIndex.NONE) {
+            int next = mEntries.getNewer(entry);
+            long id = mEntries.getId(entry);
+            if (!mChangedWhileLoading.contains(getFilenameForKeyId(id))) {
+                removeEntry(id);
+            }
+            entry = next;
+        }
+    }
+
+    /**
+     * Applies a replayed journal record to the in-memory index, unless the entry was changed
+     * while the index was loading.
+     */
+    private void applyJournalRecord(JournalRecord record) {
+        if (!mChangedWhileLoading.isEmpty()
+                && mChangedWhileLoading.contains(getFilenameForKeyId(record.id))) {
+            return;
+        }
+        if (record.type == JOURNAL_PUT) {
+            putEntry(record.id, record.size, record.ttl, record.softTtl, record.dataOffset);
+        } else if (record.type == JOURNAL_REMOVE) {
+            removeEntry(record.id);
+        } else {
+            int entry = mEntries.find(record.id);
+            if (entry != CacheIndex.NONE) {
+                mEntries.moveToNewest(entry);
+            }
+        }
+    }
+
+    /**
+     * Deletes the given files that the replayed journal doesn't account for: entry files
+     * renamed into place or left to be pruned when the process died, and the temporary files
+     * of interrupted puts. Only compares names; no file is opened. Files of entries changed
+     * while the index was loading are left alone.
+     */
+    private void deleteUnindexedFiles(File[] files) {
         if (files == null) {
             return;
         }
+        Set<String> indexed = new HashSet<String>();
+        for (int entry = mEntries.getEldest(); entry != CacheIndex.NONE;
+                entry = mEntries.getNewer(entry)) {
+            indexed.add(getFilenameForKeyId(mEntries.getId(entry)));
+        }
         for (File file : files) {
-            BufferedInputStream fis = null;
+            String name = file.getName();
+            if (name.equals(JOURNAL_FILE_NAME) || name.equals(JOURNAL_TMP_FILE_NAME)) {
+                continue;
+            }
+            boolean tmp = name.endsWith(TMP_FILE_SUFFIX);
+            String entryName = tmp
+                    ? name.substring(0, name.length() - TMP_FILE_SUFFIX.length()) : name;
+            if (mChangedWhileLoading.contains(entryName) || (!tmp && indexed.contains(name))) {
+                continue;
+            }
+            if (!file.delete()) {
+                VolleyLog.d("Could not delete unindexed file %s", file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the in-memory index by reading the header of every file in the root directory,
+     * spreading the files over {@link #SCAN_THREADS} threads.
+     */
+    private void scanFiles(final int generation) {
+        final File[] files = mRootDirectory.listFiles();
+        if (files == null || files.length == 0) {
+            return;
+        }
+        int threadCount = Math.min(SCAN_THREADS, files.length);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount, sScanThreadFactory);
+        final int filesPerThread = (files.length + threadCount - 1) / threadCount;
+        for (int i = 0; i < files.length; i += filesPerThread) {
+            final int start = i;
+            final int end = Math.min(files.length, i + filesPerThread);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = start; j < end; j++) {
+                        scanFile(files[j], generation);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        // Finish the scan even if interrupted; a partial index would be written to the journal
+        // and leave the remaining files unaccounted for.
+        boolean interrupted = false;
+        while (true) {
             try {
-                fis = new BufferedInputStream(new FileInputStream(file));
-                CacheHeader entry = CacheHeader.readHeader(fis);
-                entry.size = file.length();
-                putEntry(entry.key, entry);
-            } catch (IOException e) {
-                if (file != null) {
-                   file.delete();
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds the entry stored in the given file to the in-memory index, or deletes the file if
+     * its header can't be read.
+     */
+    private void scanFile(File file, int generation) {
+        String name = file.getName();
+        if (name.equals(JOURNAL_FILE_NAME) || name.equals(JOURNAL_TMP_FILE_NAME)) {
+            return;
+        }
+        if (name.endsWith(TMP_FILE_SUFFIX)) {
+            // Left over from an interrupted put, unless a put is writing it right now.
+            synchronized (this) {
+                String entryName = name.substring(0, name.length() - TMP_FILE_SUFFIX.length());
+                if (generation == mGeneration && !mChangedWhileLoading.contains(entryName)) {
+                    file.delete();
                 }
-            } finally {
+            }
+            return;
+        }
+        CacheHeader header = null;
+        try {
+            header = readHeaderFromFile(file);
+            header.size = file.length();
+        } catch (IOException e) {
+            header = null;
+        }
+        synchronized (this) {
+            if (generation != mGeneration || mChangedWhileLoading.contains(name)) {
+                return;
+            }
+            if (header == null) {
+                file.delete();
+                return;
+            }
+            long id = getKeyId(header.key);
+            if (mEntries.find(id) == CacheIndex.NONE) {
+                putEntry(id, (int) header.size, header.ttl, header.softTtl, header.dataOffset);
+            }
+            if (mWaitingLookups > 0) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Reads the header of a cache file, noting where the data starts.
+     */
+    // Visible for testing.
+    /* package */ CacheHeader readHeaderFromFile(File file) throws IOException {
+        CountingInputStream fis = null;
+        try {
+            fis = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+            CacheHeader header = CacheHeader.readHeader(fis);
+            header.dataOffset = fis.bytesRead;
+            return header;
+        } finally {
+            if (fis != null) {
                 try {
-                    if (fis != null) {
-                        fis.close();
-                    }
+                    fis.close();
                 } catch (IOException ignored) { }
             }
         }
     }
 
+    /**
+     * Ends loading the index: writes the changes journaled meanwhile after the replayed
+     * journal, or writes a new journal if the index was scanned from the files, and wakes up
+     * lookups waiting for the index.
+     */
+    private void finishLoading(boolean replayed) {
+        ByteArrayOutputStream pending = mPendingJournal;
+        mPendingJournal = null;
+        mJournalWriter = null;
+        mLoading = false;
+        mChangedWhileLoading.clear();
+        notifyAll();
+
+        if (replayed) {
+            openJournal();
+            if (mJournalWriter != null) {
+                try {
+                    pending.writeTo(mJournalWriter);
+                    mJournalWriter.flush();
+                } catch (IOException e) {
+                    VolleyLog.d("Failed to append to journal %s: %s",
+                            mJournalFile.getAbsolutePath(), e.toString());
+                    closeJournal();
+                    mJournalFile.delete();
+                }
+            }
+            compactJournalIfNeeded();
+        } else {
+            rebuildJournal();
+        }
+    }
+
+    /**
+     * Waits while the index is loading for an entry with the given id to be indexed.
+     * @return The entry, or {@link CacheIndex#NONE} if loading completed without indexing it.
+     */
+    private int waitForIndex(long id) {
+        mWaitingLookups++;
+        try {
+            while (mLoading && mEntries.find(id) == CacheIndex.NONE) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            mWaitingLookups--;
+        }
+        return mEntries.find(id);
+    }
+
+    /**
+     * Records that the entry with the given key changed while the index is loading, so that
+     * what is loaded for it from disk, which may predate the change, is ignored.
+     */
+    private synchronized void markChangedWhileLoading(String key) {
+        if (mLoading) {
+            mChangedWhileLoading.add(getFilenameForKey(key));
+        }
+    }
+
     /**
      * Invalidates an entry in the cache.
      * @param key Cache key
      * @param fullExpire True to fully expire the entry, false to soft expire
      */
     @Override
-    public synchronized void invalidate(String key, boolean fullExpire) {
-        Entry entry = get(key);
-        if (entry != null) {
-            entry.softTtl = 0;
-            if (fullExpire) {
-                entry.ttl = 0;
+    public void invalidate(String key, boolean fullExpire) {
+        long id = getKeyId(key);
+        ReentrantLock lock = getLockForKeyId(id);
+        lock.lock();
+        try {
+            Entry entry = get(key);
+            if (entry != null) {
+                entry.softTtl = 0;
+                if (fullExpire) {
+                    entry.ttl = 0;
+                }
+                writeEntry(key, id, entry);
             }
-            put(key, entry);
+        } finally {
+            lock.unlock();
         }
-
     }
 
     /**
      * Puts the entry with the specified key into the cache.
      */
     @Override
-    public synchronized void put(String key, Entry entry) {
+    public void put(String key, Entry entry) {
+        // Pruning takes the locks of other keys, so it must not hold this key's.
         pruneIfNeeded(entry.data.length);
+        long id = getKeyId(key);
+        ReentrantLock lock = getLockForKeyId(id);
+        lock.lock();
+        try {
+            writeEntry(key, id, entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the file of an entry and indexes it. Must be called holding the key's lock.
+     */
+    private void writeEntry(String key, long id, Entry entry) {
+        markChangedWhileLoading(key);
         File file = getFileForKey(key);
+        // Written aside, then renamed over the entry's file: a body mapped by getAsBuffer()
+        // keeps the old file and is never truncated under its reader.
+        File tmpFile = new File(mRootDirectory, file.getName() + TMP_FILE_SUFFIX);
         try {
-            BufferedOutputStream fos = new BufferedOutputStream(new FileOutputStream(file));
+            BufferedOutputStream fos = new BufferedOutputStream(new FileOutputStream(tmpFile));
             CacheHeader e = new CacheHeader(key, entry);
             boolean success = e.writeHeader(fos);
             if (!success) {
@@ -207,13 +884,22 @@ public class DiskBasedCache implements Cache {
             }
             fos.write(entry.data);
             fos.close();
-            putEntry(key, e);
+            long fileLength = tmpFile.length();
+            if (!tmpFile.renameTo(file)) {
+                VolleyLog.d("Failed to rename %s", tmpFile.getAbsolutePath());
+                throw new IOException();
+            }
+            synchronized (this) {
+                putEntry(id, entry.data.length, entry.ttl, entry.softTtl,
+                        (int) (fileLength - entry.data.length));
+                appendToJournal(JOURNAL_PUT, id, true);
+            }
             return;
         } catch (IOException e) {
         }
-        boolean deleted = file.delete();
+        boolean deleted = tmpFile.delete();
         if (!deleted) {
-            VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
+            VolleyLog.d("Could not clean up file %s", tmpFile.getAbsolutePath());
         }
     }
 
@@ -221,12 +907,25 @@ public class DiskBasedCache implements Cache {
      * Removes the specified key from the cache if it exists.
      */
     @Override
-    public synchronized void remove(String key) {
-        boolean deleted = getFileForKey(key).delete();
-        removeEntry(key);
-        if (!deleted) {
-            VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
-                    key, getFilenameForKey(key));
+    public void remove(String key) {
+        long id = getKeyId(key);
+        ReentrantLock lock = getLockForKeyId(id);
+        lock.lock();
+        try {
+            markChangedWhileLoading(key);
+            boolean deleted = getFileForKey(key).delete();
+            synchronized (this) {
+                // While loading, the entry may not be indexed yet; make sure it stays removed.
+                if (removeEntry(id) || mLoading) {
+                    appendToJournal(JOURNAL_REMOVE, id, true);
+                }
+            }
+            if (!deleted) {
+                VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
+                        key, getFilenameForKey(key));
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -236,10 +935,22 @@ public class DiskBasedCache implements Cache {
      * @return A pseudo-unique filename.
      */
     private String getFilenameForKey(String key) {
+        return getFilenameForKeyId(getKeyId(key));
+    }
+
+    /**
+     * Returns the id of the index entry for the specified cache key: the hash codes of the two
+     * halves of the key, which also make up its file name.
+     */
+    private static long getKeyId(String key) {
         int firstHalfLength = key.length() / 2;
-        String localFilename = String.valueOf(key.substring(0, firstHalfLength).hashCode());
-        localFilename += String.valueOf(key.substring(firstHalfLength).hashCode());
-        return localFilename;
+        long firstHalf = key.substring(0, firstHalfLength).hashCode();
+        long secondHalf = key.substring(firstHalfLength).hashCode();
+        return (firstHalf << 32) | (secondHalf & 0xffffffffL);
+    }
+
+    private static String getFilenameForKeyId(long id) {
+        return String.valueOf((int) (id >>> 32)) + String.valueOf((int) id);
     }
 
     /**
@@ -250,70 +961,232 @@ public class DiskBasedCache implements Cache {
     }
 
     /**
-     * Prunes the cache to fit the amount of bytes specified.
+     * Prunes the cache to fit the amount of bytes specified. The pruned entries are removed
+     * from the index first, then their files are deleted one key lock at a time, so that
+     * other entries can be read and written meanwhile. Must not be called holding a key's lock.
      * @param neededSpace The amount of bytes we are trying to fit into the cache.
      */
     private void pruneIfNeeded(int neededSpace) {
-        if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes) {
-            return;
+        List<Long> prunedIds = new ArrayList<Long>();
+        long before;
+        long startTime;
+        synchronized (this) {
+            if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes) {
+                return;
+            }
+            if (VolleyLog.DEBUG) {
+                VolleyLog.v("Pruning old cache entries.");
+            }
+
+            before = mTotalSize;
+            startTime = SystemClock.elapsedRealtime();
+
+            int entry = mEntries.getEldest();
+            while (entry != CacheIndex.NONE) {
+                int newer = mEntries.getNewer(entry);
+                long id = mEntries.getId(entry);
+                mTotalSize -= mEntries.getSize(entry);
+                mEntries.remove(entry);
+                if (mLoading) {
+                    mChangedWhileLoading.add(getFilenameForKeyId(id));
+                }
+                appendToJournal(JOURNAL_REMOVE, id, false);
+                prunedIds.add(id);
+
+                if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+                    break;
+                }
+                entry = newer;
+            }
+
+            flushJournal();
+        }
+
+        for (long id : prunedIds) {
+            ReentrantLock lock = getLockForKeyId(id);
+            lock.lock();
+            try {
+                synchronized (this) {
+                    if (mEntries.find(id) != CacheIndex.NONE) {
+                        // Put again since it was pruned; the file is the new entry's.
+                        continue;
+                    }
+                }
+                String filename = getFilenameForKeyId(id);
+                if (!new File(mRootDirectory, filename).delete()) {
+                    VolleyLog.d("Could not delete cache entry filename=%s", filename);
+                }
+            } finally {
+                lock.unlock();
+            }
         }
         if (VolleyLog.DEBUG) {
-            VolleyLog.v("Pruning old cache entries.");
+            VolleyLog.v("pruned %d files, %d bytes, %d ms", prunedIds.size(),
+                    (getTotalSize() - before), SystemClock.elapsedRealtime() - startTime);
         }
+    }
 
-        long before = mTotalSize;
-        int prunedFiles = 0;
-        long startTime = SystemClock.elapsedRealtime();
+    private synchronized long getTotalSize() {
+        return mTotalSize;
+    }
 
-        Iterator<Map.Entry<String, CacheHeader>> iterator = mEntries.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, CacheHeader> entry = iterator.next();
-            CacheHeader e = entry.getValue();
-            boolean deleted = getFileForKey(e.key).delete();
-            if (deleted) {
-                mTotalSize -= e.size;
-            } else {
-               VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
-                       e.key, getFilenameForKey(e.key));
+    /**
+     * Appends a record for the given entry to the journal, and compacts the journal if it
+     * has grown mostly stale. Changes made before the cache is initialized are not
+     * journaled; the journal is deleted instead, so that the next initialization scans
+     * the files.
+     * @param type One of JOURNAL_PUT, JOURNAL_REMOVE or JOURNAL_READ.
+     * @param id The id of the entry the record is about.
+     * @param flush Whether the record must reach the disk now. Reads only affect the
+     *     eviction order, so they are left to be flushed with the next change.
+     */
+    private void appendToJournal(int type, long id, boolean flush) {
+        if (mJournalWriter == null) {
+            mJournalFile.delete();
+            return;
+        }
+        try {
+            writeJournalRecord(mJournalWriter, type, id);
+            if (flush) {
+                mJournalWriter.flush();
             }
-            iterator.remove();
-            prunedFiles++;
+        } catch (IOException e) {
+            VolleyLog.d("Failed to append to journal %s: %s",
+                    mJournalFile.getAbsolutePath(), e.toString());
+            closeJournal();
+            mJournalFile.delete();
+            return;
+        }
+        mJournalRecordCount++;
+        compactJournalIfNeeded();
+    }
 
-            if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
-                break;
+    /**
+     * Compacts the journal if it has grown mostly stale, unless the index is still loading.
+     */
+    private void compactJournalIfNeeded() {
+        if (!mLoading && mJournalRecordCount >= JOURNAL_COMPACT_THRESHOLD
+                && mJournalRecordCount >= 2 * mEntries.size()) {
+            rebuildJournal();
+        }
+    }
+
+    /**
+     * Writes a journal record; put records take the fields of the entry from the index.
+     */
+    private void writeJournalRecord(OutputStream os, int type, long id) throws IOException {
+        os.write(type);
+        writeLong(os, id);
+        if (type == JOURNAL_PUT) {
+            int entry = mEntries.find(id);
+            writeInt(os, mEntries.getSize(entry));
+            writeLong(os, mEntries.getTtl(entry));
+            writeLong(os, mEntries.getSoftTtl(entry));
+            writeInt(os, mEntries.getDataOffset(entry));
+        }
+    }
+
+    /**
+     * Replaces the journal with one holding a single record per entry of the in-memory
+     * index, in least recently used order, and opens it for appending.
+     */
+    private void rebuildJournal() {
+        closeJournal();
+        File tmpFile = new File(mRootDirectory, JOURNAL_TMP_FILE_NAME);
+        OutputStream os = null;
+        try {
+            os = new BufferedOutputStream(new FileOutputStream(tmpFile));
+            writeInt(os, JOURNAL_MAGIC);
+            for (int entry = mEntries.getEldest(); entry != CacheIndex.NONE;
+                    entry = mEntries.getNewer(entry)) {
+                writeJournalRecord(os, JOURNAL_PUT, mEntries.getId(entry));
+            }
+            os.close();
+            os = null;
+            if (!tmpFile.renameTo(mJournalFile)) {
+                throw new IOException("Could not rename " + tmpFile.getAbsolutePath());
             }
+            mJournalRecordCount = mEntries.size();
+            openJournal();
+        } catch (IOException e) {
+            VolleyLog.d("Failed to write journal %s: %s",
+                    mJournalFile.getAbsolutePath(), e.toString());
+            tmpFile.delete();
+            mJournalFile.delete();
+        } finally {
+            try {
+                if (os != null) {
+                    os.close();
+                }
+            } catch (IOException ignored) { }
         }
+    }
 
-        if (VolleyLog.DEBUG) {
-            VolleyLog.v("pruned %d files, %d bytes, %d ms",
-                    prunedFiles, (mTotalSize - before), SystemClock.elapsedRealtime() - startTime);
+    private void openJournal() {
+        try {
+            mJournalWriter = new BufferedOutputStream(new FileOutputStream(mJournalFile, true));
+        } catch (IOException e) {
+            VolleyLog.d("Failed to open journal %s: %s",
+                    mJournalFile.getAbsolutePath(), e.toString());
+            mJournalFile.delete();
+        }
+    }
+
+    private void flushJournal() {
+        if (mJournalWriter == null) {
+            return;
+        }
+        try {
+            mJournalWriter.flush();
+        } catch (IOException e) {
+            VolleyLog.d("Failed to flush journal %s: %s",
+                    mJournalFile.getAbsolutePath(), e.toString());
+            closeJournal();
+            mJournalFile.delete();
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournalWriter == null) {
+            return;
+        }
+        try {
+            mJournalWriter.close();
+        } catch (IOException ignored) {
+        } finally {
+            mJournalWriter = null;
         }
     }
 
     /**
-     * Puts the entry with the specified key into the cache.
-     * @param key The key to identify the entry by.
-     * @param entry The entry to cache.
+     * Puts the entry with the specified id into the index.
+     * @param id The id of the key to identify the entry by.
+     * @param size The size of the entry.
+     * @param ttl TTL of the entry.
+     * @param softTtl Soft TTL of the entry.
+     * @param dataOffset The offset of the data in the entry's file.
      */
-    private void putEntry(String key, CacheHeader entry) {
-        if (!mEntries.containsKey(key)) {
-            mTotalSize += entry.size;
-        } else {
-            CacheHeader oldEntry = mEntries.get(key);
-            mTotalSize += (entry.size - oldEntry.size);
+    private void putEntry(long id, int size, long ttl, long softTtl, int dataOffset) {
+        int oldEntry = mEntries.find(id);
+        if (oldEntry != CacheIndex.NONE) {
+            mTotalSize -= mEntries.getSize(oldEntry);
         }
-        mEntries.put(key, entry);
+        mTotalSize += size;
+        mEntries.put(id, size, ttl, softTtl, dataOffset);
     }
 
     /**
-     * Removes the entry identified by 'key' from the cache.
+     * Removes the entry identified by 'id' from the index.
+     * @return Whether there was such an entry.
      */
-    private void removeEntry(String key) {
-        CacheHeader entry = mEntries.get(key);
-        if (entry != null) {
-            mTotalSize -= entry.size;
-            mEntries.remove(key);
+    private boolean removeEntry(long id) {
+        int entry = mEntries.find(id);
+        if (entry == CacheIndex.NONE) {
+            return false;
         }
+        mTotalSize -= mEntries.getSize(entry);
+        mEntries.remove(entry);
+        return true;
     }
 
     /**
@@ -341,6 +1214,10 @@ public class DiskBasedCache implements Cache {
          * serialized to disk. */
         public long size;
 
+        /** The offset of the data in the file, right after this header. (This is not
+         * serialized to disk.) */
+        public int dataOffset;
+
         /** The key that identifies the cache entry. */
         public String key;
 
@@ -445,6 +1322,21 @@ public class DiskBasedCache implements Cache {
 
     }
 
+    /** A record read back from the journal. */
+    private static class JournalRecord {
+        final int type;
+        final long id;
+        int size;
+        long ttl;
+        long softTtl;
+        int dataOffset;
+
+        JournalRecord(int type, long id) {
+            this.type = type;
+            this.id = id;
+        }
+    }
+
     private static class CountingInputStream extends FilterInputStream {
         private int bytesRead = 0;
 
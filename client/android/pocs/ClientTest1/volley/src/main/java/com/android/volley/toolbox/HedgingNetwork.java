@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.RetryPolicy;
+import com.android.volley.VolleyError;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A network which races a slow request with a second copy of it, to cut the latency of the
+ * occasional request stuck on a bad connection.
+ *
+ * <p>A request which {@link Request#shouldHedge() opted in} is sent by the wrapped network as
+ * usual. If no response has arrived once it has taken longer than a given percentile of the
+ * recent latencies of its host, a copy is sent as well. The first response wins, and the
+ * exchange still running is aborted. The number of copies sent is capped as a fraction of the
+ * requests which may be hedged, so that a slow server isn't sent twice its usual load.</p>
+ *
+ * <p>Aborting relies on the {@link HttpStack} setting a {@link Request#setCancelAction cancel
+ * action}, as all the stacks of this package do.</p>
+ */
+public class HedgingNetwork implements Network {
+
+    /** The percentile of recent latencies a request may take before it is hedged by default. */
+    public static final float DEFAULT_LATENCY_PERCENTILE = 0.95f;
+
+    /** The largest fraction of requests hedged by default. */
+    public static final float DEFAULT_MAX_HEDGE_RATIO = 0.05f;
+
+    /** Number of recent latencies kept per host. */
+    private static final int LATENCY_WINDOW = 64;
+
+    /** Number of latencies recorded for a host before its requests are hedged. */
+    private static final int MIN_LATENCY_SAMPLES = 16;
+
+    /**
+     * Number of requests after which the counts behind the hedge cap are halved, so that the
+     * cap follows recent traffic.
+     */
+    private static final int HEDGE_RATIO_WINDOW = 1000;
+
+    private final Network mNetwork;
+
+    private final float mLatencyPercentile;
+
+    private final float mMaxHedgeRatio;
+
+    /** Fires the hedges. */
+    private final ScheduledThreadPoolExecutor mTimer;
+
+    /** Performs the hedges. */
+    private final Executor mHedgeExecutor;
+
+    private final Object mLock = new Object();
+
+    /** Recent latencies of successful requests, by host. Guarded by {@link #mLock}. */
+    private final Map<String, LatencyWindow> mLatencies = new HashMap<String, LatencyWindow>();
+
+    /** Requests which could have been hedged. Guarded by {@link #mLock}. */
+    private int mHedgeableCount;
+
+    /** Hedges sent. Guarded by {@link #mLock}. */
+    private int mHedgeCount;
+
+    /** The latest latencies of a host, oldest overwritten first. */
+    private static class LatencyWindow {
+        final long[] samples = new long[LATENCY_WINDOW];
+        int count;
+        int next;
+
+        void add(long latencyMs) {
+            samples[next] = latencyMs;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+        long percentile(float percentile) {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, index))];
+        }
+    }
+
+    /**
+     * @param network Network performing requests and their hedges
+     */
+    public HedgingNetwork(Network network) {
+        this(network, DEFAULT_LATENCY_PERCENTILE, DEFAULT_MAX_HEDGE_RATIO);
+    }
+
+    /**
+     * @param network Network performing requests and their hedges
+     * @param latencyPercentile Percentile of the recent latencies of a host, such as 0.95,
+     *         which a request may take before it is hedged
+     * @param maxHedgeRatio Largest fraction of the requests which may be hedged that are
+     */
+    public HedgingNetwork(Network network, float latencyPercentile, float maxHedgeRatio) {
+        if (latencyPercentile <= 0 || latencyPercentile > 1) {
+            throw new IllegalArgumentException("Invalid percentile " + latencyPercentile);
+        }
+        if (maxHedgeRatio < 0 || maxHedgeRatio > 1) {
+            throw new IllegalArgumentException("Invalid hedge ratio " + maxHedgeRatio);
+        }
+        mNetwork = network;
+        mLatencyPercentile = latencyPercentile;
+        mMaxHedgeRatio = maxHedgeRatio;
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Volley-Hedge");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        mTimer = new ScheduledThreadPoolExecutor(1, threadFactory);
+        mTimer.setKeepAliveTime(1, TimeUnit.SECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+        mHedgeExecutor = Executors.newCachedThreadPool(threadFactory);
+    }
+
+    /**
+     * Returns whether a copy of the given request may be sent if it is slow. By default, GET
+     * and HEAD requests which {@link Request#shouldHedge() opted in} may.
+     */
+    protected boolean isHedgeable(Request<?> request) {
+        int method = request.getMethod();
+        return (method == Request.Method.GET || method == Request.Method.HEAD)
+                && request.shouldHedge();
+    }
+
+    @Override
+    public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+        if (!isHedgeable(request)) {
+            return mNetwork.performRequest(request);
+        }
+        String host = Uri.parse(request.getUrl()).getHost();
+        long hedgeDelayMs = getHedgeDelayMs(host);
+        if (hedgeDelayMs < 0) {
+            // Too little is known of the host yet to tell a slow request.
+            long start = SystemClock.elapsedRealtime();
+            NetworkResponse response = mNetwork.performRequest(request);
+            recordLatency(host, SystemClock.elapsedRealtime() - start);
+            return response;
+        }
+
+        final Race race = new Race(request, host);
+        ScheduledFuture<?> hedge = mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                race.startHedge();
+            }
+        }, hedgeDelayMs, TimeUnit.MILLISECONDS);
+        request.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                race.primary.cancel();
+                race.hedge.cancel();
+            }
+        });
+        try {
+            return race.runPrimary();
+        } finally {
+            hedge.cancel(false);
+            request.setCancelAction(null);
+        }
+    }
+
+    /**
+     * Returns how long a request to the given host may take before it is hedged, or -1 if too
+     * few of its latencies are known. Counts the request towards the hedge cap.
+     */
+    private long getHedgeDelayMs(String host) {
+        synchronized (mLock) {
+            if (++mHedgeableCount >= HEDGE_RATIO_WINDOW) {
+                mHedgeableCount /= 2;
+                mHedgeCount /= 2;
+            }
+            LatencyWindow latencies = mLatencies.get(host);
+            if (latencies == null || latencies.count < MIN_LATENCY_SAMPLES) {
+                return -1;
+            }
+            return latencies.percentile(mLatencyPercentile);
+        }
+    }
+
+    private void recordLatency(String host, long latencyMs) {
+        synchronized (mLock) {
+            LatencyWindow latencies = mLatencies.get(host);
+            if (latencies == null) {
+                latencies = new LatencyWindow();
+                mLatencies.put(host, latencies);
+            }
+            latencies.add(latencyMs);
+        }
+    }
+
+    /** Takes a hedge from the cap, if one is left. */
+    private boolean acquireHedge() {
+        synchronized (mLock) {
+            if (mHedgeCount + 1 > mMaxHedgeRatio * mHedgeableCount) {
+                return false;
+            }
+            mHedgeCount++;
+            return true;
+        }
+    }
+
+    /** A request sent once, and maybe twice, of which the first response wins. */
+    private class Race {
+        final Request<?> request;
+        final String host;
+        final Attempt primary;
+        final Attempt hedge;
+        /** When the request was first sent; latencies are measured from here. */
+        final long startMs = SystemClock.elapsedRealtime();
+
+        /** The winning response, or null. Guarded by this. */
+        private NetworkResponse mWinner;
+        private boolean mPrimaryDone;
+        private boolean mHedgeStarted;
+        private boolean mHedgeDone;
+
+        Race(Request<?> request, String host) {
+            this.request = request;
+            this.host = host;
+            primary = new Attempt(request, request.getRetryPolicy(), true);
+            // The copy makes a single attempt; retries are left to the original.
+            hedge = new Attempt(request, new DefaultRetryPolicy(request.getTimeoutMs(), 0,
+                    DefaultRetryPolicy.DEFAULT_BACKOFF_MULT), false);
+        }
+
+        /**
+         * Sends the request on the calling thread and returns the winning response. If the
+         * request fails while its hedge is in flight, waits for the hedge.
+         */
+        NetworkResponse runPrimary() throws VolleyError {
+            VolleyError primaryError = null;
+            try {
+                NetworkResponse response = mNetwork.performRequest(primary);
+                if (win(response, hedge)) {
+                    recordLatency(host, SystemClock.elapsedRealtime() - startMs);
+                }
+            } catch (VolleyError e) {
+                // Possibly aborted because the hedge won.
+                primaryError = e;
+            }
+            synchronized (this) {
+                mPrimaryDone = true;
+                try {
+                    while (mWinner == null && mHedgeStarted && !mHedgeDone) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    hedge.cancel();
+                }
+                if (mWinner != null) {
+                    return mWinner;
+                }
+            }
+            throw primaryError;
+        }
+
+        /** Sends the hedge, unless the race is over or the cap is reached. */
+        void startHedge() {
+            synchronized (this) {
+                if (mPrimaryDone || mWinner != null || request.isCanceled() || !acquireHedge()) {
+                    return;
+                }
+                mHedgeStarted = true;
+            }
+            request.addMarker("hedge-sent");
+            mHedgeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runHedge();
+                }
+            });
+        }
+
+        private void runHedge() {
+            try {
+                NetworkResponse response = mNetwork.performRequest(hedge);
+                if (win(response, primary)) {
+                    // What the caller waited, hedge delay included.
+                    recordLatency(host, SystemClock.elapsedRealtime() - startMs);
+                    request.addMarker("hedge-won");
+                }
+            } catch (VolleyError e) {
+                // The outcome of the original attempt stands.
+            } finally {
+                synchronized (this) {
+                    mHedgeDone = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Makes the given response the winner if there is none yet, and aborts the other
+         * attempt.
+         */
+        private boolean win(NetworkResponse response, Attempt loser) {
+            synchronized (this) {
+                if (mWinner != null) {
+                    return false;
+                }
+                mWinner = response;
+                notifyAll();
+            }
+            loser.cancel();
+            return true;
+        }
+    }
+
+    /**
+     * One of the attempts of a race, which sends the original request and can be aborted
+     * without cancelling it.
+     */
+    private static class Attempt extends Request<Object> {
+        private final Request<?> mRequest;
+        private final boolean mPrimary;
+
+        Attempt(Request<?> request, RetryPolicy retryPolicy, boolean primary) {
+            super(request.getMethod(), request.getUrl(), null);
+            mRequest = request;
+            mPrimary = primary;
+            setRetryPolicy(retryPolicy);
+            setShouldRetryServerErrors(request.shouldRetryServerErrors());
+            setCacheEntry(request.getCacheEntry());
+        }
+
+        @Override
+        public String getUrl() {
+            return mRequest.getUrl();
+        }
+
+        @Override
+        public Map<String, String> getHeaders() throws AuthFailureError {
+            return mRequest.getHeaders();
+        }
+
+        @Override
+        @Deprecated
+        public String getPostBodyContentType() {
+            return mRequest.getPostBodyContentType();
+        }
+
+        @Override
+        @Deprecated
+        public byte[] getPostBody() throws AuthFailureError {
+            return mRequest.getPostBody();
+        }
+
+        @Override
+        public String getBodyContentType() {
+            return mRequest.getBodyContentType();
+        }
+
+        @Override
+        public byte[] getBody() throws AuthFailureError {
+            return mRequest.getBody();
+        }
+
+        @Override
+        public Priority getPriority() {
+            return mRequest.getPriority();
+        }
+
+        @Override
+        public void addMarker(String tag) {
+            mRequest.addMarker(mPrimary ? tag : "hedge-" + tag);
+        }
+
+        /** Only the original attempt's retries are scheduled, as retries of the request. */
+        @Override
+        public boolean canScheduleRetry() {
+            return mPrimary && mRequest.canScheduleRetry();
+        }
+
+        /** Never parsed; the winning response is parsed by the original request. */
+        @Override
+        protected Response<Object> parseNetworkResponse(NetworkResponse response) {
+            return Response.success(null, null);
+        }
+
+        @Override
+        protected void deliverResponse(Object response) {
+        }
+    }
+}
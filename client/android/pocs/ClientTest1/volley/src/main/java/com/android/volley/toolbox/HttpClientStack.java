@@ -18,6 +18,7 @@ package com.android.volley.toolbox;
 
 import com.android.volley.AuthFailureError;
 import com.android.volley.Request;
+import com.android.volley.VolleyLog;
 import com.android.volley.Request.Method;
 
 import org.apache.http.HttpEntity;
@@ -74,7 +75,7 @@ public class HttpClientStack implements HttpStack {
     @Override
     public HttpResponse performRequest(Request<?> request, Map<String, String> additionalHeaders)
             throws IOException, AuthFailureError {
-        HttpUriRequest httpRequest = createHttpRequest(request, additionalHeaders);
+        final HttpUriRequest httpRequest = createHttpRequest(request, additionalHeaders);
         addHeaders(httpRequest, additionalHeaders);
         addHeaders(httpRequest, request.getHeaders());
         onPrepareRequest(httpRequest);
@@ -84,6 +85,17 @@ public class HttpClientStack implements HttpStack {
         // data collection and possibly different for wifi vs. 3G.
         HttpConnectionParams.setConnectionTimeout(httpParams, 5000);
         HttpConnectionParams.setSoTimeout(httpParams, timeoutMs);
+        // Cancelling the request aborts the connection, failing any read in progress.
+        request.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    httpRequest.abort();
+                } catch (UnsupportedOperationException e) {
+                    VolleyLog.v("Cannot abort %s", httpRequest.getURI());
+                }
+            }
+        });
         return mClient.execute(httpRequest);
     }
 
@@ -40,6 +40,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
@@ -51,6 +54,20 @@ public class HurlStack implements HttpStack {
 
     private static final String HEADER_CONTENT_TYPE = "Content-Type";
 
+    /**
+     * Closes the connections of cancelled requests. Closing one may do I/O, such as sending a
+     * TLS close_notify, which must not happen on the thread calling {@link Request#cancel()}.
+     */
+    private static final Executor sDisconnectExecutor =
+            Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Volley-Disconnect");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     /**
      * An interface for transforming URLs before use.
      */
@@ -100,7 +117,19 @@ public class HurlStack implements HttpStack {
             url = rewritten;
         }
         URL parsedUrl = new URL(url);
-        HttpURLConnection connection = openConnection(parsedUrl, request);
+        final HttpURLConnection connection = openConnection(parsedUrl, request);
+        // Cancelling the request closes the socket, failing any read in progress.
+        request.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                sDisconnectExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        connection.disconnect();
+                    }
+                });
+            }
+        });
         for (String headerName : map.keySet()) {
             connection.addRequestProperty(headerName, map.get(headerName));
         }
@@ -135,7 +164,7 @@ public class HurlStack implements HttpStack {
      * @param responseCode response status code
      * @return whether the response has a body
      */
-    private static boolean hasResponseBody(int requestMethod, int responseCode) {
+    /* package */ static boolean hasResponseBody(int requestMethod, int responseCode) {
         return requestMethod != Request.Method.HEAD
             && !(HttpStatus.SC_CONTINUE <= responseCode && responseCode < HttpStatus.SC_OK)
             && responseCode != HttpStatus.SC_NO_CONTENT
@@ -328,6 +328,9 @@ public class ImageLoader {
         /** The request URL that was specified */
         private final String mRequestUrl;
 
+        /** The priority asked for the request, or null to use the request's own */
+        private Request.Priority mPriority;
+
         /**
          * Constructs a BitmapContainer object.
          * @param bitmap The final bitmap (if it exists).
@@ -368,6 +371,22 @@ public class ImageLoader {
             }
         }
 
+        /**
+         * Sets the priority of the in-flight request for this container's image, for instance
+         * to load images on screen before those scrolled off it. A request shared by several
+         * containers gets the highest priority any of them asks for.
+         *
+         * @param priority The priority, or null to use the request's own
+         */
+        public void setPriority(Request.Priority priority) {
+            throwIfNotOnMainThread();
+            mPriority = priority;
+            BatchedImageRequest request = mInFlightRequests.get(mCacheKey);
+            if (request != null && request.mContainers.contains(this)) {
+                request.updatePriority();
+            }
+        }
+
         /**
          * Returns the bitmap associated with the request URL if it has been loaded, null otherwise.
          */
@@ -444,8 +463,32 @@ public class ImageLoader {
                 mRequest.cancel();
                 return true;
             }
+            if (container.mPriority != null) {
+                updatePriority();
+            }
             return false;
         }
+
+        /**
+         * Sets the priority of the request to the highest one asked for by its containers.
+         */
+        private void updatePriority() {
+            Request.Priority highest = null;
+            boolean overridden = false;
+            for (ImageContainer container : mContainers) {
+                Request.Priority priority = container.mPriority;
+                if (priority != null) {
+                    overridden = true;
+                } else {
+                    priority = mRequest.getPriority();
+                }
+                if (priority != null
+                        && (highest == null || priority.ordinal() > highest.ordinal())) {
+                    highest = priority;
+                }
+            }
+            mRequestQueue.setPriority(mRequest, overridden ? highest : null);
+        }
     }
 
     /**
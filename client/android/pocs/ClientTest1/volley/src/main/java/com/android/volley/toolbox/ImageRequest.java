@@ -164,6 +164,15 @@ public class ImageRequest extends Request<Bitmap> {
         }
     }
 
+    /**
+     * Decoded bitmaps are only shared with requests which would decode them the same way.
+     */
+    @Override
+    protected String getParsedResponseKey() {
+        return getClass().getName() + "#W" + mMaxWidth + "#H" + mMaxHeight
+                + "#S" + mScaleType + "#C" + mDecodeConfig;
+    }
+
     /**
      * The real guts of parseNetworkResponse. Broken out for readability.
      */
@@ -21,6 +21,7 @@ import android.util.AttributeSet;
 import android.view.ViewGroup.LayoutParams;
 import android.widget.ImageView;
 
+import com.android.volley.Request.Priority;
 import com.android.volley.VolleyError;
 import com.android.volley.toolbox.ImageLoader.ImageContainer;
 import com.android.volley.toolbox.ImageLoader.ImageListener;
@@ -49,6 +50,15 @@ public class NetworkImageView extends ImageView {
     /** Current ImageContainer. (either in-flight or finished) */
     private ImageContainer mImageContainer;
 
+    /** Whether the view was last reported on screen, or null if it never was. */
+    private Boolean mOnScreen;
+
+    /** Priority of the image request while the view is on screen. */
+    private Priority mOnScreenPriority = Priority.HIGH;
+
+    /** Priority of the image request while the view is off screen. */
+    private Priority mOffScreenPriority = Priority.LOW;
+
     public NetworkImageView(Context context) {
         this(context, null);
     }
@@ -96,6 +106,32 @@ public class NetworkImageView extends ImageView {
         mErrorImageId = errorImage;
     }
 
+    /**
+     * Tells the view whether it is on screen, for instance from the scroll listener of the
+     * list holding it, so that images in view load ahead of those scrolled out of it. Until
+     * this is called, the image request keeps its own priority.
+     */
+    public void setOnScreen(boolean onScreen) {
+        mOnScreen = onScreen;
+        updateRequestPriority();
+    }
+
+    /**
+     * Sets the priorities of the image request while the view is on and off screen, as
+     * reported by {@link #setOnScreen(boolean)}. Default to HIGH and LOW.
+     */
+    public void setOnScreenPriorities(Priority onScreen, Priority offScreen) {
+        mOnScreenPriority = onScreen;
+        mOffScreenPriority = offScreen;
+        updateRequestPriority();
+    }
+
+    private void updateRequestPriority() {
+        if (mImageContainer != null && mOnScreen != null) {
+            mImageContainer.setPriority(mOnScreen ? mOnScreenPriority : mOffScreenPriority);
+        }
+    }
+
     /**
      * Loads the image for the view if it isn't already loaded.
      * @param isInLayoutPass True if this was invoked from a layout pass, false otherwise.
@@ -182,6 +218,7 @@ public class NetworkImageView extends ImageView {
 
         // update the ImageContainer to be the new bitmap container.
         mImageContainer = newContainer;
+        updateRequestPriority();
     }
 
     private void setDefaultImageOrNull() {
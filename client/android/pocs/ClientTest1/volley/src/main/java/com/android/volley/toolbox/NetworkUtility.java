@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.SystemClock;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Cache;
+import com.android.volley.ClientError;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.NetworkError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.NoConnectionError;
+import com.android.volley.Request;
+import com.android.volley.RetryError;
+import com.android.volley.RetryPolicy;
+import com.android.volley.ServerError;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.android.volley.VolleyLog;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Response handling shared by {@link BasicNetwork} and {@link BasicAsyncNetwork}: cache
+ * validation headers, 304 handling, retries and classification of errors.
+ */
+/* package */ final class NetworkUtility {
+
+    private static final int SLOW_REQUEST_THRESHOLD_MS = 3000;
+
+    private NetworkUtility() { }
+
+    /**
+     * Logs requests that took over SLOW_REQUEST_THRESHOLD_MS to complete.
+     */
+    static void logSlowRequests(long requestLifetime, Request<?> request,
+            byte[] responseContents, int statusCode) {
+        if (VolleyLog.DEBUG || requestLifetime > SLOW_REQUEST_THRESHOLD_MS) {
+            VolleyLog.d("HTTP response for request=<%s> [lifetime=%d], [size=%s], " +
+                    "[rc=%d], [retryCount=%s]", request, requestLifetime,
+                    responseContents != null ? responseContents.length : "null",
+                    statusCode, request.getRetryPolicy().getCurrentRetryCount());
+        }
+    }
+
+    /**
+     * Returns the conditional request headers for revalidating the given cache entry.
+     */
+    static Map<String, String> getCacheHeaders(Cache.Entry entry) {
+        Map<String, String> headers = new HashMap<String, String>();
+        // If there's no cache entry, we're done.
+        if (entry == null) {
+            return headers;
+        }
+
+        if (entry.etag != null) {
+            headers.put("If-None-Match", entry.etag);
+        }
+
+        if (entry.lastModified > 0) {
+            Date refTime = new Date(entry.lastModified);
+            headers.put("If-Modified-Since", DateUtils.formatDate(refTime));
+        }
+        return headers;
+    }
+
+    /**
+     * Builds the response for an HTTP 304, merging the new headers into those of the cache
+     * entry the request was revalidating, if any.
+     */
+    static NetworkResponse getNotModifiedNetworkResponse(Request<?> request,
+            Map<String, String> responseHeaders, long requestDuration) {
+        Cache.Entry entry = request.getCacheEntry();
+        if (entry == null) {
+            return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED, null,
+                    responseHeaders, true, requestDuration);
+        }
+
+        // A HTTP 304 response does not have all header fields. We
+        // have to use the header fields from the cache entry plus
+        // the new ones from the response.
+        // http://www.w3.org/Protocols/rfc2616/rfc2616-sec10.html#sec10.3.5
+        entry.responseHeaders.putAll(responseHeaders);
+        return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED, entry.data,
+                entry.responseHeaders, true, requestDuration);
+    }
+
+    /** Reads the contents of HttpEntity into a byte[]. */
+    static byte[] entityToBytes(HttpEntity entity, ByteArrayPool pool)
+            throws IOException, ServerError {
+        PoolingByteArrayOutputStream bytes =
+                new PoolingByteArrayOutputStream(pool, (int) entity.getContentLength());
+        byte[] buffer = null;
+        try {
+            InputStream in = entity.getContent();
+            if (in == null) {
+                throw new ServerError();
+            }
+            buffer = pool.getBuf(1024);
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, count);
+            }
+            return bytes.toByteArray();
+        } finally {
+            try {
+                // Close the InputStream and release the resources by "consuming the content".
+                entity.consumeContent();
+            } catch (IOException e) {
+                // This can happen if there was an exception above that left the entity in
+                // an invalid state.
+                VolleyLog.v("Error occured when calling consumingContent");
+            }
+            pool.returnBuf(buffer);
+            bytes.close();
+        }
+    }
+
+    /**
+     * Classifies a failed attempt. If the request's retry policy allows another attempt, throws
+     * a {@link RetryError} for the request's queue to schedule it, or returns normally for the
+     * caller to make it right away if the request is not in a queue. Throws the error to
+     * deliver otherwise.
+     *
+     * @param exception The failure; a bare {@link IOException} with a non-null
+     *         {@code httpResponse} stands for a non-2xx status code
+     * @param httpResponse The response received, or null if none was
+     * @param responseContents The body received, or null if none was read
+     */
+    static void handleException(Request<?> request, IOException exception, long requestStart,
+            HttpResponse httpResponse, Map<String, String> responseHeaders,
+            byte[] responseContents) throws VolleyError {
+        if (request.isCanceled()) {
+            // Most likely aborted by the cancellation itself; don't retry.
+            request.addMarker("network-cancelled");
+            throw new VolleyError(exception);
+        }
+        if (exception instanceof SocketTimeoutException) {
+            attemptRetryOnException("socket", request, new TimeoutError());
+            return;
+        }
+        if (exception instanceof ConnectTimeoutException) {
+            attemptRetryOnException("connection", request, new TimeoutError());
+            return;
+        }
+        if (exception instanceof MalformedURLException) {
+            throw new RuntimeException("Bad URL " + request.getUrl(), exception);
+        }
+        int statusCode;
+        if (httpResponse != null) {
+            statusCode = httpResponse.getStatusLine().getStatusCode();
+        } else {
+            throw new NoConnectionError(exception);
+        }
+        VolleyLog.e("Unexpected response code %d for %s", statusCode, request.getUrl());
+        NetworkResponse networkResponse;
+        if (responseContents != null) {
+            networkResponse = new NetworkResponse(statusCode, responseContents,
+                    responseHeaders, false, SystemClock.elapsedRealtime() - requestStart);
+            if (statusCode == HttpStatus.SC_UNAUTHORIZED ||
+                    statusCode == HttpStatus.SC_FORBIDDEN) {
+                attemptRetryOnException("auth",
+                        request, new AuthFailureError(networkResponse));
+            } else if (statusCode >= 400 && statusCode <= 499) {
+                // Don't retry other client errors.
+                throw new ClientError(networkResponse);
+            } else if (statusCode >= 500 && statusCode <= 599) {
+                if (request.shouldRetryServerErrors()) {
+                    attemptRetryOnException("server",
+                            request, new ServerError(networkResponse));
+                } else {
+                    throw new ServerError(networkResponse);
+                }
+            } else {
+                // 3xx? No reason to retry.
+                throw new ServerError(networkResponse);
+            }
+        } else {
+            attemptRetryOnException("network", request, new NetworkError());
+        }
+    }
+
+    /**
+     * Attempts to prepare the request for a retry. If there are no more attempts remaining in the
+     * request's retry policy, a timeout exception is thrown. Otherwise the retry is handed to
+     * the request's queue with a {@link RetryError}, if it has one.
+     * @param request The request to use.
+     */
+    private static void attemptRetryOnException(String logPrefix, Request<?> request,
+            VolleyError exception) throws VolleyError {
+        RetryPolicy retryPolicy = request.getRetryPolicy();
+        int oldTimeout = request.getTimeoutMs();
+
+        try {
+            retryPolicy.retry(exception);
+        } catch (VolleyError e) {
+            request.addMarker(
+                    String.format("%s-timeout-giveup [timeout=%s]", logPrefix, oldTimeout));
+            throw e;
+        }
+        request.addMarker(String.format("%s-retry [timeout=%s]", logPrefix, oldTimeout));
+        if (request.canScheduleRetry()) {
+            long delayMs = retryPolicy instanceof DefaultRetryPolicy
+                    ? ((DefaultRetryPolicy) retryPolicy).getRetryDelayMs() : 0;
+            throw new RetryError(exception, delayMs);
+        }
+    }
+}
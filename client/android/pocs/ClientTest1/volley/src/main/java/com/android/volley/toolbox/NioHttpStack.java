@@ -0,0 +1,754 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+import com.android.volley.Request.Method;
+import com.android.volley.VolleyLog;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link AsyncHttpStack} based on non-blocking sockets.
+ *
+ * <p>A single selector thread drives every request in flight, so thousands of slow requests
+ * cost one thread rather than one each. Each request uses its own HTTP/1.1 connection, which
+ * is closed once the response has been read. Callbacks are invoked on the callback executor,
+ * never on the selector thread.</p>
+ *
+ * <p>Only plain http is handled this way. Other protocols, notably https, are performed with
+ * a blocking {@link HttpStack} on the callback executor. Host names are resolved on the
+ * callback executor too, so {@link #executeRequest} never blocks.</p>
+ */
+public class NioHttpStack extends AsyncHttpStack {
+
+    private static final String HEADER_CONTENT_TYPE = "Content-Type";
+
+    private static final String HEADER_CHARSET = "ISO-8859-1";
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    /** How long the selector thread lingers once no request is in flight. */
+    private static final long SELECTOR_IDLE_TIMEOUT_MS = 10000;
+
+    private final Executor mCallbackExecutor;
+
+    private final HttpStack mFallbackStack;
+
+    /** Exchanges waiting to be registered with the selector. */
+    private final Queue<Exchange> mPendingExchanges = new ConcurrentLinkedQueue<Exchange>();
+
+    /** Guards the creation and retirement of {@link #mSelector}. */
+    private final Object mSelectorLock = new Object();
+
+    /** The selector driven by the selector thread, or null if that thread is not running. */
+    private Selector mSelector;
+
+    /**
+     * Creates a stack which invokes callbacks on a pool of daemon threads and performs https
+     * requests with a {@link HurlStack}.
+     */
+    public NioHttpStack() {
+        this(Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Volley-NioCallback");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), new HurlStack());
+    }
+
+    /**
+     * @param callbackExecutor Executor on which callbacks are invoked
+     * @param fallbackStack Stack used, on the callback executor, for protocols other than http
+     */
+    public NioHttpStack(Executor callbackExecutor, HttpStack fallbackStack) {
+        mCallbackExecutor = callbackExecutor;
+        mFallbackStack = fallbackStack;
+    }
+
+    @Override
+    public void executeRequest(Request<?> request, Map<String, String> additionalHeaders,
+            OnRequestComplete callback) {
+        URL url;
+        try {
+            url = new URL(request.getUrl());
+        } catch (MalformedURLException e) {
+            callback.onError(e);
+            return;
+        }
+        if (!"http".equals(url.getProtocol())) {
+            executeOnFallbackStack(request, additionalHeaders, callback);
+            return;
+        }
+
+        byte[] message;
+        try {
+            message = buildRequestMessage(request, url, additionalHeaders);
+        } catch (AuthFailureError e) {
+            callback.onAuthError(e);
+            return;
+        }
+        final String host = url.getHost();
+        final int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        final Exchange exchange = new Exchange(request.getMethod(), message,
+                request.getTimeoutMs(), callback);
+        request.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                abort(exchange);
+            }
+        });
+        // Resolving the host name may block, so it is left to the callback executor.
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                InetSocketAddress address = new InetSocketAddress(host, port);
+                if (address.isUnresolved()) {
+                    exchange.callback.onError(new UnknownHostException(host));
+                    return;
+                }
+                exchange.address = address;
+                register(exchange);
+            }
+        });
+    }
+
+    /** Hands a resolved exchange to the selector thread, starting it if necessary. */
+    private void register(Exchange exchange) {
+        try {
+            synchronized (mSelectorLock) {
+                if (mSelector == null) {
+                    mSelector = Selector.open();
+                    startSelectorThread(mSelector);
+                }
+                mPendingExchanges.add(exchange);
+                mSelector.wakeup();
+            }
+        } catch (IOException e) {
+            exchange.callback.onError(e);
+        }
+    }
+
+    /** Makes the selector fail the exchange and close its connection as soon as possible. */
+    private void abort(Exchange exchange) {
+        exchange.aborted = true;
+        synchronized (mSelectorLock) {
+            if (mSelector != null) {
+                mSelector.wakeup();
+            }
+        }
+    }
+
+    private void executeOnFallbackStack(final Request<?> request,
+            final Map<String, String> additionalHeaders, final OnRequestComplete callback) {
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                HttpResponse response;
+                try {
+                    response = mFallbackStack.performRequest(request, additionalHeaders);
+                } catch (AuthFailureError e) {
+                    callback.onAuthError(e);
+                    return;
+                } catch (IOException e) {
+                    callback.onError(e);
+                    return;
+                }
+                callback.onSuccess(response);
+            }
+        });
+    }
+
+    private void startSelectorThread(final Selector selector) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSelector(selector);
+            }
+        }, "Volley-NioSelector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void runSelector(Selector selector) {
+        ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        long idleSinceMs = -1;
+        while (true) {
+            long nowMs = now();
+            registerPendingExchanges(selector, nowMs);
+            long selectTimeoutMs = expireExchanges(selector, nowMs);
+
+            if (selector.keys().isEmpty()) {
+                if (idleSinceMs < 0) {
+                    idleSinceMs = nowMs;
+                } else if (nowMs - idleSinceMs >= SELECTOR_IDLE_TIMEOUT_MS) {
+                    synchronized (mSelectorLock) {
+                        if (mPendingExchanges.isEmpty()) {
+                            mSelector = null;
+                            closeQuietly(selector);
+                            return;
+                        }
+                    }
+                }
+                selectTimeoutMs = SELECTOR_IDLE_TIMEOUT_MS;
+            } else {
+                idleSinceMs = -1;
+            }
+
+            try {
+                selector.select(selectTimeoutMs);
+            } catch (IOException e) {
+                VolleyLog.e(e, "Selector failed");
+                failAll(selector, e);
+                return;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Exchange exchange = (Exchange) key.attachment();
+                try {
+                    processKey(key, exchange, readBuffer);
+                } catch (IOException e) {
+                    fail(exchange, e);
+                } catch (RuntimeException e) {
+                    // Fail this exchange only; the others share the selector thread.
+                    VolleyLog.e(e, "Failed to process exchange");
+                    fail(exchange, new IOException("Failed to process exchange", e));
+                }
+            }
+        }
+    }
+
+    private void registerPendingExchanges(Selector selector, long nowMs) {
+        Exchange exchange;
+        while ((exchange = mPendingExchanges.poll()) != null) {
+            if (exchange.aborted) {
+                fail(exchange, new IOException("Canceled"));
+                continue;
+            }
+            try {
+                SocketChannel channel = SocketChannel.open();
+                exchange.channel = channel;
+                exchange.lastActivityMs = nowMs;
+                channel.configureBlocking(false);
+                if (channel.connect(exchange.address)) {
+                    exchange.connected = true;
+                    channel.register(selector, SelectionKey.OP_WRITE, exchange);
+                } else {
+                    channel.register(selector, SelectionKey.OP_CONNECT, exchange);
+                }
+            } catch (IOException e) {
+                fail(exchange, e);
+            } catch (RuntimeException e) {
+                VolleyLog.e(e, "Failed to register exchange");
+                fail(exchange, new IOException("Failed to register exchange", e));
+            }
+        }
+    }
+
+    /**
+     * Fails every exchange which was aborted or has seen no progress within its timeout.
+     *
+     * @return how long until the next exchange could time out, or 0 if none is in flight
+     */
+    private long expireExchanges(Selector selector, long nowMs) {
+        long nextDeadlineMs = Long.MAX_VALUE;
+        for (SelectionKey key : selector.keys()) {
+            if (!key.isValid()) {
+                continue;
+            }
+            Exchange exchange = (Exchange) key.attachment();
+            if (exchange.aborted) {
+                fail(exchange, new IOException("Canceled"));
+                continue;
+            }
+            if (exchange.timeoutMs <= 0) {
+                // As with HttpURLConnection, a timeout of zero means none.
+                continue;
+            }
+            long deadlineMs = exchange.lastActivityMs + exchange.timeoutMs;
+            if (deadlineMs <= nowMs) {
+                fail(exchange, exchange.connected
+                        ? new SocketTimeoutException("Read timed out")
+                        : new ConnectTimeoutException("Connect timed out"));
+            } else {
+                nextDeadlineMs = Math.min(nextDeadlineMs, deadlineMs);
+            }
+        }
+        return nextDeadlineMs == Long.MAX_VALUE ? 0 : Math.max(1, nextDeadlineMs - nowMs);
+    }
+
+    private void processKey(SelectionKey key, Exchange exchange, ByteBuffer readBuffer)
+            throws IOException {
+        SocketChannel channel = exchange.channel;
+        if (key.isConnectable()) {
+            if (channel.finishConnect()) {
+                exchange.connected = true;
+                exchange.lastActivityMs = now();
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        } else if (key.isWritable()) {
+            channel.write(exchange.requestMessage);
+            exchange.lastActivityMs = now();
+            if (!exchange.requestMessage.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } else if (key.isReadable()) {
+            readBuffer.clear();
+            int count = channel.read(readBuffer);
+            exchange.lastActivityMs = now();
+            if (count < 0) {
+                complete(exchange, exchange.response.onEndOfStream());
+            } else if (count > 0) {
+                exchange.response.append(readBuffer.array(), count);
+                if (exchange.response.isComplete()) {
+                    complete(exchange, exchange.response.build());
+                }
+            }
+        }
+    }
+
+    private void complete(final Exchange exchange, final HttpResponse response) {
+        if (exchange.finish()) {
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    exchange.callback.onSuccess(response);
+                }
+            });
+        }
+    }
+
+    private void fail(final Exchange exchange, final IOException e) {
+        if (exchange.finish()) {
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    exchange.callback.onError(e);
+                }
+            });
+        }
+    }
+
+    private void failAll(Selector selector, IOException e) {
+        synchronized (mSelectorLock) {
+            mSelector = null;
+        }
+        for (SelectionKey key : selector.keys()) {
+            fail((Exchange) key.attachment(), e);
+        }
+        Exchange exchange;
+        while ((exchange = mPendingExchanges.poll()) != null) {
+            fail(exchange, e);
+        }
+        closeQuietly(selector);
+    }
+
+    private static void closeQuietly(Selector selector) {
+        try {
+            selector.close();
+        } catch (IOException e) {
+            VolleyLog.e(e, "Failed to close selector");
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Serializes the request line, headers and body of the given request.
+     */
+    @SuppressWarnings("deprecation")
+    /* package */ static byte[] buildRequestMessage(Request<?> request, URL url,
+            Map<String, String> additionalHeaders) throws AuthFailureError {
+        String method;
+        byte[] body = null;
+        boolean permitsBody = false;
+        switch (request.getMethod()) {
+            case Method.DEPRECATED_GET_OR_POST:
+                // As in HurlStack, a request with a post body is a POST and otherwise a GET.
+                body = request.getPostBody();
+                permitsBody = body != null;
+                method = permitsBody ? "POST" : "GET";
+                break;
+            case Method.GET:
+                method = "GET";
+                break;
+            case Method.DELETE:
+                method = "DELETE";
+                break;
+            case Method.POST:
+                method = "POST";
+                body = request.getBody();
+                permitsBody = true;
+                break;
+            case Method.PUT:
+                method = "PUT";
+                body = request.getBody();
+                permitsBody = true;
+                break;
+            case Method.HEAD:
+                method = "HEAD";
+                break;
+            case Method.OPTIONS:
+                method = "OPTIONS";
+                break;
+            case Method.TRACE:
+                method = "TRACE";
+                break;
+            case Method.PATCH:
+                method = "PATCH";
+                body = request.getBody();
+                permitsBody = true;
+                break;
+            default:
+                throw new IllegalStateException("Unknown method type.");
+        }
+
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.putAll(request.getHeaders());
+        headers.putAll(additionalHeaders);
+
+        String path = url.getFile();
+        StringBuilder head = new StringBuilder();
+        head.append(method).append(' ').append(path.length() > 0 ? path : "/")
+                .append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            head.append(':').append(url.getPort());
+        }
+        head.append("\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            String name = header.getKey();
+            if ("Host".equalsIgnoreCase(name) || "Connection".equalsIgnoreCase(name)
+                    || "Content-Length".equalsIgnoreCase(name)) {
+                continue;
+            }
+            head.append(name).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (body != null) {
+            String contentType = request.getMethod() == Method.DEPRECATED_GET_OR_POST
+                    ? request.getPostBodyContentType() : request.getBodyContentType();
+            head.append(HEADER_CONTENT_TYPE).append(": ").append(contentType).append("\r\n");
+        }
+        if (permitsBody) {
+            head.append("Content-Length: ").append(body != null ? body.length : 0)
+                    .append("\r\n");
+        }
+        head.append("Connection: close\r\n\r\n");
+
+        byte[] headBytes;
+        try {
+            headBytes = head.toString().getBytes(HEADER_CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        if (body == null) {
+            return headBytes;
+        }
+        byte[] message = new byte[headBytes.length + body.length];
+        System.arraycopy(headBytes, 0, message, 0, headBytes.length);
+        System.arraycopy(body, 0, message, headBytes.length, body.length);
+        return message;
+    }
+
+    /** A request in flight and the connection carrying it. */
+    private static class Exchange {
+        final ByteBuffer requestMessage;
+        final long timeoutMs;
+        final OnRequestComplete callback;
+        final ResponseReader response;
+
+        /** Set once the host name is resolved, before the exchange is registered. */
+        InetSocketAddress address;
+
+        /** Set when the request is cancelled, from any thread. */
+        volatile boolean aborted;
+
+        // The following are only accessed on the selector thread.
+        SocketChannel channel;
+        boolean connected;
+        long lastActivityMs;
+        private boolean mFinished;
+
+        Exchange(int method, byte[] requestMessage, int timeoutMs, OnRequestComplete callback) {
+            this.requestMessage = ByteBuffer.wrap(requestMessage);
+            this.timeoutMs = timeoutMs;
+            this.callback = callback;
+            this.response = new ResponseReader(method);
+        }
+
+        /**
+         * Closes the connection.
+         *
+         * @return true the first time this is called, false afterwards
+         */
+        boolean finish() {
+            if (mFinished) {
+                return false;
+            }
+            mFinished = true;
+            if (channel != null) {
+                try {
+                    // Also cancels the channel's selection key.
+                    channel.close();
+                } catch (IOException e) {
+                    VolleyLog.v("Error closing channel: %s", e.toString());
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Accumulates the bytes of an HTTP/1.1 response and decides when it is complete, based on
+     * Content-Length, chunked transfer coding or the end of the stream.
+     */
+    /* package */ static class ResponseReader {
+        private final int mMethod;
+
+        private byte[] mBuffer = new byte[READ_BUFFER_SIZE];
+        private int mLength;
+
+        /** Offset of the body, or -1 until the status line and headers have been read. */
+        private int mBodyOffset = -1;
+        private int mStatusCode;
+        private String mReasonPhrase;
+        private final List<String[]> mHeaders = new ArrayList<String[]>();
+        private long mContentLength = -1;
+        private boolean mChunked;
+        private boolean mHasBody;
+        private byte[] mBody;
+
+        /* package */ ResponseReader(int method) {
+            mMethod = method;
+        }
+
+        /* package */ void append(byte[] data, int count) {
+            if (mLength + count > mBuffer.length) {
+                byte[] grown = new byte[Math.max(mBuffer.length * 2, mLength + count)];
+                System.arraycopy(mBuffer, 0, grown, 0, mLength);
+                mBuffer = grown;
+            }
+            System.arraycopy(data, 0, mBuffer, mLength, count);
+            mLength += count;
+        }
+
+        /** Returns whether the whole response has been received. */
+        /* package */ boolean isComplete() throws IOException {
+            if (mBodyOffset < 0 && !parseHead()) {
+                return false;
+            }
+            if (!mHasBody) {
+                mBody = new byte[0];
+                return true;
+            }
+            if (mChunked) {
+                // Only attempt to decode once the terminating chunk may have arrived.
+                return endsWith("0\r\n\r\n") && decodeChunked();
+            }
+            if (mContentLength >= 0 && mLength - mBodyOffset >= mContentLength) {
+                mBody = new byte[(int) mContentLength];
+                System.arraycopy(mBuffer, mBodyOffset, mBody, 0, mBody.length);
+                return true;
+            }
+            return false;
+        }
+
+        /** Builds the response once the server has closed the connection. */
+        /* package */ HttpResponse onEndOfStream() throws IOException {
+            if (isComplete()) {
+                return build();
+            }
+            if (mBodyOffset < 0) {
+                throw new IOException("Connection closed before the response headers");
+            }
+            if (mChunked ? !decodeChunked() : mContentLength >= 0) {
+                throw new IOException("Connection closed before the end of the response");
+            }
+            if (!mChunked) {
+                // The body is delimited by the end of the stream.
+                mBody = new byte[mLength - mBodyOffset];
+                System.arraycopy(mBuffer, mBodyOffset, mBody, 0, mBody.length);
+            }
+            return build();
+        }
+
+        /** Builds the response; only valid once it is complete. */
+        /* package */ HttpResponse build() {
+            BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(
+                    new ProtocolVersion("HTTP", 1, 1), mStatusCode, mReasonPhrase));
+            String contentType = null;
+            String contentEncoding = null;
+            for (String[] header : mHeaders) {
+                response.addHeader(header[0], header[1]);
+                if (HEADER_CONTENT_TYPE.equalsIgnoreCase(header[0])) {
+                    contentType = header[1];
+                } else if ("Content-Encoding".equalsIgnoreCase(header[0])) {
+                    contentEncoding = header[1];
+                }
+            }
+            if (mHasBody) {
+                BasicHttpEntity entity = new BasicHttpEntity();
+                entity.setContent(new ByteArrayInputStream(mBody));
+                entity.setContentLength(mBody.length);
+                entity.setContentType(contentType);
+                entity.setContentEncoding(contentEncoding);
+                response.setEntity(entity);
+            }
+            return response;
+        }
+
+        private boolean parseHead() throws IOException {
+            int end = indexOf("\r\n\r\n", 0);
+            if (end < 0) {
+                return false;
+            }
+            String[] lines = new String(mBuffer, 0, end, HEADER_CHARSET).split("\r\n");
+            String[] statusLine = lines[0].split(" ", 3);
+            if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/")) {
+                throw new IOException("Malformed status line: " + lines[0]);
+            }
+            try {
+                mStatusCode = Integer.parseInt(statusLine[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed status line: " + lines[0]);
+            }
+            mReasonPhrase = statusLine.length > 2 ? statusLine[2] : "";
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim();
+                String value = lines[i].substring(colon + 1).trim();
+                mHeaders.add(new String[] { name, value });
+                if ("Content-Length".equalsIgnoreCase(name)) {
+                    try {
+                        mContentLength = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed Content-Length: " + value);
+                    }
+                    // The body is buffered in a single array.
+                    if (mContentLength < 0 || mContentLength > Integer.MAX_VALUE) {
+                        throw new IOException("Unsupported Content-Length: " + value);
+                    }
+                } else if ("Transfer-Encoding".equalsIgnoreCase(name)
+                        && value.toLowerCase().contains("chunked")) {
+                    mChunked = true;
+                }
+            }
+            mHasBody = HurlStack.hasResponseBody(mMethod, mStatusCode);
+            mBodyOffset = end + 4;
+            return true;
+        }
+
+        /** Decodes a chunked body into {@link #mBody}; returns false if it is incomplete. */
+        private boolean decodeChunked() throws IOException {
+            byte[] body = new byte[mLength - mBodyOffset];
+            int bodyLength = 0;
+            int position = mBodyOffset;
+            while (true) {
+                int lineEnd = indexOf("\r\n", position);
+                if (lineEnd < 0) {
+                    return false;
+                }
+                String sizeLine = new String(mBuffer, position, lineEnd - position,
+                        HEADER_CHARSET);
+                int extension = sizeLine.indexOf(';');
+                if (extension >= 0) {
+                    sizeLine = sizeLine.substring(0, extension);
+                }
+                int size;
+                try {
+                    size = Integer.parseInt(sizeLine.trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed chunk size: " + sizeLine);
+                }
+                if (size < 0) {
+                    throw new IOException("Malformed chunk size: " + sizeLine);
+                }
+                position = lineEnd + 2;
+                if (size == 0) {
+                    // Trailers, if any, are ignored.
+                    mBody = new byte[bodyLength];
+                    System.arraycopy(body, 0, mBody, 0, bodyLength);
+                    return true;
+                }
+                if ((long) position + size + 2 > mLength) {
+                    return false;
+                }
+                System.arraycopy(mBuffer, position, body, bodyLength, size);
+                bodyLength += size;
+                position += size + 2;
+            }
+        }
+
+        private boolean endsWith(String suffix) {
+            int start = mLength - suffix.length();
+            return start >= mBodyOffset && indexOf(suffix, start) == start;
+        }
+
+        private int indexOf(String ascii, int from) {
+            outer:
+            for (int i = from; i <= mLength - ascii.length(); i++) {
+                for (int j = 0; j < ascii.length(); j++) {
+                    if (mBuffer[i + j] != ascii.charAt(j)) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+    }
+}
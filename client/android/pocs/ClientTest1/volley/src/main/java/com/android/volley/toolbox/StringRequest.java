@@ -23,6 +23,7 @@ import com.android.volley.Response.ErrorListener;
 import com.android.volley.Response.Listener;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 
 /**
  * A canned request for retrieving the response body at a given URL as a String.
@@ -60,9 +61,38 @@ public class StringRequest extends Request<String> {
         mListener.onResponse(response);
     }
 
+    /**
+     * Strings are immutable, so a parsed response is shared with requests of the same class.
+     */
+    @Override
+    protected String getParsedResponseKey() {
+        return getClass().getName();
+    }
+
+    /**
+     * Subclasses may read {@link NetworkResponse#data} themselves, so only StringRequest
+     * itself reads the body from the buffer. Subclasses which parse it with
+     * {@code super.parseNetworkResponse()} can override this to return true.
+     */
+    @Override
+    public boolean canParseDataBuffer() {
+        return getClass() == StringRequest.class;
+    }
+
     @Override
     protected Response<String> parseNetworkResponse(NetworkResponse response) {
         String parsed;
+        if (response.data == null) {
+            // Decode straight from the cached body rather than from a copy of it.
+            Charset charset;
+            try {
+                charset = Charset.forName(HttpHeaderParser.parseCharset(response.headers));
+            } catch (IllegalArgumentException e) {
+                charset = Charset.defaultCharset();
+            }
+            parsed = charset.decode(response.dataBuffer.duplicate()).toString();
+            return Response.success(parsed, HttpHeaderParser.parseCacheHeaders(response));
+        }
         try {
             parsed = new String(response.data, HttpHeaderParser.parseCharset(response.headers));
         } catch (UnsupportedEncodingException e) {
@@ -40,15 +40,51 @@ public class Volley {
      * @return A started {@link RequestQueue} instance.
      */
     public static RequestQueue newRequestQueue(Context context, HttpStack stack) {
-        File cacheDir = new File(context.getCacheDir(), DEFAULT_CACHE_DIR);
+        RequestQueue queue = createRequestQueue(context, stack);
+        queue.start();
 
-        String userAgent = "volley/0";
-        try {
-            String packageName = context.getPackageName();
-            PackageInfo info = context.getPackageManager().getPackageInfo(packageName, 0);
-            userAgent = packageName + "/" + info.versionCode;
-        } catch (NameNotFoundException e) {
-        }
+        return queue;
+    }
+
+    /**
+     * Creates a default instance of the worker pool and calls {@link RequestQueue#start()} on it.
+     *
+     * @param context A {@link Context} to use for creating the cache dir.
+     * @return A started {@link RequestQueue} instance.
+     */
+    public static RequestQueue newRequestQueue(Context context) {
+        return newRequestQueue(context, null);
+    }
+
+    /**
+     * Creates a default instance of the worker pool and calls {@link RequestQueue#startLazily()}
+     * on it, so that its threads are only created, and its cache only initialized, when the
+     * first request is added. Suitable for creating the queue on an application's startup path.
+     *
+     * @param context A {@link Context} to use for creating the cache dir.
+     * @param stack An {@link HttpStack} to use for the network, or null for default.
+     * @return A {@link RequestQueue} instance which starts on first use.
+     */
+    public static RequestQueue newLazyRequestQueue(Context context, HttpStack stack) {
+        RequestQueue queue = createRequestQueue(context, stack);
+        queue.startLazily();
+
+        return queue;
+    }
+
+    /**
+     * Creates a default instance of the worker pool and calls {@link RequestQueue#startLazily()}
+     * on it.
+     *
+     * @param context A {@link Context} to use for creating the cache dir.
+     * @return A {@link RequestQueue} instance which starts on first use.
+     */
+    public static RequestQueue newLazyRequestQueue(Context context) {
+        return newLazyRequestQueue(context, null);
+    }
+
+    private static RequestQueue createRequestQueue(Context context, HttpStack stack) {
+        File cacheDir = new File(context.getCacheDir(), DEFAULT_CACHE_DIR);
 
         if (stack == null) {
             if (Build.VERSION.SDK_INT >= 9) {
@@ -56,25 +92,27 @@ public class Volley {
             } else {
                 // Prior to Gingerbread, HttpUrlConnection was unreliable.
                 // See: http://android-developers.blogspot.com/2011/09/androids-http-clients.html
-                stack = new HttpClientStack(AndroidHttpClient.newInstance(userAgent));
+                // Only this stack needs the user agent, which takes a package manager call.
+                stack = new HttpClientStack(AndroidHttpClient.newInstance(getUserAgent(context)));
             }
         }
 
         Network network = new BasicNetwork(stack);
 
-        RequestQueue queue = new RequestQueue(new DiskBasedCache(cacheDir), network);
-        queue.start();
-
-        return queue;
+        // Serve requests for entries already indexed while the rest of the cache index loads.
+        DiskBasedCache cache = new DiskBasedCache(cacheDir);
+        cache.setInitializationMode(DiskBasedCache.InitializationMode.ASYNC_WAIT_WHILE_LOADING);
+        return new RequestQueue(cache, network);
     }
 
-    /**
-     * Creates a default instance of the worker pool and calls {@link RequestQueue#start()} on it.
-     *
-     * @param context A {@link Context} to use for creating the cache dir.
-     * @return A started {@link RequestQueue} instance.
-     */
-    public static RequestQueue newRequestQueue(Context context) {
-        return newRequestQueue(context, null);
+    private static String getUserAgent(Context context) {
+        String userAgent = "volley/0";
+        try {
+            String packageName = context.getPackageName();
+            PackageInfo info = context.getPackageManager().getPackageInfo(packageName, 0);
+            userAgent = packageName + "/" + info.versionCode;
+        } catch (NameNotFoundException e) {
+        }
+        return userAgent;
     }
 }
@@ -28,6 +28,8 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
+import java.nio.ByteBuffer;
+
 import static org.junit.Assert.*;
 
 @RunWith(RobolectricTestRunner.class)
@@ -86,6 +88,23 @@ public class CacheDispatcherTest {
         mCacheQueue.waitUntilEmpty(TIMEOUT_MILLIS);
         assertTrue(mDelivery.postResponse_called);
         assertFalse(mDelivery.postError_called);
+        assertTrue(mCache.getCalled);
+        assertFalse(mCache.getAsBufferCalled);
+    }
+
+    // A request that parses buffers reads the cached body without copying it.
+    @Test public void nonExpiredCacheHitAsBuffer() throws Exception {
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(null, false, false);
+        entry.dataBuffer = ByteBuffer.wrap(entry.data).asReadOnlyBuffer();
+        entry.data = null;
+        mCache.setEntryToReturn(entry);
+        mRequest.setCanParseDataBuffer(true);
+        mCacheQueue.add(mRequest);
+        mCacheQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertTrue(mCache.getAsBufferCalled);
+        assertFalse(mCache.getCalled);
+        assertTrue(mRequest.parseResponse_called);
+        assertTrue(mDelivery.postResponse_called);
     }
 
     // A soft-expired cache hit posts a response and queues to the network.
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.RequestQueue.RequestFinishedListener;
+import com.android.volley.mock.MockRequest;
+import com.android.volley.mock.ShadowSystemClock;
+import com.android.volley.utils.CacheTestUtils;
+import com.android.volley.utils.ImmediateResponseDelivery;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the cache hits of a {@link RequestQueue} are read in parallel by its cache
+ * dispatchers. Each cache read waits until as many reads as there are shards are in progress,
+ * standing in for a slow disk read and parse.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = {ShadowSystemClock.class})
+public class CacheShardingBenchmarkTest {
+
+    private static final int REQUEST_COUNT = 48;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Test public void cacheReadsRunInParallelAcrossShards() throws Exception {
+        assertEquals(1, maxConcurrentCacheReads(1));
+        assertEquals(2, maxConcurrentCacheReads(2));
+        assertEquals(4, maxConcurrentCacheReads(4));
+    }
+
+    @Test public void sameKeyStaysOnOneShard() throws Exception {
+        SlowCache cache = new SlowCache(1);
+        RequestQueue queue = new RequestQueue(cache, new UnusedNetwork(), 0, 4,
+                new ImmediateResponseDelivery());
+        final List<Request<?>> finished = Collections.synchronizedList(new ArrayList<Request<?>>());
+        final CountDownLatch done = new CountDownLatch(10);
+        queue.addRequestFinishedListener(new RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                finished.add(request);
+                done.countDown();
+            }
+        });
+
+        List<Request<?>> added = new ArrayList<Request<?>>();
+        for (int i = 0; i < 10; i++) {
+            MockRequest request = new MockRequest();
+            request.setCacheKey("same-key");
+            added.add(queue.add(request));
+        }
+        queue.start();
+
+        assertTrue(done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        queue.stop();
+        assertEquals(added, finished);
+        assertEquals(1, cache.initializeCount.get());
+    }
+
+    private int maxConcurrentCacheReads(int shards) throws Exception {
+        SlowCache cache = new SlowCache(shards);
+        RequestQueue queue = new RequestQueue(cache, new UnusedNetwork(), 0, shards,
+                new ImmediateResponseDelivery());
+        final CountDownLatch done = new CountDownLatch(REQUEST_COUNT);
+        queue.addRequestFinishedListener(new RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                done.countDown();
+            }
+        });
+        queue.start();
+
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            MockRequest request = new MockRequest();
+            request.setCacheKey("http://foo.com/" + i);
+            queue.add(request);
+        }
+        assertTrue(done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        queue.stop();
+        assertEquals(1, cache.initializeCount.get());
+        return cache.maxConcurrentReads.get();
+    }
+
+    /**
+     * A cache that always hits. Its first reads wait for each other until the expected number
+     * of them are in progress at once.
+     */
+    private static class SlowCache implements Cache {
+        private final CountDownLatch mAllReading;
+        private final AtomicInteger mReads = new AtomicInteger();
+        final AtomicInteger maxConcurrentReads = new AtomicInteger();
+        final AtomicInteger initializeCount = new AtomicInteger();
+
+        SlowCache(int expectedConcurrentReads) {
+            mAllReading = new CountDownLatch(expectedConcurrentReads);
+        }
+
+        @Override
+        public Entry get(String key) {
+            int reads = mReads.incrementAndGet();
+            int max;
+            while ((max = maxConcurrentReads.get()) < reads
+                    && !maxConcurrentReads.compareAndSet(max, reads)) { }
+            mAllReading.countDown();
+            try {
+                mAllReading.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mReads.decrementAndGet();
+            return CacheTestUtils.makeRandomCacheEntry(null);
+        }
+
+        @Override
+        public void put(String key, Entry entry) {
+        }
+
+        @Override
+        public void initialize() {
+            initializeCount.incrementAndGet();
+        }
+
+        @Override
+        public void invalidate(String key, boolean fullExpire) {
+        }
+
+        @Override
+        public void remove(String key) {
+        }
+
+        @Override
+        public void clear() {
+        }
+    }
+
+    private static class UnusedNetwork implements Network {
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            throw new AssertionError("Cache hits must not reach the network");
+        }
+    }
+}
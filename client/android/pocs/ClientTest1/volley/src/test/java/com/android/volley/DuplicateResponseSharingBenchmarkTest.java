@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.RequestQueue.RequestFinishedListener;
+import com.android.volley.mock.MockRequest;
+import com.android.volley.toolbox.DiskBasedCache;
+import com.android.volley.utils.CacheTestUtils;
+import com.android.volley.utils.ImmediateResponseDelivery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the disk reads made by a burst of requests for the same resource. Requests staged
+ * behind the first one are answered with its response rather than reading it back from a
+ * {@link DiskBasedCache}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DuplicateResponseSharingBenchmarkTest {
+
+    private static final int REQUEST_COUNT = 10;
+    private static final int BODY_SIZE = 64 * 1024;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private File mCacheDir;
+    private CountingCache mCache;
+
+    @Before public void setUp() throws Exception {
+        mCacheDir = File.createTempFile("volley", "cache");
+        assertTrue(mCacheDir.delete());
+        assertTrue(mCacheDir.mkdir());
+        mCache = new CountingCache(new DiskBasedCache(mCacheDir));
+    }
+
+    @After public void tearDown() throws Exception {
+        mCache.clear();
+        mCacheDir.delete();
+    }
+
+    @Test public void duplicatesOfNetworkFetchDoNotReadDisk() throws Exception {
+        CountingNetwork network = new CountingNetwork(new byte[BODY_SIZE]);
+        List<MockRequest> requests = runDuplicates(network);
+
+        assertEquals(1, network.count.get());
+        // Only the first request looked in the cache, and missed.
+        assertEquals(1, mCache.gets.get());
+        assertEquals(0, mCache.bytesRead.get());
+        for (MockRequest request : requests) {
+            assertTrue(request.deliverResponse_called);
+        }
+    }
+
+    @Test public void duplicatesOfCacheHitDoNotReadDisk() throws Exception {
+        mCache.initialize();
+        mCache.put("same-key", CacheTestUtils.makeRandomCacheEntry(new byte[BODY_SIZE]));
+        List<MockRequest> requests = runDuplicates(new CountingNetwork(null));
+
+        assertEquals(1, mCache.gets.get());
+        assertEquals(BODY_SIZE, mCache.bytesRead.get());
+        for (MockRequest request : requests) {
+            assertTrue(request.deliverResponse_called);
+        }
+    }
+
+    private List<MockRequest> runDuplicates(Network network) throws Exception {
+        RequestQueue queue = new RequestQueue(mCache, network, 1,
+                new ImmediateResponseDelivery());
+        final CountDownLatch done = new CountDownLatch(REQUEST_COUNT);
+        queue.addRequestFinishedListener(new RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                done.countDown();
+            }
+        });
+
+        // Added before starting so that all but the first are staged behind it.
+        List<MockRequest> requests = new ArrayList<MockRequest>();
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            MockRequest request = new MockRequest();
+            request.setCacheKey("same-key");
+            requests.add(request);
+            queue.add(request);
+        }
+        queue.start();
+        try {
+            assertTrue(done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        } finally {
+            queue.stop();
+        }
+        return requests;
+    }
+
+    /** Counts the reads made from the wrapped cache. */
+    private static class CountingCache implements Cache {
+        private final Cache mCache;
+        final AtomicInteger gets = new AtomicInteger();
+        final AtomicLong bytesRead = new AtomicLong();
+
+        CountingCache(Cache cache) {
+            mCache = cache;
+        }
+
+        @Override
+        public Entry get(String key) {
+            gets.incrementAndGet();
+            Entry entry = mCache.get(key);
+            if (entry != null) {
+                bytesRead.addAndGet(entry.data.length);
+            }
+            return entry;
+        }
+
+        @Override
+        public void put(String key, Entry entry) {
+            mCache.put(key, entry);
+        }
+
+        @Override
+        public void initialize() {
+            mCache.initialize();
+        }
+
+        @Override
+        public void invalidate(String key, boolean fullExpire) {
+            mCache.invalidate(key, fullExpire);
+        }
+
+        @Override
+        public void remove(String key) {
+            mCache.remove(key);
+        }
+
+        @Override
+        public void clear() {
+            mCache.clear();
+        }
+    }
+
+    /** A network which always answers with the same body, or fails if there is none. */
+    private static class CountingNetwork implements Network {
+        private final byte[] mBody;
+        final AtomicInteger count = new AtomicInteger();
+
+        CountingNetwork(byte[] body) {
+            mBody = body;
+        }
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            count.incrementAndGet();
+            if (mBody == null) {
+                throw new AssertionError("Cache hits must not reach the network");
+            }
+            return new NetworkResponse(mBody);
+        }
+    }
+}
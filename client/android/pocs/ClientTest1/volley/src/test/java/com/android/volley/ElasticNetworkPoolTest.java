@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.SystemClock;
+
+import com.android.volley.RequestQueue.ElasticPoolPolicy;
+import com.android.volley.RequestQueue.RequestFinishedListener;
+import com.android.volley.mock.MockRequest;
+import com.android.volley.toolbox.NoCache;
+import com.android.volley.utils.ImmediateResponseDelivery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class ElasticNetworkPoolTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private BlockingNetwork mNetwork;
+    private RequestQueue mQueue;
+
+    @Before public void setUp() throws Exception {
+        mNetwork = new BlockingNetwork();
+        mQueue = new RequestQueue(new NoCache(), mNetwork, 4, new ImmediateResponseDelivery());
+    }
+
+    @After public void tearDown() throws Exception {
+        mNetwork.release.countDown();
+        mQueue.stop();
+    }
+
+    @Test public void fixedPoolReportsSize() throws Exception {
+        assertEquals(0, mQueue.getNetworkThreadPoolSize());
+        mQueue.start();
+        assertEquals(4, mQueue.getNetworkThreadPoolSize());
+        mQueue.stop();
+        assertEquals(0, mQueue.getNetworkThreadPoolSize());
+    }
+
+    @Test public void startsAtMinimum() throws Exception {
+        mQueue.setElasticPoolPolicy(new ElasticPoolPolicy(1, 6, 2, 10000, 100));
+        mQueue.start();
+        assertEquals(1, mQueue.getNetworkThreadPoolSize());
+    }
+
+    @Test public void growsWithQueueDepthAndShrinksWhenIdle() throws Exception {
+        mQueue.setElasticPoolPolicy(new ElasticPoolPolicy(1, 6, 2, 10000, 100));
+        final CountDownLatch finished = new CountDownLatch(12);
+        mQueue.addRequestFinishedListener(new RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                finished.countDown();
+            }
+        });
+        mQueue.start();
+
+        for (int i = 0; i < 12; i++) {
+            MockRequest request = new MockRequest();
+            request.setShouldCache(false);
+            mQueue.add(request);
+        }
+
+        // All dispatchers end up blocked in the network while requests keep queueing.
+        assertTrue(waitFor(6, mNetwork.inFlight));
+        assertEquals(6, mQueue.getNetworkThreadPoolSize());
+
+        mNetwork.release.countDown();
+        assertTrue(finished.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mQueue.getNetworkThreadPoolSize() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, mQueue.getNetworkThreadPoolSize());
+    }
+
+    @Test public void emptyMinimumStillServesRequests() throws Exception {
+        mQueue.setElasticPoolPolicy(new ElasticPoolPolicy(0, 2, 10, 10000, 50));
+        mNetwork.release.countDown();
+        final CountDownLatch finished = new CountDownLatch(1);
+        mQueue.addRequestFinishedListener(new RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                finished.countDown();
+            }
+        });
+        mQueue.start();
+        assertEquals(0, mQueue.getNetworkThreadPoolSize());
+
+        MockRequest request = new MockRequest();
+        request.setShouldCache(false);
+        mQueue.add(request);
+        assertTrue(finished.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test public void delayedRetryKeepsLastDispatcher() throws Exception {
+        final long retryDelayMs = 500;
+        final AtomicInteger attempts = new AtomicInteger();
+        Network network = new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+                if (attempts.incrementAndGet() == 1) {
+                    throw new RetryError(new ServerError(), retryDelayMs);
+                }
+                return new NetworkResponse(new byte[0]);
+            }
+        };
+        mQueue = new RequestQueue(new NoCache(), network, 4, new ImmediateResponseDelivery());
+        mQueue.setElasticPoolPolicy(new ElasticPoolPolicy(0, 2, 10, 10000, 50));
+        final CountDownLatch finished = new CountDownLatch(1);
+        mQueue.addRequestFinishedListener(new RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                finished.countDown();
+            }
+        });
+        mQueue.start();
+
+        MockRequest request = new MockRequest();
+        request.setShouldCache(false);
+        mQueue.add(request);
+        assertTrue(waitFor(1, attempts));
+        // Idle for several timeouts while the retry waits.
+        Thread.sleep(250);
+        assertEquals(1, mQueue.getNetworkThreadPoolSize());
+
+        // Advances the test clock past the retry delay.
+        SystemClock.sleep(retryDelayMs);
+        assertTrue(finished.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(2, attempts.get());
+        assertTrue(request.deliverResponse_called);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void policyCannotChangeWhileStarted() throws Exception {
+        mQueue.start();
+        mQueue.setElasticPoolPolicy(new ElasticPoolPolicy(1, 2, 1, 100, 100));
+    }
+
+    private static boolean waitFor(int expected, AtomicInteger counter)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (counter.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return counter.get() >= expected;
+    }
+
+    /** A network whose requests all block until {@link #release} is counted down. */
+    private static class BlockingNetwork implements Network {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger inFlight = new AtomicInteger();
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            inFlight.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new VolleyError(e);
+            }
+            return new NetworkResponse(new byte[0]);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.mock.MockRequest;
+import com.android.volley.toolbox.DiskBasedCache;
+import com.android.volley.toolbox.Volley;
+import com.android.volley.utils.CacheTestUtils;
+import com.android.volley.utils.ImmediateResponseDelivery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Counts the threads started and cache scans made when starting a {@link RequestQueue},
+ * typically on an application's startup path, with {@link RequestQueue#start()} and with
+ * {@link RequestQueue#startLazily()}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class LazyStartBenchmarkTest {
+
+    private static final int ENTRY_COUNT = 1000;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private File mCacheDir;
+
+    @Before public void setUp() throws Exception {
+        mCacheDir = File.createTempFile("volley", "cache");
+        assertTrue(mCacheDir.delete());
+        assertTrue(mCacheDir.mkdir());
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir);
+        cache.initialize();
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            cache.put("http://foo.com/" + i, CacheTestUtils.makeRandomCacheEntry(new byte[256]));
+        }
+    }
+
+    @After public void tearDown() throws Exception {
+        new DiskBasedCache(mCacheDir).clear();
+        mCacheDir.delete();
+    }
+
+    @Test public void lazyStartDefersThreadsAndCacheScan() throws Exception {
+        Set<Thread> before = dispatcherThreads();
+        CountingCache eagerCache = new CountingCache(new DiskBasedCache(mCacheDir));
+        RequestQueue eager = new RequestQueue(eagerCache, new EmptyNetwork(), 4,
+                new ImmediateResponseDelivery());
+        eager.start();
+        assertEquals(5, countNew(before));
+        // The cache is scanned straight away, competing with the rest of startup.
+        assertTrue(eagerCache.initialized.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        eager.stop();
+
+        before = dispatcherThreads();
+        CountingCache lazyCache = new CountingCache(new DiskBasedCache(mCacheDir));
+        RequestQueue lazy = new RequestQueue(lazyCache, new EmptyNetwork(), 4,
+                new ImmediateResponseDelivery());
+        lazy.startLazily();
+        assertEquals(0, countNew(before));
+        assertEquals(0, lazyCache.initializeCount.get());
+
+        final CountDownLatch done = new CountDownLatch(1);
+        lazy.addRequestFinishedListener(new RequestQueue.RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                done.countDown();
+            }
+        });
+        lazy.add(new MockRequest("http://foo.com/missing", null));
+        assertTrue(done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(1, lazyCache.initializeCount.get());
+        lazy.stop();
+    }
+
+    @Test public void lazyFactoryStartsNoThreadsOnStartupPath() throws Exception {
+        Set<Thread> before = dispatcherThreads();
+        RequestQueue queue = Volley.newRequestQueue(RuntimeEnvironment.application);
+        assertEquals(5, countNew(before));
+        queue.stop();
+
+        before = dispatcherThreads();
+        queue = Volley.newLazyRequestQueue(RuntimeEnvironment.application);
+        assertEquals(0, countNew(before));
+        queue.stop();
+    }
+
+    private static Set<Thread> dispatcherThreads() {
+        Set<Thread> threads = new HashSet<Thread>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ((thread instanceof CacheDispatcher || thread instanceof NetworkDispatcher)
+                    && thread.isAlive()) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
+
+    private static int countNew(Set<Thread> before) {
+        Set<Thread> threads = dispatcherThreads();
+        threads.removeAll(before);
+        return threads.size();
+    }
+
+    /** Counts the initializations of the wrapped cache. */
+    private static class CountingCache implements Cache {
+        private final Cache mCache;
+        final AtomicInteger initializeCount = new AtomicInteger();
+        final CountDownLatch initialized = new CountDownLatch(1);
+
+        CountingCache(Cache cache) {
+            mCache = cache;
+        }
+
+        @Override
+        public Entry get(String key) {
+            return mCache.get(key);
+        }
+
+        @Override
+        public void put(String key, Entry entry) {
+            mCache.put(key, entry);
+        }
+
+        @Override
+        public void initialize() {
+            mCache.initialize();
+            initializeCount.incrementAndGet();
+            initialized.countDown();
+        }
+
+        @Override
+        public void invalidate(String key, boolean fullExpire) {
+            mCache.invalidate(key, fullExpire);
+        }
+
+        @Override
+        public void remove(String key) {
+            mCache.remove(key);
+        }
+
+        @Override
+        public void clear() {
+            mCache.clear();
+        }
+    }
+
+    private static class EmptyNetwork implements Network {
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            return new NetworkResponse(new byte[0]);
+        }
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.android.volley;
 
+import android.os.SystemClock;
+
 import com.android.volley.mock.MockCache;
 import com.android.volley.mock.MockNetwork;
 import com.android.volley.mock.MockRequest;
@@ -27,7 +29,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -79,6 +83,24 @@ public class NetworkDispatcherTest {
         assertTrue(mDelivery.postError_called);
     }
 
+    @Test public void pastDeadlineIsDropped() throws Exception {
+        mNetwork.setDataToReturn(CANNED_DATA);
+        mRequest.setDeadline(SystemClock.elapsedRealtime() - 1);
+        mNetworkQueue.add(mRequest);
+        mNetworkQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertFalse(mDelivery.postResponse_called);
+        assertTrue(mDelivery.postError_called);
+        assertTrue(mDelivery.errorPosted instanceof DeadlineExceededError);
+    }
+
+    @Test public void futureDeadlineIsSent() throws Exception {
+        mNetwork.setDataToReturn(CANNED_DATA);
+        mRequest.setDeadline(SystemClock.elapsedRealtime() + 60000);
+        mNetworkQueue.add(mRequest);
+        mNetworkQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertTrue(mDelivery.postResponse_called);
+    }
+
     @Test public void shouldCacheFalse() throws Exception {
         mRequest.setShouldCache(false);
         mNetworkQueue.add(mRequest);
@@ -97,4 +119,50 @@ public class NetworkDispatcherTest {
         assertTrue(Arrays.equals(mCache.entryPut.data, CANNED_DATA));
         assertEquals("bananaphone", mCache.keyPut);
     }
+
+    @Test public void asyncNetworkDoesNotPinDispatcher() throws Exception {
+        PendingAsyncNetwork network = new PendingAsyncNetwork();
+        WaitableQueue queue = new WaitableQueue();
+        MockResponseDelivery delivery = new MockResponseDelivery();
+        NetworkDispatcher dispatcher = new NetworkDispatcher(queue, network, mCache, delivery);
+        dispatcher.start();
+        try {
+            for (int i = 0; i < 2; i++) {
+                MockRequest request = new MockRequest();
+                request.setSequence(i);
+                queue.add(request);
+            }
+            // A single dispatcher hands both requests over without waiting for the first.
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (network.pending().size() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, network.pending().size());
+            assertFalse(delivery.postResponse_called);
+
+            network.pending().get(0).onSuccess(new NetworkResponse(CANNED_DATA));
+            assertTrue(delivery.postResponse_called);
+            assertTrue(Arrays.equals((byte[]) delivery.responsePosted.result, CANNED_DATA));
+            network.pending().get(1).onError(new VolleyError());
+            assertTrue(delivery.postError_called);
+        } finally {
+            dispatcher.quit();
+            dispatcher.join();
+        }
+    }
+
+    /** An asynchronous network which leaves every request pending until told otherwise. */
+    private static class PendingAsyncNetwork extends AsyncNetwork {
+        private final List<OnRequestComplete> mPending = new ArrayList<OnRequestComplete>();
+
+        @Override
+        public synchronized void performRequest(Request<?> request,
+                OnRequestComplete callback) {
+            mPending.add(callback);
+        }
+
+        synchronized List<OnRequestComplete> pending() {
+            return new ArrayList<OnRequestComplete>(mPending);
+        }
+    }
 }
@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.SystemClock;
+
+import com.android.volley.RequestQueue.HostStats;
+import com.android.volley.RequestQueue.RequestFinishedListener;
+import com.android.volley.mock.MockRequest;
+import com.android.volley.toolbox.NoCache;
+import com.android.volley.utils.ImmediateResponseDelivery;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class NetworkQueueTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @Test public void takesInPriorityOrderAcrossHosts() throws Exception {
+        NetworkQueue queue = new NetworkQueue();
+        MockRequest a = request("http://a.com/1", 1, Request.Priority.NORMAL);
+        MockRequest b = request("http://b.com/1", 2, Request.Priority.HIGH);
+        MockRequest c = request("http://a.com/2", 3, Request.Priority.NORMAL);
+        queue.add(a);
+        queue.add(b);
+        queue.add(c);
+        assertEquals(3, queue.size());
+        assertSame(b, queue.take());
+        assertSame(a, queue.take());
+        assertSame(c, queue.take());
+        assertNull(queue.poll());
+    }
+
+    @Test public void ordersByDeadlineWithinPriority() throws Exception {
+        NetworkQueue queue = new NetworkQueue();
+        MockRequest noDeadline = request("http://a.com/1", 1, Request.Priority.NORMAL);
+        MockRequest late = request("http://b.com/1", 2, Request.Priority.NORMAL);
+        late.setDeadline(2000);
+        MockRequest early = request("http://a.com/2", 3, Request.Priority.NORMAL);
+        early.setDeadline(1000);
+        MockRequest high = request("http://a.com/3", 4, Request.Priority.HIGH);
+        queue.add(noDeadline);
+        queue.add(late);
+        queue.add(early);
+        queue.add(high);
+        assertSame(high, queue.take());
+        assertSame(early, queue.take());
+        assertSame(late, queue.take());
+        assertSame(noDeadline, queue.take());
+    }
+
+    @Test public void delayedRequestIsTakenOnceDue() throws Exception {
+        NetworkQueue queue = new NetworkQueue();
+        MockRequest retry = request("http://a.com/1", 1, Request.Priority.HIGH);
+        MockRequest fresh = request("http://a.com/2", 2, Request.Priority.LOW);
+        queue.offerDelayed(retry, SystemClock.elapsedRealtime() + 100);
+        queue.add(fresh);
+        assertEquals(2, queue.size());
+        assertSame(fresh, queue.poll());
+        assertNull(queue.poll());
+        assertEquals(100, queue.getNextDelayMs());
+
+        // Advances the test clock.
+        SystemClock.sleep(100);
+        assertSame(retry, queue.poll(1, TimeUnit.SECONDS));
+        assertEquals(0, queue.size());
+        assertEquals(-1, queue.getNextDelayMs());
+    }
+
+    @Test public void delayedRequestCanBeRemoved() throws Exception {
+        NetworkQueue queue = new NetworkQueue();
+        MockRequest retry = request("http://a.com/1", 1, Request.Priority.NORMAL);
+        queue.offerDelayed(retry, SystemClock.elapsedRealtime() + 100);
+        assertTrue(queue.remove(retry));
+        assertEquals(0, queue.size());
+        SystemClock.sleep(100);
+        assertNull(queue.poll());
+    }
+
+    @Test public void minPriorityOnlyTakesTopLanes() throws Exception {
+        NetworkQueue queue = new NetworkQueue();
+        MockRequest low = request("http://a.com/1", 1, Request.Priority.LOW);
+        MockRequest high = request("http://b.com/1", 2, Request.Priority.HIGH);
+        MockRequest immediate = request("http://a.com/2", 3, Request.Priority.IMMEDIATE);
+        queue.add(low);
+        queue.add(high);
+        queue.add(immediate);
+        assertSame(immediate, queue.take(Request.Priority.HIGH));
+        assertSame(high, queue.take(Request.Priority.HIGH));
+        assertNull(queue.poll(Request.Priority.HIGH, 10, TimeUnit.MILLISECONDS));
+        assertEquals(1, queue.size());
+        assertSame(low, queue.take());
+    }
+
+    @Test public void skipsSaturatedHostUntilReleased() throws Exception {
+        NetworkQueue queue = new NetworkQueue();
+        queue.setHostLimit("cdn.com", 1);
+        MockRequest cdn1 = request("http://CDN.com/1", 1, Request.Priority.HIGH);
+        MockRequest cdn2 = request("http://cdn.com/2", 2, Request.Priority.HIGH);
+        MockRequest api = request("http://api.com/1", 3, Request.Priority.LOW);
+        queue.add(cdn1);
+        queue.add(cdn2);
+        queue.add(api);
+
+        assertSame(cdn1, queue.take());
+        // cdn2 has the higher priority but its host is saturated.
+        assertSame(api, queue.take());
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+        assertEquals(1, queue.size());
+
+        HostStats stats = queue.getHostStats().get("cdn.com");
+        assertEquals(1, stats.queued);
+        assertEquals(1, stats.inFlight);
+        assertEquals(2, stats.peakQueued);
+        assertEquals(1, stats.maxInFlight);
+
+        queue.release(cdn1);
+        // Releasing twice has no further effect.
+        queue.release(cdn1);
+        assertSame(cdn2, queue.take());
+        assertEquals(1, queue.getHostStats().get("cdn.com").inFlight);
+    }
+
+    @Test public void forgetsHostWithNothingQueuedOrInFlight() throws Exception {
+        NetworkQueue queue = new NetworkQueue();
+        MockRequest taken = request("http://a.com/1", 1, Request.Priority.NORMAL);
+        MockRequest removed = request("http://b.com/1", 2, Request.Priority.NORMAL);
+        queue.add(taken);
+        queue.add(removed);
+
+        assertSame(taken, queue.take());
+        assertTrue(queue.remove(removed));
+        assertEquals(Collections.singleton("a.com"), queue.getHostStats().keySet());
+
+        queue.release(taken);
+        assertTrue(queue.getHostStats().isEmpty());
+
+        // A host seen again starts afresh.
+        queue.add(taken);
+        assertEquals(1, queue.getHostStats().get("a.com").peakQueued);
+        assertSame(taken, queue.take());
+    }
+
+    @Test public void releaseWakesBlockedTaker() throws Exception {
+        final NetworkQueue queue = new NetworkQueue();
+        queue.setDefaultHostLimit(1);
+        MockRequest first = request("http://a.com/1", 1, Request.Priority.NORMAL);
+        MockRequest second = request("http://a.com/2", 2, Request.Priority.NORMAL);
+        queue.add(first);
+        queue.add(second);
+        assertSame(first, queue.take());
+
+        final CountDownLatch taken = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    queue.take();
+                    taken.countDown();
+                } catch (InterruptedException e) {
+                    // Test fails on timeout.
+                }
+            }
+        }.start();
+        assertFalse(taken.await(50, TimeUnit.MILLISECONDS));
+        queue.release(first);
+        assertTrue(taken.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test public void saturatedHostDoesNotStarveOtherHosts() throws Exception {
+        HostBlockingNetwork network = new HostBlockingNetwork("cdn.com");
+        RequestQueue queue = new RequestQueue(new NoCache(), network, 4,
+                new ImmediateResponseDelivery());
+        queue.setMaxRequestsPerHost("cdn.com", 2);
+        final CountDownLatch apiDone = new CountDownLatch(3);
+        queue.addRequestFinishedListener(new RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                if (request.getUrl().contains("api.com")) {
+                    apiDone.countDown();
+                }
+            }
+        });
+        queue.start();
+        try {
+            for (int i = 0; i < 10; i++) {
+                queue.add(uncached("http://cdn.com/image" + i));
+            }
+            for (int i = 0; i < 3; i++) {
+                queue.add(uncached("http://api.com/call" + i));
+            }
+            assertTrue(apiDone.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (network.blocked.get() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, network.blocked.get());
+
+            HostStats cdn = queue.getNetworkHostStats().get("cdn.com");
+            assertEquals(2, cdn.inFlight);
+            assertEquals(8, cdn.queued);
+            // api.com has nothing queued or in flight any more.
+            assertFalse(queue.getNetworkHostStats().containsKey("api.com"));
+        } finally {
+            network.release.countDown();
+            queue.stop();
+        }
+    }
+
+    @Test public void reservedDispatcherServesUrgentRequestsWhilePoolIsBusy() throws Exception {
+        HostBlockingNetwork network = new HostBlockingNetwork("bulk.com");
+        RequestQueue queue = new RequestQueue(new NoCache(), network, 2,
+                new ImmediateResponseDelivery());
+        queue.setReservedNetworkDispatchers(1, Request.Priority.HIGH);
+        final CountDownLatch urgentDone = new CountDownLatch(1);
+        queue.addRequestFinishedListener(new RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                if (request.getUrl().contains("api.com")) {
+                    urgentDone.countDown();
+                }
+            }
+        });
+        queue.start();
+        try {
+            for (int i = 0; i < 4; i++) {
+                MockRequest prefetch = uncached("http://bulk.com/prefetch" + i);
+                prefetch.setPriority(Request.Priority.LOW);
+                queue.add(prefetch);
+            }
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (network.blocked.get() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            // Both pool dispatchers are busy; the reserved one ignores the remaining prefetches.
+            assertEquals(2, network.blocked.get());
+            MockRequest urgent = uncached("http://api.com/profile");
+            urgent.setPriority(Request.Priority.IMMEDIATE);
+            queue.add(urgent);
+            assertTrue(urgentDone.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            assertEquals(2, network.blocked.get());
+        } finally {
+            network.release.countDown();
+            queue.stop();
+        }
+    }
+
+    @Test public void inheritedPriorityMovesQueuedRequest() throws Exception {
+        NetworkQueue queue = new NetworkQueue();
+        MockRequest prefetch = request("http://a.com/1", 1, Request.Priority.LOW);
+        MockRequest normal = request("http://b.com/1", 2, Request.Priority.NORMAL);
+        queue.add(prefetch);
+        queue.add(normal);
+        queue.inheritPriority(prefetch, Request.Priority.IMMEDIATE);
+        // A lower priority is not inherited.
+        queue.inheritPriority(prefetch, Request.Priority.HIGH);
+        assertEquals(Request.Priority.IMMEDIATE, ((Request<?>) prefetch).getEffectivePriority());
+        assertEquals(2, queue.size());
+        assertSame(prefetch, queue.take());
+        assertSame(normal, queue.take());
+    }
+
+    @Test public void setPriorityMovesQueuedRequest() throws Exception {
+        NetworkQueue queue = new NetworkQueue();
+        MockRequest first = request("http://a.com/1", 1, Request.Priority.HIGH);
+        MockRequest second = request("http://a.com/2", 2, Request.Priority.NORMAL);
+        queue.add(first);
+        queue.add(second);
+        queue.setPriority(first, Request.Priority.LOW);
+        assertSame(second, queue.take());
+        // Restoring the request's own priority applies if it is queued again.
+        queue.setPriority(first, null);
+        assertEquals(Request.Priority.HIGH, ((Request<?>) first).getEffectivePriority());
+        assertSame(first, queue.take());
+    }
+
+    @Test public void setPriorityByTagReordersQueuedRequests() throws Exception {
+        HostBlockingNetwork network = new HostBlockingNetwork("none");
+        RequestQueue queue = new RequestQueue(new NoCache(), network, 1,
+                new ImmediateResponseDelivery());
+        final CountDownLatch done = new CountDownLatch(4);
+        queue.addRequestFinishedListener(new RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                done.countDown();
+            }
+        });
+        Object visible = new Object();
+        // All wait in the cache queue, which is re-sorted, until the queue starts.
+        for (int i = 0; i < 2; i++) {
+            MockRequest offScreen = new MockRequest("http://a.com/offscreen" + i, null);
+            offScreen.setPriority(Request.Priority.NORMAL);
+            queue.add(offScreen);
+        }
+        for (int i = 0; i < 2; i++) {
+            MockRequest onScreen = new MockRequest("http://a.com/onscreen" + i, null);
+            onScreen.setPriority(Request.Priority.LOW);
+            onScreen.setTag(visible);
+            queue.add(onScreen);
+        }
+        queue.setPriority(visible, Request.Priority.IMMEDIATE);
+        queue.start();
+        try {
+            assertTrue(done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        } finally {
+            queue.stop();
+        }
+        assertEquals(Arrays.asList("http://a.com/onscreen0", "http://a.com/onscreen1"),
+                network.performed.subList(0, 2));
+    }
+
+    @Test public void inFlightRequestInheritsPriorityOfStagedDuplicate() throws Exception {
+        HostBlockingNetwork network = new HostBlockingNetwork("block.com");
+        RequestQueue queue = new RequestQueue(new NoCache(), network, 1,
+                new ImmediateResponseDelivery());
+        final CountDownLatch done = new CountDownLatch(4);
+        queue.addRequestFinishedListener(new RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                done.countDown();
+            }
+        });
+        queue.start();
+        try {
+            // Keep the only network dispatcher busy while the others queue up.
+            queue.add(uncached("http://block.com/1"));
+            MockRequest other = new MockRequest("http://a.com/other", null);
+            queue.add(other);
+            MockRequest prefetch = new MockRequest("http://a.com/item", null);
+            prefetch.setPriority(Request.Priority.LOW);
+            queue.add(prefetch);
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while ((network.blocked.get() < 1 || queue.getNetworkHostStats().get("a.com") == null
+                    || queue.getNetworkHostStats().get("a.com").queued < 2)
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, queue.getNetworkHostStats().get("a.com").queued);
+
+            MockRequest urgent = new MockRequest("http://a.com/item", null);
+            urgent.setPriority(Request.Priority.IMMEDIATE);
+            queue.add(urgent);
+            assertEquals(Request.Priority.IMMEDIATE, ((Request<?>) prefetch).getEffectivePriority());
+
+            network.release.countDown();
+            assertTrue(done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            // The staged request was answered with its duplicate's response.
+            assertEquals(Arrays.asList("http://block.com/1", "http://a.com/item",
+                    "http://a.com/other"), network.performed);
+            assertTrue(urgent.deliverResponse_called);
+        } finally {
+            network.release.countDown();
+            queue.stop();
+        }
+    }
+
+    private static MockRequest request(String url, int sequence, Request.Priority priority) {
+        MockRequest request = new MockRequest(url, null);
+        request.setSequence(sequence);
+        request.setPriority(priority);
+        return request;
+    }
+
+    private static MockRequest uncached(String url) {
+        MockRequest request = new MockRequest(url, null);
+        request.setShouldCache(false);
+        return request;
+    }
+
+    /** A network on which requests to one host block until released. */
+    private static class HostBlockingNetwork implements Network {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger blocked = new AtomicInteger();
+        final List<String> performed = Collections.synchronizedList(new ArrayList<String>());
+        private final String mBlockedHost;
+
+        HostBlockingNetwork(String blockedHost) {
+            mBlockedHost = blockedHost;
+        }
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            performed.add(request.getUrl());
+            if (request.getHost().equals(mBlockedHost)) {
+                blocked.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new VolleyError(e);
+                }
+            }
+            return new NetworkResponse(new byte[0]);
+        }
+    }
+}
@@ -34,8 +34,10 @@ import org.robolectric.annotation.Config;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
@@ -204,4 +206,190 @@ public class RequestQueueIntegrationTest {
         queue.stop();
     }
 
+    /**
+     * Asserts that identical uncached requests marked for coalescing share one network call and
+     * all receive its response.
+     */
+    @Test public void add_coalescesIdenticalUncachedRequests() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger networkCalls = new AtomicInteger();
+        Network network = new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+                networkCalls.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new VolleyError(e);
+                }
+                return new NetworkResponse(new byte[0]);
+            }
+        };
+        List<MockRequest> requests = new ArrayList<MockRequest>();
+        for (int i = 0; i < 3; i++) {
+            requests.add(coalescing("http://foo.com/nearby"));
+        }
+        MockRequest other = coalescing("http://foo.com/other");
+        MockRequest notCoalescing = coalescing("http://foo.com/nearby");
+        notCoalescing.setShouldCoalesce(false);
+        final CountDownLatch finished = new CountDownLatch(5);
+        RequestQueue queue = new RequestQueue(new NoCache(), network, 4, mDelivery);
+        queue.addRequestFinishedListener(new RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                finished.countDown();
+            }
+        });
+        queue.start();
+        for (MockRequest request : requests) {
+            queue.add(request);
+        }
+        queue.add(other);
+        queue.add(notCoalescing);
+
+        release.countDown();
+        assertTrue(finished.await(1, TimeUnit.SECONDS));
+        assertEquals(3, networkCalls.get());
+        for (MockRequest request : requests) {
+            assertTrue(request.deliverResponse_called);
+        }
+        queue.stop();
+    }
+
+    /**
+     * Asserts that an unexpected failure of a coalesced network call is delivered to every
+     * request waiting on it, rather than sending them one at a time.
+     */
+    @Test public void add_coalescedRequestsShareUnhandledFailure() throws Exception {
+        final AtomicInteger networkCalls = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        Network network = new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+                networkCalls.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new VolleyError(e);
+                }
+                throw new IllegalStateException("Unexpected");
+            }
+        };
+        List<MockRequest> requests = new ArrayList<MockRequest>();
+        for (int i = 0; i < 3; i++) {
+            requests.add(coalescing("http://foo.com/nearby"));
+        }
+        final CountDownLatch finished = new CountDownLatch(3);
+        RequestQueue queue = new RequestQueue(new NoCache(), network, 1, mDelivery);
+        queue.addRequestFinishedListener(new RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                finished.countDown();
+            }
+        });
+        queue.start();
+        for (MockRequest request : requests) {
+            queue.add(request);
+        }
+
+        release.countDown();
+        assertTrue(finished.await(1, TimeUnit.SECONDS));
+        assertEquals(1, networkCalls.get());
+        for (MockRequest request : requests) {
+            assertTrue(request.deliverError_called);
+        }
+        queue.stop();
+    }
+
+    /**
+     * Asserts that a request waiting on a coalesced network call is sent itself if the request
+     * it waited for is cancelled.
+     */
+    @Test public void add_coalescedRequestSentWhenLeaderCancelled() throws Exception {
+        MockRequest leader = coalescing("http://foo.com/nearby");
+        final MockRequest waiting = coalescing("http://foo.com/nearby");
+        when(mMockNetwork.performRequest(waiting)).thenReturn(new NetworkResponse(new byte[0]));
+        // Not a mock verified with a timeout: that fails as soon as it sees the leader finish.
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 1, mDelivery);
+        queue.addRequestFinishedListener(new RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                if ((Object) request == waiting) {
+                    finished.countDown();
+                }
+            }
+        });
+        queue.add(leader);
+        queue.add(waiting);
+        leader.cancel();
+        queue.start();
+
+        assertTrue(finished.await(1, TimeUnit.SECONDS));
+        assertTrue(waiting.deliverResponse_called);
+        verify(mMockNetwork, never()).performRequest(leader);
+        queue.stop();
+    }
+
+    /**
+     * Asserts that a request waiting on a coalesced network call is sent itself if the request
+     * it waited for is past its deadline, rather than failing with it.
+     */
+    @Test public void add_coalescedRequestSentWhenLeaderPastDeadline() throws Exception {
+        DeadlineRequest leader = new DeadlineRequest(true);
+        final DeadlineRequest waiting = new DeadlineRequest(false);
+        when(mMockNetwork.performRequest(waiting)).thenReturn(new NetworkResponse(new byte[0]));
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 1, mDelivery);
+        queue.addRequestFinishedListener(new RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                if ((Object) request == waiting) {
+                    finished.countDown();
+                }
+            }
+        });
+        queue.add(leader);
+        queue.add(waiting);
+        queue.start();
+
+        assertTrue(finished.await(1, TimeUnit.SECONDS));
+        assertTrue(leader.deliverError_called);
+        assertTrue(waiting.deliverResponse_called);
+        assertFalse(waiting.deliverError_called);
+        verify(mMockNetwork, never()).performRequest(leader);
+        queue.stop();
+    }
+
+    /**
+     * A coalescing request which is past its deadline or has none. The test clock is stopped
+     * at 0, so no deadline ever passes by itself.
+     */
+    private static class DeadlineRequest extends MockRequest {
+        private final boolean mPastDeadline;
+
+        DeadlineRequest(boolean pastDeadline) {
+            super("http://foo.com/nearby", null);
+            mPastDeadline = pastDeadline;
+            setShouldCache(false);
+            setShouldCoalesce(true);
+            if (pastDeadline) {
+                setDeadline(1);
+            }
+        }
+
+        @Override
+        boolean isPastDeadline(long nowMs) {
+            return mPastDeadline;
+        }
+    }
+
+    private static MockRequest coalescing(String url) {
+        MockRequest request = new MockRequest(url, null);
+        request.setShouldCache(false);
+        request.setShouldCoalesce(true);
+        return request;
+    }
 }
@@ -16,6 +16,9 @@
 
 package com.android.volley;
 
+import com.android.volley.RequestQueue.AdmissionPolicy;
+import com.android.volley.RequestQueue.AdmissionStats;
+import com.android.volley.mock.MockRequest;
 import com.android.volley.mock.ShadowSystemClock;
 import com.android.volley.toolbox.NoCache;
 import com.android.volley.utils.ImmediateResponseDelivery;
@@ -23,9 +26,19 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -69,4 +82,376 @@ public class RequestQueueTest {
         verify(req2, never()).cancel(); // B not cancelled
         verify(req4, never()).cancel(); // A added after cancel not cancelled
     }
+
+    @Test public void cancelAll_retaggedAfterAdd() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 0, mDelivery);
+        Object tagA = new Object();
+        Object tagB = new Object();
+        MockRequest request = new MockRequest();
+        request.setTag(tagA);
+        queue.add(request);
+        request.setTag(tagB);
+
+        queue.cancelAll(tagA);
+        assertFalse(request.cancel_called);
+        queue.cancelAll(tagB);
+        assertTrue(request.cancel_called);
+    }
+
+    @Test public void cancelAll_skipsFinishedRequests() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 0, mDelivery);
+        Object tag = new Object();
+        MockRequest request = new MockRequest();
+        request.setTag(tag);
+        queue.add(request);
+        ((Request<?>) request).finish("done");
+
+        queue.cancelAll(tag);
+        assertFalse(request.cancel_called);
+        assertEquals(0, countRequests(queue));
+    }
+
+    @Test public void concurrentAddFinishAndCancel() throws Exception {
+        final RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 0, mDelivery);
+        final Object tagA = new Object();
+        final Object tagB = new Object();
+        final int threads = 8;
+        final int requestsPerThread = 500;
+        final List<MockRequest> pending =
+                Collections.synchronizedList(new ArrayList<MockRequest>());
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger errors = new AtomicInteger();
+
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < requestsPerThread; i++) {
+                            MockRequest request = new MockRequest();
+                            request.setShouldCache(false);
+                            request.setTag(i % 2 == 0 ? tagA : tagB);
+                            queue.add(request);
+                            if (i % 3 == 0) {
+                                ((Request<?>) request).finish("done");
+                            } else {
+                                pending.add(request);
+                            }
+                            if (i % 50 == 0) {
+                                // Cancel concurrently with other threads adding and finishing.
+                                queue.cancelAll(new Object());
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, errors.get());
+        assertEquals(pending.size(), countRequests(queue));
+
+        queue.cancelAll(tagA);
+        for (MockRequest request : pending) {
+            assertEquals(request.getTag() == tagA, request.cancel_called);
+        }
+    }
+
+    @Test public void admission_rejectNew() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 0, mDelivery);
+        queue.setAdmissionPolicy(new AdmissionPolicy(2, Long.MAX_VALUE, 0,
+                AdmissionPolicy.Overflow.REJECT_NEW));
+        MockRequest first = new MockRequest();
+        MockRequest second = new MockRequest();
+        MockRequest third = new MockRequest();
+        queue.add(first);
+        queue.add(second);
+        queue.add(third);
+        assertFalse(first.deliverError_called);
+        assertTrue(third.deliverError_called);
+
+        ((Request<?>) first).finish("done");
+        MockRequest fourth = new MockRequest();
+        queue.add(fourth);
+        assertFalse(fourth.deliverError_called);
+
+        AdmissionStats stats = queue.getAdmissionStats();
+        assertEquals(2, stats.requests);
+        assertEquals(1, stats.rejected);
+        assertEquals(0, stats.dropped);
+    }
+
+    @Test public void admission_boundsResponseBytes() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 0, mDelivery);
+        queue.setAdmissionPolicy(new AdmissionPolicy(100, 1000, 400,
+                AdmissionPolicy.Overflow.REJECT_NEW));
+        MockRequest estimated = new MockRequest();
+        estimated.setResponseSizeEstimate(700);
+        MockRequest small = new MockRequest();
+        small.setResponseSizeEstimate(300);
+        MockRequest unknown = new MockRequest();
+        queue.add(estimated);
+        queue.add(small);
+        queue.add(unknown);
+        assertFalse(small.deliverError_called);
+        assertTrue(unknown.deliverError_called);
+        assertEquals(1000, queue.getAdmissionStats().responseBytes);
+    }
+
+    @Test public void admission_dropLowestPriority() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 0, mDelivery);
+        queue.setAdmissionPolicy(new AdmissionPolicy(2, Long.MAX_VALUE, 0,
+                AdmissionPolicy.Overflow.DROP_LOWEST_PRIORITY));
+        MockRequest low = uncached(Request.Priority.LOW);
+        MockRequest normal = uncached(Request.Priority.NORMAL);
+        MockRequest high = uncached(Request.Priority.HIGH);
+        queue.add(low);
+        queue.add(normal);
+        queue.add(high);
+        assertTrue(low.deliverError_called);
+        assertFalse(normal.deliverError_called);
+        assertFalse(high.deliverError_called);
+
+        // Nothing queued has a lower priority than this one.
+        MockRequest anotherNormal = uncached(Request.Priority.NORMAL);
+        queue.add(anotherNormal);
+        assertTrue(anotherNormal.deliverError_called);
+
+        AdmissionStats stats = queue.getAdmissionStats();
+        assertEquals(2, stats.requests);
+        assertEquals(1, stats.dropped);
+        assertEquals(1, stats.rejected);
+    }
+
+    @Test public void admission_blockUntilFinished() throws Exception {
+        final RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 0, mDelivery);
+        queue.setAdmissionPolicy(new AdmissionPolicy(1, Long.MAX_VALUE, 0,
+                AdmissionPolicy.Overflow.BLOCK));
+        MockRequest first = new MockRequest();
+        queue.add(first);
+
+        final MockRequest second = new MockRequest();
+        final CountDownLatch added = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                queue.add(second);
+                added.countDown();
+            }
+        }.start();
+        assertFalse(added.await(50, TimeUnit.MILLISECONDS));
+        assertEquals(1, queue.getAdmissionStats().blocked);
+
+        ((Request<?>) first).finish("done");
+        assertTrue(added.await(5, TimeUnit.SECONDS));
+        assertFalse(second.deliverError_called);
+        assertEquals(1, queue.getAdmissionStats().requests);
+    }
+
+    @Test public void pause_holdsTaggedRequestsUntilResumed() throws Exception {
+        final List<String> performed = Collections.synchronizedList(new ArrayList<String>());
+        when(mMockNetwork.performRequest(any(Request.class))).thenAnswer(
+                new Answer<NetworkResponse>() {
+                    @Override
+                    public NetworkResponse answer(InvocationOnMock invocation) {
+                        performed.add(((Request<?>) invocation.getArguments()[0]).getUrl());
+                        return new NetworkResponse(new byte[0]);
+                    }
+                });
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 1, mDelivery);
+        final List<String> finished = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch otherDone = new CountDownLatch(1);
+        final CountDownLatch allDone = new CountDownLatch(5);
+        queue.addRequestFinishedListener(new RequestQueue.RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                finished.add(request.getUrl());
+                if (request.getUrl().contains("other")) {
+                    otherDone.countDown();
+                }
+                allDone.countDown();
+            }
+        });
+        Object list = new Object();
+        queue.pause(list);
+        MockRequest canceled = tagged("http://a.com/canceled", Request.Priority.NORMAL, list);
+        queue.add(canceled);
+        queue.add(tagged("http://a.com/low", Request.Priority.LOW, list));
+        queue.add(tagged("http://a.com/high", Request.Priority.HIGH, list));
+        queue.add(tagged("http://a.com/normal", Request.Priority.NORMAL, list));
+        queue.add(new MockRequest("http://a.com/other", null));
+        queue.start();
+        try {
+            // The tagged requests were taken before the other one, and held.
+            assertTrue(otherDone.await(5, TimeUnit.SECONDS));
+            assertEquals(Collections.singletonList("http://a.com/other"), performed);
+
+            canceled.cancel();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (finished.size() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(finished.contains("http://a.com/canceled"));
+
+            queue.resume(list);
+            assertTrue(allDone.await(5, TimeUnit.SECONDS));
+        } finally {
+            queue.stop();
+        }
+        assertEquals(Arrays.asList("http://a.com/other", "http://a.com/high",
+                "http://a.com/normal", "http://a.com/low"), performed);
+    }
+
+    @Test public void parsedResponseCache_answersFreshHitsInAdd() throws Exception {
+        when(mMockNetwork.performRequest(any(Request.class))).thenReturn(
+                new NetworkResponse("data".getBytes()));
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 1, mDelivery);
+        queue.setParsedResponseCacheSize(10);
+        final CountDownLatch done = new CountDownLatch(1);
+        queue.addRequestFinishedListener(new RequestQueue.RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                done.countDown();
+            }
+        });
+        queue.start();
+        try {
+            queue.add(sharingRequest("http://a.com/1"));
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+
+            MockRequest again = sharingRequest("http://a.com/1");
+            queue.add(again);
+            // Delivered before add() returns, without parsing again.
+            assertTrue(again.deliverResponse_called);
+            assertFalse(again.parseResponse_called);
+            verify(mMockNetwork, times(1)).performRequest(any(Request.class));
+
+            // Requests which don't share parsed responses are not given the kept response;
+            // with the queue stopped, they stay queued.
+            queue.stop();
+            MockRequest other = new MockRequest("http://a.com/1", null);
+            queue.add(other);
+            assertFalse(other.deliverResponse_called);
+        } finally {
+            queue.stop();
+        }
+    }
+
+    @Test public void retryBudget_boundsRetriesOfAllRequests() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        when(mMockNetwork.performRequest(any(Request.class))).thenAnswer(
+                new Answer<NetworkResponse>() {
+            @Override
+            public NetworkResponse answer(InvocationOnMock invocation) throws Throwable {
+                attempts.incrementAndGet();
+                throw new RetryError(new ServerError(), 0);
+            }
+        });
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 2, mDelivery);
+        // Requests added before the start earn nothing beyond the initial balance.
+        queue.setRetryBudget(new RequestQueue.RetryBudget(0.5f, 2));
+        final CountDownLatch finished = new CountDownLatch(4);
+        queue.addRequestFinishedListener(new RequestQueue.RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                finished.countDown();
+            }
+        });
+        List<MockRequest> requests = new ArrayList<MockRequest>();
+        for (int i = 0; i < 4; i++) {
+            MockRequest request = uncached(Request.Priority.NORMAL);
+            requests.add(request);
+            queue.add(request);
+        }
+        queue.start();
+        try {
+            assertTrue(finished.await(5, TimeUnit.SECONDS));
+            // Without the budget, every request would retry for ever.
+            assertEquals(4 + 2, attempts.get());
+            for (MockRequest request : requests) {
+                assertTrue(request.deliverError_called);
+            }
+        } finally {
+            queue.stop();
+        }
+    }
+
+    @Test public void scheduledRetry_cancelFinishesWithoutWaitingForDelay() throws Exception {
+        final CountDownLatch attempted = new CountDownLatch(1);
+        when(mMockNetwork.performRequest(any(Request.class))).thenAnswer(
+                new Answer<NetworkResponse>() {
+            @Override
+            public NetworkResponse answer(InvocationOnMock invocation) throws Throwable {
+                attempted.countDown();
+                throw new RetryError(new TimeoutError(), TimeUnit.HOURS.toMillis(1));
+            }
+        });
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 1, mDelivery);
+        final CountDownLatch finished = new CountDownLatch(1);
+        queue.addRequestFinishedListener(new RequestQueue.RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                finished.countDown();
+            }
+        });
+        MockRequest request = uncached(Request.Priority.NORMAL);
+        queue.start();
+        try {
+            queue.add(request);
+            assertTrue(attempted.await(5, TimeUnit.SECONDS));
+            // Waits for its retry rather than failing.
+            assertFalse(finished.await(50, TimeUnit.MILLISECONDS));
+            assertFalse(request.deliverError_called);
+
+            request.cancel();
+            assertTrue(finished.await(5, TimeUnit.SECONDS));
+            assertEquals(0, countRequests(queue));
+            verify(mMockNetwork, times(1)).performRequest(any(Request.class));
+        } finally {
+            queue.stop();
+        }
+    }
+
+    private static MockRequest tagged(String url, Request.Priority priority, Object tag) {
+        MockRequest request = new MockRequest(url, null);
+        request.setPriority(priority);
+        request.setTag(tag);
+        return request;
+    }
+
+    private static MockRequest uncached(Request.Priority priority) {
+        MockRequest request = new MockRequest();
+        request.setShouldCache(false);
+        request.setPriority(priority);
+        return request;
+    }
+
+    /** Returns a request which shares parsed responses with the others it returns. */
+    private static MockRequest sharingRequest(String url) {
+        return new MockRequest(url, null) {
+            @Override
+            protected String getParsedResponseKey() {
+                return "sharing";
+            }
+        };
+    }
+
+    /** Counts the requests registered with the queue without cancelling any. */
+    private static int countRequests(RequestQueue queue) {
+        final AtomicInteger count = new AtomicInteger();
+        queue.cancelAll(new RequestQueue.RequestFilter() {
+            @Override
+            public boolean apply(Request<?> request) {
+                count.incrementAndGet();
+                return false;
+            }
+        });
+        return count.get();
+    }
 }
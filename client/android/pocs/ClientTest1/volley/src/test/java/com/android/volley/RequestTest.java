@@ -45,6 +45,35 @@ public class RequestTest {
         assertTrue(immediate.compareTo(high) < 0);
     }
 
+    @Test public void cancelRunsCancelAction() {
+        final int[] runs = new int[1];
+        Runnable action = new Runnable() {
+            @Override
+            public void run() {
+                runs[0]++;
+            }
+        };
+        TestRequest request = new TestRequest(Priority.NORMAL);
+        request.setCancelAction(action);
+        request.setCancelAction(null);
+        request.cancel();
+        assertEquals(0, runs[0]);
+
+        request = new TestRequest(Priority.NORMAL);
+        request.setCancelAction(action);
+        request.cancel();
+        request.cancel();
+        assertEquals(1, runs[0]);
+
+        // Set after the cancel, as when a stack connects concurrently with it.
+        request.setCancelAction(action);
+        assertEquals(2, runs[0]);
+    }
+
+    @Test public void parsedResponsesAreNotSharedByDefault() {
+        assertNull(new TestRequest(Priority.NORMAL).getParsedResponseKey());
+    }
+
     private class TestRequest extends Request<Object> {
         private Priority mPriority = Priority.NORMAL;
         public TestRequest(Priority priority) {
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.RequestQueue.RequestFinishedListener;
+import com.android.volley.mock.MockCache;
+import com.android.volley.mock.MockRequest;
+import com.android.volley.utils.CacheTestUtils;
+import com.android.volley.utils.ImmediateResponseDelivery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link RequestQueue}s running on caller-supplied executors.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SharedExecutorRequestQueueTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final String WORKER_PREFIX = "shared-worker-";
+
+    private ExecutorService mExecutor;
+    private final Set<String> mNetworkThreads =
+            Collections.synchronizedSet(new HashSet<String>());
+
+    @Before public void setUp() throws Exception {
+        mExecutor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+            private int mCount = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                return new Thread(r, WORKER_PREFIX + mCount++);
+            }
+        });
+    }
+
+    @After public void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+    }
+
+    @Test public void queuesShareOneExecutor() throws Exception {
+        RequestQueue api = newQueue(new MockCache());
+        RequestQueue images = newQueue(new MockCache());
+        CountDownLatch finished = new CountDownLatch(20);
+        api.addRequestFinishedListener(countDown(finished));
+        images.addRequestFinishedListener(countDown(finished));
+
+        // Requests added before start() are picked up once started.
+        for (int i = 0; i < 5; i++) {
+            api.add(newRequest("api", i));
+        }
+        api.start();
+        images.start();
+        for (int i = 5; i < 10; i++) {
+            api.add(newRequest("api", i));
+        }
+        for (int i = 0; i < 10; i++) {
+            images.add(newRequest("images", i));
+        }
+
+        assertTrue(finished.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse(mNetworkThreads.isEmpty());
+        for (String name : mNetworkThreads) {
+            assertTrue(name, name.startsWith(WORKER_PREFIX));
+        }
+        assertEquals(0, api.getNetworkThreadPoolSize());
+        api.stop();
+        images.stop();
+    }
+
+    @Test public void cacheHitsAreTriagedOnExecutor() throws Exception {
+        MockCache cache = new MockCache();
+        cache.setEntryToReturn(CacheTestUtils.makeRandomCacheEntry(null));
+        RequestQueue queue = newQueue(cache);
+        CountDownLatch finished = new CountDownLatch(3);
+        queue.addRequestFinishedListener(countDown(finished));
+        queue.start();
+        for (int i = 0; i < 3; i++) {
+            queue.add(newRequest("cached", i));
+        }
+
+        assertTrue(finished.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(cache.getCalled);
+        assertTrue(mNetworkThreads.isEmpty());
+        queue.stop();
+    }
+
+    @Test public void stoppedQueueKeepsRequestsQueued() throws Exception {
+        RequestQueue queue = newQueue(new MockCache());
+        CountDownLatch finished = new CountDownLatch(1);
+        queue.addRequestFinishedListener(countDown(finished));
+        queue.start();
+        queue.stop();
+        queue.add(newRequest("stopped", 0));
+        assertFalse(finished.await(100, TimeUnit.MILLISECONDS));
+
+        queue.start();
+        assertTrue(finished.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        queue.stop();
+    }
+
+    @Test public void stopEndsRetryTimer() throws Exception {
+        RequestQueue queue = newQueue(new MockCache(), new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+                throw new RetryError(new ServerError(), TimeUnit.MINUTES.toMillis(1));
+            }
+        });
+        Set<Thread> before = retryTimerThreads();
+        queue.start();
+        queue.add(newRequest("retried", 0));
+        Set<Thread> timers = retryTimerThreads();
+        timers.removeAll(before);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (timers.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            timers = retryTimerThreads();
+            timers.removeAll(before);
+        }
+        assertEquals(1, timers.size());
+
+        queue.stop();
+        Thread timer = timers.iterator().next();
+        timer.join(TIMEOUT_MILLIS);
+        assertFalse(timer.isAlive());
+    }
+
+    private RequestQueue newQueue(Cache cache) {
+        return newQueue(cache, new RecordingNetwork());
+    }
+
+    private RequestQueue newQueue(Cache cache, Network network) {
+        return new RequestQueue(cache, network, mExecutor, mExecutor,
+                new ImmediateResponseDelivery());
+    }
+
+    private static Set<Thread> retryTimerThreads() {
+        Set<Thread> threads = new HashSet<Thread>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("Volley-RetryTimer") && thread.isAlive()) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
+
+    private static MockRequest newRequest(String prefix, int i) {
+        MockRequest request = new MockRequest();
+        request.setCacheKey(prefix + i);
+        return request;
+    }
+
+    private static RequestFinishedListener<Object> countDown(final CountDownLatch latch) {
+        return new RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                latch.countDown();
+            }
+        };
+    }
+
+    private class RecordingNetwork implements Network {
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            mNetworkThreads.add(Thread.currentThread().getName());
+            return new NetworkResponse(new byte[0]);
+        }
+    }
+}
@@ -16,9 +16,9 @@
 
 package com.android.volley.mock;
 
-import com.android.volley.Cache;
+import com.android.volley.ByteBufferCache;
 
-public class MockCache implements Cache {
+public class MockCache implements ByteBufferCache {
 
     public boolean clearCalled = false;
     @Override
@@ -39,6 +39,14 @@ public class MockCache implements Cache {
         return mFakeEntry;
     }
 
+    public boolean getAsBufferCalled = false;
+
+    @Override
+    public Entry getAsBuffer(String key) {
+        getAsBufferCalled = true;
+        return mFakeEntry;
+    }
+
     public boolean putCalled = false;
     public String keyPut = null;
     public Entry entryPut = null;
@@ -92,6 +92,17 @@ public class MockRequest extends Request<byte[]> {
         return mPriority;
     }
 
+    private boolean mCanParseDataBuffer = false;
+
+    public void setCanParseDataBuffer(boolean canParseDataBuffer) {
+        mCanParseDataBuffer = canParseDataBuffer;
+    }
+
+    @Override
+    public boolean canParseDataBuffer() {
+        return mCanParseDataBuffer;
+    }
+
     @Override
     protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
         parseResponse_called = true;
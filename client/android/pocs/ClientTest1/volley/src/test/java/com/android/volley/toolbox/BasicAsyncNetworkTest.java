@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Cache;
+import com.android.volley.ClientError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.NoConnectionError;
+import com.android.volley.Request;
+import com.android.volley.RetryPolicy;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.android.volley.mock.MockRequest;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class BasicAsyncNetworkTest {
+
+    @Mock private RetryPolicy mMockRetryPolicy;
+    private FakeAsyncStack mStack;
+    private BasicAsyncNetwork mNetwork;
+
+    @Before public void setUp() throws Exception {
+        initMocks(this);
+        mStack = new FakeAsyncStack();
+        mNetwork = new BasicAsyncNetwork(mStack);
+    }
+
+    @Test public void success() throws Exception {
+        mStack.response = buildResponse(200, "foobar");
+        NetworkResponse response = mNetwork.performRequest(new MockRequest());
+        assertEquals(200, response.statusCode);
+        assertEquals("foobar", new String(response.data));
+        assertEquals("bar", response.headers.get("X-Foo"));
+    }
+
+    @Test public void notModifiedUsesCacheEntry() throws Exception {
+        mStack.response = buildResponse(304, null);
+        MockRequest request = new MockRequest();
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = "cached".getBytes();
+        entry.etag = "abc";
+        entry.responseHeaders = new HashMap<String, String>();
+        request.setCacheEntry(entry);
+        NetworkResponse response = mNetwork.performRequest(request);
+        assertTrue(response.notModified);
+        assertEquals("cached", new String(response.data));
+        assertEquals("abc", mStack.lastHeaders.get("If-None-Match"));
+    }
+
+    @Test public void socketTimeoutIsRetried() throws Exception {
+        mStack.exception = new SocketTimeoutException();
+        MockRequest request = new MockRequest();
+        request.setRetryPolicy(mMockRetryPolicy);
+        doNothing().doThrow(new TimeoutError()).when(mMockRetryPolicy)
+                .retry(any(VolleyError.class));
+        try {
+            mNetwork.performRequest(request);
+            fail();
+        } catch (TimeoutError e) {
+            // expected
+        }
+        verify(mMockRetryPolicy, times(2)).retry(any(TimeoutError.class));
+        assertEquals(2, mStack.requestCount);
+    }
+
+    @Test public void noConnection() throws Exception {
+        mStack.exception = new IOException();
+        MockRequest request = new MockRequest();
+        request.setRetryPolicy(mMockRetryPolicy);
+        try {
+            mNetwork.performRequest(request);
+            fail();
+        } catch (NoConnectionError e) {
+            // expected
+        }
+        verify(mMockRetryPolicy, never()).retry(any(VolleyError.class));
+    }
+
+    @Test public void unauthorizedIsRetried() throws Exception {
+        mStack.response = buildResponse(401, "");
+        MockRequest request = new MockRequest();
+        request.setRetryPolicy(mMockRetryPolicy);
+        doThrow(new VolleyError()).when(mMockRetryPolicy).retry(any(VolleyError.class));
+        try {
+            mNetwork.performRequest(request);
+            fail();
+        } catch (VolleyError e) {
+            // expected
+        }
+        verify(mMockRetryPolicy).retry(any(AuthFailureError.class));
+    }
+
+    @Test public void notFoundIsNotRetried() throws Exception {
+        mStack.response = buildResponse(404, "");
+        MockRequest request = new MockRequest();
+        request.setRetryPolicy(mMockRetryPolicy);
+        try {
+            mNetwork.performRequest(request);
+            fail();
+        } catch (ClientError e) {
+            assertEquals(404, e.networkResponse.statusCode);
+        }
+        verify(mMockRetryPolicy, never()).retry(any(VolleyError.class));
+    }
+
+    @Test public void authErrorFromStackIsDelivered() throws Exception {
+        mStack.authError = new AuthFailureError();
+        try {
+            mNetwork.performRequest(new MockRequest());
+            fail();
+        } catch (AuthFailureError e) {
+            // expected
+        }
+    }
+
+    private static HttpResponse buildResponse(int statusCode, String body) throws Exception {
+        BasicHttpResponse response =
+                new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), statusCode, "");
+        response.addHeader("X-Foo", "bar");
+        if (body != null) {
+            response.setEntity(new StringEntity(body));
+        }
+        return response;
+    }
+
+    /** Completes every request on a thread of its own with a canned outcome. */
+    private static class FakeAsyncStack extends AsyncHttpStack {
+        volatile HttpResponse response;
+        volatile IOException exception;
+        volatile AuthFailureError authError;
+        volatile Map<String, String> lastHeaders;
+        volatile int requestCount;
+
+        @Override
+        public void executeRequest(Request<?> request,
+                final Map<String, String> additionalHeaders, final OnRequestComplete callback) {
+            requestCount++;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    lastHeaders = additionalHeaders;
+                    if (authError != null) {
+                        callback.onAuthError(authError);
+                    } else if (exception != null) {
+                        callback.onError(exception);
+                    } else {
+                        callback.onSuccess(response);
+                    }
+                }
+            }).start();
+        }
+    }
+}
@@ -17,9 +17,12 @@
 package com.android.volley.toolbox;
 
 import com.android.volley.AuthFailureError;
+import com.android.volley.DefaultRetryPolicy;
 import com.android.volley.NetworkResponse;
 import com.android.volley.Request;
+import com.android.volley.RequestQueue;
 import com.android.volley.Response;
+import com.android.volley.RetryError;
 import com.android.volley.RetryPolicy;
 import com.android.volley.ServerError;
 import com.android.volley.TimeoutError;
@@ -85,6 +88,24 @@ public class BasicNetworkTest {
         verify(mMockRetryPolicy).retry(any(TimeoutError.class));
     }
 
+    @Test public void queuedRequestRetryIsHandedToQueue() throws Exception {
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        mockHttpStack.setExceptionToThrow(new SocketTimeoutException());
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        Request<String> request = buildRequest();
+        request.setRequestQueue(mock(RequestQueue.class));
+        request.setRetryPolicy(new DefaultRetryPolicy(1000, 1, 1f, 100, 100));
+        try {
+            httpNetwork.performRequest(request);
+            fail();
+        } catch (RetryError e) {
+            // Not retried on this thread; the queue schedules the retry.
+            assertTrue(e.getError() instanceof TimeoutError);
+            assertTrue(e.getRetryDelayMs() >= 0 && e.getRetryDelayMs() <= 100);
+        }
+        assertEquals(1, request.getRetryPolicy().getCurrentRetryCount());
+    }
+
     @Test public void connectTimeout() throws Exception {
         MockHttpStack mockHttpStack = new MockHttpStack();
         mockHttpStack.setExceptionToThrow(new ConnectTimeoutException());
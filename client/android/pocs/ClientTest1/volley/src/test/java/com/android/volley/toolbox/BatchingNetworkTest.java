@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AsyncNetwork;
+import com.android.volley.Cache;
+import com.android.volley.ClientError;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.android.volley.mock.MockRequest;
+import com.android.volley.utils.ImmediateResponseDelivery;
+import com.android.volley.utils.LocalHttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class BatchingNetworkTest {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    /** Simulated round-trip time of every exchange with the server. */
+    private static final long ROUND_TRIP_MS = 50;
+
+    private LocalHttpServer mServer;
+
+    @Before public void setUp() throws Exception {
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request)
+                    throws Exception {
+                LocalHttpServer.Response response;
+                if (request.path.equals("/batch")) {
+                    JSONArray parts = new JSONArray(new String(request.body, "UTF-8"));
+                    JSONArray results = new JSONArray();
+                    for (int i = 0; i < parts.length(); i++) {
+                        JSONObject part = parts.getJSONObject(i);
+                        JSONObject headers = part.getJSONObject("headers");
+                        results.put(serve(new URL(part.getString("url")).getPath(),
+                                headers.optString("If-None-Match", null)));
+                    }
+                    response = new LocalHttpServer.Response(200, results.toString());
+                } else {
+                    JSONObject result = serve(request.path, request.headers.get("if-none-match"));
+                    response = new LocalHttpServer.Response(result.getInt("status"),
+                            result.getString("body"));
+                }
+                response.delayMs = ROUND_TRIP_MS;
+                return response;
+            }
+        });
+    }
+
+    @After public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    /** Answers a single request, whether sent on its own or as part of a batch. */
+    private static JSONObject serve(String path, String ifNoneMatch) throws Exception {
+        JSONObject result = new JSONObject();
+        if (path.startsWith("/missing")) {
+            result.put("status", 404);
+            result.put("body", "");
+        } else if ("v1".equals(ifNoneMatch)) {
+            result.put("status", 304);
+            result.put("body", "");
+        } else {
+            result.put("status", 200);
+            result.put("body", "{\"path\":\"" + path + "\"}");
+            result.put("headers", new JSONObject().put("ETag", "v1"));
+        }
+        return result;
+    }
+
+    @Test public void batchesConcurrentRequests() throws Exception {
+        final int requestCount = 20;
+        Network plain = new BasicNetwork(new HurlStack());
+
+        Map<String, String> bodies = fetchAll(plain, requestCount);
+        int plainExchanges = mServer.getRequestCount();
+        assertEquals(requestCount, bodies.size());
+
+        bodies = fetchAll(new BatchingNetwork(plain, mServer.url("/batch"), 50, requestCount),
+                requestCount);
+        int batchedExchanges = mServer.getRequestCount() - plainExchanges;
+
+        assertEquals(requestCount, bodies.size());
+        for (int i = 0; i < requestCount; i++) {
+            assertEquals("{\"path\":\"/item" + i + "\"}", bodies.get("/item" + i));
+        }
+        assertEquals(requestCount, plainExchanges);
+        assertTrue(batchedExchanges <= 2);
+    }
+
+    @Test public void splitsStatusesOfBatchedRequests() throws Exception {
+        BatchingNetwork network = new BatchingNetwork(new BasicNetwork(new HurlStack()),
+                mServer.url("/batch"), 50, 3);
+        MockRequest ok = new MockRequest(mServer.url("/ok"), null);
+        MockRequest missing = new MockRequest(mServer.url("/missing"), null);
+        MockRequest revalidated = new MockRequest(mServer.url("/cached"), null);
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = "cached".getBytes();
+        entry.etag = "v1";
+        entry.responseHeaders = new HashMap<String, String>();
+        revalidated.setCacheEntry(entry);
+
+        Outcome okOutcome = new Outcome();
+        Outcome missingOutcome = new Outcome();
+        Outcome revalidatedOutcome = new Outcome();
+        network.performRequest(ok, okOutcome);
+        network.performRequest(missing, missingOutcome);
+        network.performRequest(revalidated, revalidatedOutcome);
+
+        assertTrue(okOutcome.await());
+        assertEquals(200, okOutcome.response.statusCode);
+        assertEquals("{\"path\":\"/ok\"}", new String(okOutcome.response.data));
+        assertEquals("v1", okOutcome.response.headers.get("etag"));
+
+        assertTrue(missingOutcome.await());
+        assertTrue(missingOutcome.error instanceof ClientError);
+        assertEquals(404, missingOutcome.error.networkResponse.statusCode);
+
+        assertTrue(revalidatedOutcome.await());
+        assertTrue(revalidatedOutcome.response.notModified);
+        assertEquals("cached", new String(revalidatedOutcome.response.data));
+
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test public void unexpectedExceptionFailsWholeBatch() throws Exception {
+        Network throwing = new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) {
+                throw new IllegalStateException("Unexpected");
+            }
+        };
+        BatchingNetwork network = new BatchingNetwork(throwing, mServer.url("/batch"), 50, 2);
+        Outcome first = new Outcome();
+        Outcome second = new Outcome();
+        network.performRequest(new MockRequest(mServer.url("/a"), null), first);
+        network.performRequest(new MockRequest(mServer.url("/b"), null), second);
+
+        assertTrue(first.await());
+        assertNotNull(first.error);
+        assertTrue(second.await());
+        assertNotNull(second.error);
+    }
+
+    @Test public void batchFailureConsultsEachRetryPolicy() throws Exception {
+        final String batchUrl = mServer.url("/batch");
+        Network network = new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+                if (request.getUrl().equals(batchUrl)) {
+                    throw new TimeoutError();
+                }
+                return new NetworkResponse("direct".getBytes());
+            }
+        };
+        BatchingNetwork batching = new BatchingNetwork(network, batchUrl, 50, 2);
+        MockRequest strict = new MockRequest(mServer.url("/strict"), null);
+        strict.setRetryPolicy(new DefaultRetryPolicy(1000, 0, 1f));
+        MockRequest lenient = new MockRequest(mServer.url("/lenient"), null);
+        lenient.setRetryPolicy(new DefaultRetryPolicy(1000, 1, 1f));
+        Outcome strictOutcome = new Outcome();
+        Outcome lenientOutcome = new Outcome();
+        batching.performRequest(strict, strictOutcome);
+        batching.performRequest(lenient, lenientOutcome);
+
+        assertTrue(strictOutcome.await());
+        assertTrue(strictOutcome.error instanceof TimeoutError);
+        // Retried on its own, so sent directly.
+        assertTrue(lenientOutcome.await());
+        assertEquals("direct", new String(lenientOutcome.response.data));
+    }
+
+    @Test public void otherRequestsAreNotBatched() throws Exception {
+        BatchingNetwork network = new BatchingNetwork(new BasicNetwork(new HurlStack()),
+                mServer.url("/batch"));
+        Request<String> post = new StringRequest(Request.Method.POST, mServer.url("/post"),
+                null, null);
+        NetworkResponse response = network.performRequest(post);
+        assertEquals("{\"path\":\"/post\"}", new String(response.data));
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    /** Fetches /item0 to /item{count - 1} through a request queue, returning bodies by path. */
+    private Map<String, String> fetchAll(Network network, int count) throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), network, 4,
+                new ImmediateResponseDelivery());
+        final Map<String, String> bodies = new ConcurrentHashMap<String, String>();
+        final CountDownLatch done = new CountDownLatch(count);
+        queue.start();
+        try {
+            for (int i = 0; i < count; i++) {
+                final String path = "/item" + i;
+                queue.add(new StringRequest(mServer.url(path), new Response.Listener<String>() {
+                    @Override
+                    public void onResponse(String response) {
+                        bodies.put(path, response);
+                        done.countDown();
+                    }
+                }, new Response.ErrorListener() {
+                    @Override
+                    public void onErrorResponse(VolleyError error) {
+                        done.countDown();
+                    }
+                }));
+            }
+            assertTrue(done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        } finally {
+            queue.stop();
+        }
+        return bodies;
+    }
+
+    private static class Outcome implements AsyncNetwork.OnRequestComplete {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        volatile NetworkResponse response;
+        volatile VolleyError error;
+
+        @Override
+        public void onSuccess(NetworkResponse networkResponse) {
+            response = networkResponse;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onError(VolleyError volleyError) {
+            error = volleyError;
+            mDone.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return mDone.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+import com.android.volley.utils.CacheTestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the bytes taken per entry by the index of a {@link DiskBasedCache} with the
+ * characters alone of the strings in the map of {@link CacheHeader}s, response headers
+ * included, that it used to keep.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CacheIndexMemoryBenchmarkTest {
+
+    private static final int ENTRY_COUNT = 10000;
+
+    private File mCacheDir;
+
+    @Before public void setUp() throws Exception {
+        mCacheDir = File.createTempFile("volley", "cache");
+        assertTrue(mCacheDir.delete());
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir, 100 * 1024 * 1024);
+        cache.initialize();
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(new byte[64]);
+            entry.responseHeaders = new HashMap<String, String>();
+            entry.responseHeaders.put("Cache-Control", "public, max-age=86400");
+            entry.responseHeaders.put("Content-Length", String.valueOf(20000 + i));
+            entry.responseHeaders.put("Content-Type", "image/jpeg");
+            entry.responseHeaders.put("Date", "Mon, 03 Oct 2016 10:" + (i % 60) + ":00 GMT");
+            entry.responseHeaders.put("ETag", entry.etag);
+            entry.responseHeaders.put("Expires", "Tue, 04 Oct 2016 10:" + (i % 60) + ":00 GMT");
+            entry.responseHeaders.put("Last-Modified", "Sat, 01 Oct 2016 08:00:00 GMT");
+            entry.responseHeaders.put("Server", "nginx");
+            cache.put("http://images.example.com/photos/" + i + ".jpg", entry);
+        }
+    }
+
+    @After public void tearDown() throws Exception {
+        new DiskBasedCache(mCacheDir).clear();
+        mCacheDir.delete();
+    }
+
+    @Test public void indexTakesLessMemoryPerEntry() throws Exception {
+        Map<String, CacheHeader> headers = readHeadersLikeBefore();
+        assertEquals(ENTRY_COUNT, headers.size());
+        // A lower bound for the map: two bytes per character, ignoring every object header,
+        // pointer and map entry.
+        long headerChars = 0;
+        CacheIndex index = new CacheIndex();
+        for (CacheHeader header : headers.values()) {
+            headerChars += header.key.length() + header.etag.length();
+            for (Map.Entry<String, String> responseHeader : header.responseHeaders.entrySet()) {
+                headerChars += responseHeader.getKey().length()
+                        + responseHeader.getValue().length();
+            }
+            index.put(header.key.hashCode(), (int) header.size, header.ttl, header.softTtl,
+                    header.dataOffset);
+        }
+        assertEquals(ENTRY_COUNT, index.size());
+        assertTrue(index.getArrayBytes() * 4 < headerChars * 2);
+    }
+
+    /** Builds the access-ordered map of headers that the cache used to scan into memory. */
+    private Map<String, CacheHeader> readHeadersLikeBefore() throws Exception {
+        DiskBasedCache reader = new DiskBasedCache(mCacheDir);
+        Map<String, CacheHeader> headers =
+                new LinkedHashMap<String, CacheHeader>(16, .75f, true);
+        for (File file : mCacheDir.listFiles()) {
+            if (file.getName().startsWith(DiskBasedCache.JOURNAL_FILE_NAME)) {
+                continue;
+            }
+            CacheHeader header = reader.readHeaderFromFile(file);
+            header.size = file.length();
+            headers.put(header.key, header);
+        }
+        return headers;
+    }
+}
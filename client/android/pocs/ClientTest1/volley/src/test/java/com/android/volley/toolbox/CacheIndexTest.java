@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CacheIndexTest {
+
+    @Test public void putFindAndRemove() {
+        CacheIndex index = new CacheIndex();
+        int entry = index.put(42L, 100, 1000L, 500L, 64);
+        assertEquals(entry, index.find(42L));
+        assertEquals(42L, index.getId(entry));
+        assertEquals(100, index.getSize(entry));
+        assertEquals(1000L, index.getTtl(entry));
+        assertEquals(500L, index.getSoftTtl(entry));
+        assertEquals(64, index.getDataOffset(entry));
+        assertEquals(CacheIndex.NONE, index.find(43L));
+
+        // Updating keeps a single entry.
+        assertEquals(entry, index.put(42L, 200, 0L, 0L, 32));
+        assertEquals(1, index.size());
+        assertEquals(200, index.getSize(entry));
+
+        index.remove(entry);
+        assertEquals(0, index.size());
+        assertEquals(CacheIndex.NONE, index.find(42L));
+    }
+
+    @Test public void keepsLeastRecentlyUsedOrder() {
+        CacheIndex index = new CacheIndex();
+        index.put(1L, 1, 0L, 0L, 0);
+        index.put(2L, 1, 0L, 0L, 0);
+        index.put(3L, 1, 0L, 0L, 0);
+        index.moveToNewest(index.find(1L));
+        index.put(2L, 1, 0L, 0L, 0);
+        assertEquals(ids(3L, 1L, 2L), idsInOrder(index));
+
+        index.remove(index.find(1L));
+        assertEquals(ids(3L, 2L), idsInOrder(index));
+        index.put(4L, 1, 0L, 0L, 0);
+        assertEquals(ids(3L, 2L, 4L), idsInOrder(index));
+    }
+
+    @Test public void matchesMapThroughGrowthAndRemovals() {
+        // Colliding and clustered ids exercise probing and the backward shift on removal.
+        CacheIndex index = new CacheIndex();
+        Map<Long, Integer> expected = new HashMap<Long, Integer>();
+        Random random = new Random(1234);
+        for (int i = 0; i < 20000; i++) {
+            long id = random.nextInt(3000) << 20;
+            if (random.nextInt(3) == 0) {
+                int entry = index.find(id);
+                assertEquals(expected.containsKey(id), entry != CacheIndex.NONE);
+                if (entry != CacheIndex.NONE) {
+                    index.remove(entry);
+                    expected.remove(id);
+                }
+            } else {
+                index.put(id, i, 0L, 0L, 0);
+                expected.put(id, i);
+            }
+        }
+        assertEquals(expected.size(), index.size());
+        for (Map.Entry<Long, Integer> e : expected.entrySet()) {
+            int entry = index.find(e.getKey());
+            assertTrue(entry != CacheIndex.NONE);
+            assertEquals((int) e.getValue(), index.getSize(entry));
+        }
+        assertEquals(expected.size(), idsInOrder(index).size());
+    }
+
+    @Test public void clearEmptiesIndex() {
+        CacheIndex index = new CacheIndex();
+        for (long id = 0; id < 100; id++) {
+            index.put(id, 1, 0L, 0L, 0);
+        }
+        index.clear();
+        assertEquals(0, index.size());
+        assertEquals(CacheIndex.NONE, index.find(5L));
+        assertEquals(CacheIndex.NONE, index.getEldest());
+    }
+
+    private static List<Long> ids(long... ids) {
+        List<Long> list = new ArrayList<Long>();
+        for (long id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+
+    private static List<Long> idsInOrder(CacheIndex index) {
+        List<Long> list = new ArrayList<Long>();
+        for (int entry = index.getEldest(); entry != CacheIndex.NONE;
+                entry = index.getNewer(entry)) {
+            list.add(index.getId(entry));
+        }
+        return list;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.utils.CacheTestUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Counts the entry files {@link DiskBasedCache#initialize()} opens on a populated cache
+ * directory, replaying the journal and rebuilding it from the headers of every file, and
+ * checks that loading in the background doesn't hold up the first lookup. Timings on larger
+ * caches are printed when run with -D{@value #BENCHMARK_PROPERTY}=true.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DiskBasedCacheColdStartBenchmarkTest {
+
+    private static final String BENCHMARK_PROPERTY = "volley.benchmark";
+
+    private static final int ENTRY_COUNT = 1000;
+    private static final int[] BENCHMARK_ENTRY_COUNTS = { 1000, 10000, 50000 };
+    private static final int MAX_CACHE_BYTES = 100 * 1024 * 1024;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private File mCacheDir;
+    private File mJournal;
+
+    @Before public void setUp() throws Exception {
+        mCacheDir = File.createTempFile("volley", "cache");
+        assertTrue(mCacheDir.delete());
+        mJournal = new File(mCacheDir, DiskBasedCache.JOURNAL_FILE_NAME);
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir, MAX_CACHE_BYTES);
+        cache.initialize();
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            cache.put("http://foo.com/" + i, CacheTestUtils.makeRandomCacheEntry(new byte[256]));
+        }
+    }
+
+    @After public void tearDown() throws Exception {
+        new DiskBasedCache(mCacheDir).clear();
+        mCacheDir.delete();
+    }
+
+    @Test public void journalReplayOpensNoEntryFiles() throws Exception {
+        // Without a journal every file is opened; the scan writes a new journal.
+        assertTrue(mJournal.delete());
+        CountingCache scanned = new CountingCache(new CountDownLatch(0));
+        scanned.initialize();
+        assertEquals(ENTRY_COUNT, scanned.headerReads.get());
+        assertTrue(mJournal.exists());
+
+        CountingCache replayed = new CountingCache(new CountDownLatch(0));
+        replayed.initialize();
+        assertEquals(0, replayed.headerReads.get());
+        assertNotNull(replayed.get("http://foo.com/" + (ENTRY_COUNT - 1)));
+    }
+
+    @Test public void asyncInitializationDoesNotHoldUpFirstLookup() throws Exception {
+        // Worst case: no journal, so every file is scanned.
+        assertTrue(mJournal.delete());
+        CountDownLatch scanGate = new CountDownLatch(1);
+        CountingCache cache = new CountingCache(scanGate);
+        cache.setInitializationMode(DiskBasedCache.InitializationMode.ASYNC_MISS_WHILE_LOADING);
+        cache.initialize();
+        // Answered while the scan is held up reading the first headers.
+        assertNull(cache.get("http://foo.com/missing"));
+        assertFalse(mJournal.exists());
+
+        scanGate.countDown();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!mJournal.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(mJournal.exists());
+        assertEquals(ENTRY_COUNT, cache.headerReads.get());
+    }
+
+    @Test public void coldStartTimings() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir, MAX_CACHE_BYTES);
+        cache.initialize();
+        int populated = ENTRY_COUNT;
+        for (int entryCount : BENCHMARK_ENTRY_COUNTS) {
+            for (; populated < entryCount; populated++) {
+                cache.put("http://foo.com/" + populated,
+                        CacheTestUtils.makeRandomCacheEntry(new byte[256]));
+            }
+
+            // Without a journal every file is opened; the scan writes a new journal.
+            assertTrue(mJournal.delete());
+            long scanUs = timeFirstLookup(DiskBasedCache.InitializationMode.BLOCKING);
+            long replayUs = timeFirstLookup(DiskBasedCache.InitializationMode.BLOCKING);
+            assertTrue(mJournal.delete());
+            long asyncUs =
+                    timeFirstLookup(DiskBasedCache.InitializationMode.ASYNC_MISS_WHILE_LOADING);
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (!mJournal.exists() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            System.out.println(String.format("Cold start with %d entries: scan=%dms, "
+                    + "journal replay=%dms (%d bytes), async scan=%dms to first lookup",
+                    entryCount, TimeUnit.MICROSECONDS.toMillis(scanUs),
+                    TimeUnit.MICROSECONDS.toMillis(replayUs), mJournal.length(),
+                    TimeUnit.MICROSECONDS.toMillis(asyncUs)));
+        }
+    }
+
+    /** Times initializing a cache and looking up a missing entry, as a first request would. */
+    private long timeFirstLookup(DiskBasedCache.InitializationMode mode) {
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir, MAX_CACHE_BYTES);
+        cache.setInitializationMode(mode);
+        long start = System.nanoTime();
+        cache.initialize();
+        assertNull(cache.get("http://foo.com/missing"));
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+    }
+
+    /** Counts the entry headers read from files, each read waiting for a gate to open. */
+    private class CountingCache extends DiskBasedCache {
+        final AtomicInteger headerReads = new AtomicInteger();
+        private final CountDownLatch mGate;
+
+        CountingCache(CountDownLatch gate) {
+            super(mCacheDir, MAX_CACHE_BYTES);
+            mGate = gate;
+        }
+
+        @Override
+        CacheHeader readHeaderFromFile(File file) throws IOException {
+            headerReads.incrementAndGet();
+            try {
+                mGate.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return super.readHeaderFromFile(file);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+import com.android.volley.utils.CacheTestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a read of an entry from a {@link DiskBasedCache} completes while another thread
+ * is in the middle of writing a different entry, unlike with the same cache behind a single
+ * monitor, as it was when all of its methods were synchronized.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DiskBasedCacheContentionBenchmarkTest {
+
+    private static final int MAX_CACHE_BYTES = 100 * 1024 * 1024;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private File mCacheDir;
+    private DiskBasedCache mCache;
+
+    @Before public void setUp() throws Exception {
+        mCacheDir = File.createTempFile("volley", "cache");
+        assertTrue(mCacheDir.delete());
+        mCache = new DiskBasedCache(mCacheDir, MAX_CACHE_BYTES);
+        mCache.initialize();
+        mCache.put("small", CacheTestUtils.makeRandomCacheEntry(new byte[512]));
+    }
+
+    @After public void tearDown() throws Exception {
+        mCache.clear();
+        mCacheDir.delete();
+    }
+
+    @Test public void readsDoNotWaitForPuts() throws Exception {
+        GatedHeaders headers = new GatedHeaders();
+        Thread writer = startPut(mCache, headers);
+        assertTrue(headers.writing.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        Reader reader = new Reader(mCache);
+        reader.start();
+        // Completes while the put is still writing its file.
+        assertTrue(reader.done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertNotNull(reader.entry);
+
+        headers.gate.countDown();
+        writer.join(TIMEOUT_MILLIS);
+        assertNotNull(mCache.get("large"));
+    }
+
+    @Test public void readsWaitForPutsBehindSingleMonitor() throws Exception {
+        Cache serialized = new SerializedCache(mCache);
+        GatedHeaders headers = new GatedHeaders();
+        Thread writer = startPut(serialized, headers);
+        assertTrue(headers.writing.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        Reader reader = new Reader(serialized);
+        reader.start();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (reader.getState() != Thread.State.BLOCKED
+                && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        assertEquals(Thread.State.BLOCKED, reader.getState());
+        assertEquals(1, reader.done.getCount());
+
+        headers.gate.countDown();
+        assertTrue(reader.done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertNotNull(reader.entry);
+        writer.join(TIMEOUT_MILLIS);
+    }
+
+    /** Puts an entry on another thread; it stops writing its file at the gate of headers. */
+    private static Thread startPut(final Cache cache, GatedHeaders headers) {
+        final Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(new byte[512]);
+        entry.responseHeaders = headers;
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                cache.put("large", entry);
+            }
+        };
+        writer.start();
+        return writer;
+    }
+
+    /** Reads the small entry on another thread. */
+    private static class Reader extends Thread {
+        private final Cache mCache;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Cache.Entry entry;
+
+        Reader(Cache cache) {
+            mCache = cache;
+        }
+
+        @Override
+        public void run() {
+            entry = mCache.get("small");
+            done.countDown();
+        }
+    }
+
+    /**
+     * Response headers which hold up the put writing them until the gate opens, so that the
+     * put is in the middle of writing its file.
+     */
+    @SuppressWarnings("serial")
+    private static class GatedHeaders extends HashMap<String, String> {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+
+        @Override
+        public Set<Map.Entry<String, String>> entrySet() {
+            writing.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.entrySet();
+        }
+    }
+
+    /** A cache behind a single monitor. */
+    private static class SerializedCache implements Cache {
+        private final Cache mCache;
+
+        SerializedCache(Cache cache) {
+            mCache = cache;
+        }
+
+        @Override
+        public synchronized Entry get(String key) {
+            return mCache.get(key);
+        }
+
+        @Override
+        public synchronized void put(String key, Entry entry) {
+            mCache.put(key, entry);
+        }
+
+        @Override
+        public synchronized void initialize() {
+            mCache.initialize();
+        }
+
+        @Override
+        public synchronized void invalidate(String key, boolean fullExpire) {
+            mCache.invalidate(key, fullExpire);
+        }
+
+        @Override
+        public synchronized void remove(String key) {
+            mCache.remove(key);
+        }
+
+        @Override
+        public synchronized void clear() {
+            mCache.clear();
+        }
+    }
+}
@@ -18,18 +18,44 @@ package com.android.volley.toolbox;
 
 import com.android.volley.Cache;
 import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+import com.android.volley.utils.CacheTestUtils;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
 
+@RunWith(RobolectricTestRunner.class)
 public class DiskBasedCacheTest {
 
+    private File mCacheDir;
+
+    @Before public void setUp() throws Exception {
+        mCacheDir = File.createTempFile("volley", "cache");
+        assertTrue(mCacheDir.delete());
+    }
+
+    @After public void tearDown() throws Exception {
+        new DiskBasedCache(mCacheDir).clear();
+        mCacheDir.delete();
+    }
+
     // Simple end-to-end serialize/deserialize test.
     @Test public void cacheHeaderSerialization() throws Exception {
         Cache.Entry e = new Cache.Entry();
@@ -125,6 +151,373 @@ public class DiskBasedCacheTest {
         assertEquals(DiskBasedCache.readStringStringMap(bais), emptyValue);
     }
 
+    @Test public void journalIsReplayedWithoutReadingEntryFiles() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir);
+        cache.initialize();
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(new byte[16]);
+        entry.responseHeaders = new HashMap<String, String>();
+        entry.responseHeaders.put("fruit", "banana");
+        cache.put("kept", entry);
+        cache.put("removed", CacheTestUtils.makeRandomCacheEntry(new byte[16]));
+        cache.put("garbled", CacheTestUtils.makeRandomCacheEntry(new byte[16]));
+        cache.remove("removed");
+        // A scan would drop this file for its bad header; the journal doesn't look at it.
+        overwrite(cache.getFileForKey("garbled"), new byte[] { 1, 2, 3 });
+
+        DiskBasedCache restarted = new DiskBasedCache(mCacheDir);
+        restarted.initialize();
+        assertTrue(restarted.getFileForKey("garbled").exists());
+        Cache.Entry read = restarted.get("kept");
+        assertEquals(entry.etag, read.etag);
+        assertEquals(entry.ttl, read.ttl);
+        assertEquals(entry.softTtl, read.softTtl);
+        assertEquals(entry.responseHeaders, read.responseHeaders);
+        assertNull(restarted.get("removed"));
+        // The bad file is only noticed, and dropped, when the entry is read.
+        assertNull(restarted.get("garbled"));
+        assertFalse(restarted.getFileForKey("garbled").exists());
+    }
+
+    @Test public void replayDeletesFilesMissingFromJournal() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir);
+        cache.initialize();
+        cache.put("kept", CacheTestUtils.makeRandomCacheEntry(new byte[16]));
+        // As left by a crash between renaming an entry's file and journaling it, and during
+        // a put.
+        File unjournaled = cache.getFileForKey("unjournaled");
+        overwrite(unjournaled, new byte[] { 1, 2, 3 });
+        File tmp = new File(mCacheDir, cache.getFileForKey("kept").getName() + ".tmp");
+        overwrite(tmp, new byte[] { 1, 2, 3 });
+
+        DiskBasedCache restarted = new DiskBasedCache(mCacheDir);
+        restarted.initialize();
+        assertFalse(unjournaled.exists());
+        assertFalse(tmp.exists());
+        assertNotNull(restarted.get("kept"));
+        assertTrue(new File(mCacheDir, DiskBasedCache.JOURNAL_FILE_NAME).exists());
+    }
+
+    @Test public void missingOrCorruptJournalIsRebuiltFromFiles() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir);
+        cache.initialize();
+        cache.put("first", CacheTestUtils.makeRandomCacheEntry(new byte[16]));
+        cache.put("second", CacheTestUtils.makeRandomCacheEntry(new byte[16]));
+        File journal = new File(mCacheDir, DiskBasedCache.JOURNAL_FILE_NAME);
+
+        assertTrue(journal.delete());
+        DiskBasedCache restarted = new DiskBasedCache(mCacheDir);
+        restarted.initialize();
+        assertTrue(journal.exists());
+        assertNotNull(restarted.get("first"));
+        assertNotNull(restarted.get("second"));
+
+        overwrite(journal, new byte[] { 1, 2, 3, 4, 5 });
+        restarted = new DiskBasedCache(mCacheDir);
+        restarted.initialize();
+        assertNotNull(restarted.get("first"));
+        assertNotNull(restarted.get("second"));
+    }
+
+    @Test public void journalCorruptAfterReplayedRecordsIsRebuiltFromFiles() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir);
+        cache.initialize();
+        // Enough records for some to be replayed into the index before the bad one is read.
+        for (int i = 0; i < 300; i++) {
+            cache.put("key" + i, CacheTestUtils.makeRandomCacheEntry(new byte[16]));
+        }
+        File journal = new File(mCacheDir, DiskBasedCache.JOURNAL_FILE_NAME);
+        FileOutputStream fos = new FileOutputStream(journal, true);
+        try {
+            fos.write(new byte[] { 42, 0, 0 });
+        } finally {
+            fos.close();
+        }
+
+        DiskBasedCache restarted = new DiskBasedCache(mCacheDir);
+        restarted.initialize();
+        for (int i = 0; i < 300; i++) {
+            assertNotNull(restarted.get("key" + i));
+        }
+        restarted = new DiskBasedCache(mCacheDir);
+        restarted.initialize();
+        assertNotNull(restarted.get("key299"));
+    }
+
+    @Test public void changesBeforeInitializeAreNotLost() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir);
+        cache.initialize();
+        cache.put("first", CacheTestUtils.makeRandomCacheEntry(new byte[16]));
+
+        // Not initialized, so this can't be journaled and the journal must not be trusted.
+        DiskBasedCache uninitialized = new DiskBasedCache(mCacheDir);
+        uninitialized.put("second", CacheTestUtils.makeRandomCacheEntry(new byte[16]));
+
+        DiskBasedCache restarted = new DiskBasedCache(mCacheDir);
+        restarted.initialize();
+        assertNotNull(restarted.get("first"));
+        assertNotNull(restarted.get("second"));
+    }
+
+    @Test public void journalIsCompacted() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir);
+        cache.initialize();
+        File journal = new File(mCacheDir, DiskBasedCache.JOURNAL_FILE_NAME);
+        cache.put("key", CacheTestUtils.makeRandomCacheEntry(new byte[16]));
+        long oneEntry = journal.length();
+        for (int i = 0; i < DiskBasedCache.JOURNAL_COMPACT_THRESHOLD; i++) {
+            cache.put("key", CacheTestUtils.makeRandomCacheEntry(new byte[16]));
+        }
+        assertTrue(journal.length() < oneEntry * 10);
+
+        DiskBasedCache restarted = new DiskBasedCache(mCacheDir);
+        restarted.initialize();
+        assertNotNull(restarted.get("key"));
+    }
+
+    @Test public void clearEmptiesJournal() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir);
+        cache.initialize();
+        cache.put("key", CacheTestUtils.makeRandomCacheEntry(new byte[16]));
+        cache.clear();
+        cache.put("other", CacheTestUtils.makeRandomCacheEntry(new byte[16]));
+
+        DiskBasedCache restarted = new DiskBasedCache(mCacheDir);
+        restarted.initialize();
+        assertNull(restarted.get("key"));
+        assertNotNull(restarted.get("other"));
+    }
+
+    @Test public void keysSharingAFileAreNotConfused() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir);
+        cache.initialize();
+        // Both halves of these keys have the same hash codes, and so do their file names.
+        assertEquals(cache.getFileForKey("AaAa"), cache.getFileForKey("BBBB"));
+        cache.put("AaAa", CacheTestUtils.makeRandomCacheEntry(new byte[16]));
+        assertNull(cache.get("BBBB"));
+        assertNotNull(cache.get("AaAa"));
+    }
+
+    @Test public void smallEntryIsReadIntoBuffer() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir);
+        cache.initialize();
+        byte[] data = "small body".getBytes("UTF-8");
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(data);
+        entry.responseHeaders = new HashMap<String, String>();
+        entry.responseHeaders.put("Content-Type", "text/plain");
+        cache.put("small", entry);
+
+        Cache.Entry read = cache.getAsBuffer("small");
+        assertNull(read.data);
+        assertFalse(read.dataBuffer.isDirect());
+        assertTrue(read.dataBuffer.isReadOnly());
+        assertArrayEquals(data, toArray(read.dataBuffer));
+        assertEquals(entry.etag, read.etag);
+        assertEquals(entry.responseHeaders, read.responseHeaders);
+        assertNull(cache.getAsBuffer("missing"));
+    }
+
+    @Test public void largeEntryIsMapped() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir);
+        cache.initialize();
+        byte[] data = new byte[64 * 1024];
+        new Random(42).nextBytes(data);
+        cache.put("large", CacheTestUtils.makeRandomCacheEntry(data));
+
+        Cache.Entry read = cache.getAsBuffer("large");
+        assertTrue(read.dataBuffer.isDirect());
+        assertTrue(read.dataBuffer.isReadOnly());
+        assertArrayEquals(data, toArray(read.dataBuffer));
+    }
+
+    @Test public void mappedEntrySurvivesReplacement() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir);
+        cache.initialize();
+        byte[] data = new byte[64 * 1024];
+        new Random(42).nextBytes(data);
+        cache.put("large", CacheTestUtils.makeRandomCacheEntry(data));
+        Cache.Entry read = cache.getAsBuffer("large");
+
+        byte[] newData = new byte[16];
+        cache.put("large", CacheTestUtils.makeRandomCacheEntry(newData));
+        assertArrayEquals(data, toArray(read.dataBuffer));
+        assertArrayEquals(newData, cache.get("large").data);
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test public void concurrentAccessKeepsEntriesIntact() throws Exception {
+        // Small enough that puts keep pruning.
+        final DiskBasedCache cache = new DiskBasedCache(mCacheDir, 16 * 1024);
+        cache.initialize();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int seed = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random(seed);
+                        for (int j = 0; j < 500; j++) {
+                            int k = random.nextInt(40);
+                            int op = random.nextInt(10);
+                            if (op < 4) {
+                                byte[] data = new byte[1024];
+                                Arrays.fill(data, (byte) k);
+                                cache.put("key" + k, CacheTestUtils.makeRandomCacheEntry(data));
+                            } else if (op == 4) {
+                                cache.remove("key" + k);
+                            } else if (op == 5) {
+                                cache.invalidate("key" + k, random.nextBoolean());
+                            } else {
+                                assertIntact(k, cache.get("key" + k));
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+
+        // The journal agrees with the files.
+        DiskBasedCache restarted = new DiskBasedCache(mCacheDir, 16 * 1024);
+        restarted.initialize();
+        for (int k = 0; k < 40; k++) {
+            Cache.Entry entry = cache.get("key" + k);
+            assertIntact(k, entry);
+            assertEquals(entry != null, restarted.get("key" + k) != null);
+        }
+    }
+
+    private static void assertIntact(int k, Cache.Entry entry) {
+        if (entry != null) {
+            assertEquals(1024, entry.data.length);
+            for (byte b : entry.data) {
+                assertEquals((byte) k, b);
+            }
+        }
+    }
+
+    @Test public void asyncInitializationMissesWhileLoading() throws Exception {
+        populateAndDropJournal("indexed", "slow");
+        BlockingScanCache cache = new BlockingScanCache(mCacheDir, "slow");
+        cache.setInitializationMode(DiskBasedCache.InitializationMode.ASYNC_MISS_WHILE_LOADING);
+        cache.initialize();
+        assertTrue(cache.blocked.await(5, TimeUnit.SECONDS));
+
+        assertNull(cache.get("slow"));
+        cache.put("new", CacheTestUtils.makeRandomCacheEntry(new byte[16]));
+        assertNotNull(cache.get("new"));
+
+        cache.release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.get("slow") == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNotNull(cache.get("slow"));
+        assertNotNull(cache.get("indexed"));
+    }
+
+    @Test public void asyncInitializationWaitsForIndexOnMiss() throws Exception {
+        populateAndDropJournal("indexed", "slow");
+        BlockingScanCache cache = new BlockingScanCache(mCacheDir, "slow");
+        cache.setInitializationMode(DiskBasedCache.InitializationMode.ASYNC_WAIT_WHILE_LOADING);
+        cache.initialize();
+        assertTrue(cache.blocked.await(5, TimeUnit.SECONDS));
+
+        final DiskBasedCache lookupCache = cache;
+        final AtomicReference<Cache.Entry> result = new AtomicReference<Cache.Entry>();
+        final CountDownLatch done = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                result.set(lookupCache.get("slow"));
+                done.countDown();
+            }
+        }.start();
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+
+        cache.release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNotNull(result.get());
+    }
+
+    @Test public void changesWhileLoadingWinOverLoadedIndex() throws Exception {
+        populateAndDropJournal("replaced", "removed");
+        BlockingScanCache cache = new BlockingScanCache(mCacheDir, "removed");
+        cache.setInitializationMode(DiskBasedCache.InitializationMode.ASYNC_MISS_WHILE_LOADING);
+        cache.initialize();
+        assertTrue(cache.blocked.await(5, TimeUnit.SECONDS));
+
+        Cache.Entry replacement = CacheTestUtils.makeRandomCacheEntry(new byte[] { 42 });
+        cache.put("replaced", replacement);
+        cache.remove("removed");
+        cache.release.countDown();
+
+        // Wait for the journal written once loading completes.
+        File journal = new File(mCacheDir, DiskBasedCache.JOURNAL_FILE_NAME);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!journal.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(journal.exists());
+        DiskBasedCache restarted = new DiskBasedCache(mCacheDir);
+        restarted.initialize();
+        assertNull(restarted.get("removed"));
+        assertEquals(replacement.etag, restarted.get("replaced").etag);
+    }
+
+    /** Fills the cache with the given keys and deletes the journal, so that files are scanned. */
+    private void populateAndDropJournal(String... keys) {
+        DiskBasedCache cache = new DiskBasedCache(mCacheDir);
+        cache.initialize();
+        for (String key : keys) {
+            cache.put(key, CacheTestUtils.makeRandomCacheEntry(new byte[16]));
+        }
+        assertTrue(new File(mCacheDir, DiskBasedCache.JOURNAL_FILE_NAME).delete());
+    }
+
+    /** Holds up reading the header of one entry until released. */
+    private static class BlockingScanCache extends DiskBasedCache {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        private final String mBlockedFileName;
+
+        BlockingScanCache(File rootDirectory, String blockedKey) {
+            super(rootDirectory);
+            mBlockedFileName = getFileForKey(blockedKey).getName();
+        }
+
+        @Override
+        CacheHeader readHeaderFromFile(File file) throws IOException {
+            if (file.getName().equals(mBlockedFileName)) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+            }
+            return super.readHeaderFromFile(file);
+        }
+    }
+
+    private static void overwrite(File file, byte[] data) throws Exception {
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(data);
+        fos.close();
+    }
+
     @Test
     public void publicMethods() throws Exception {
         // Catch-all test to find API-breaking changes.
@@ -132,5 +525,8 @@ public class DiskBasedCacheTest {
         assertNotNull(DiskBasedCache.class.getConstructor(File.class));
 
         assertNotNull(DiskBasedCache.class.getMethod("getFileForKey", String.class));
+        assertNotNull(DiskBasedCache.class.getMethod("getAsBuffer", String.class));
+        assertNotNull(DiskBasedCache.class.getMethod("setInitializationMode",
+                DiskBasedCache.InitializationMode.class));
     }
 }
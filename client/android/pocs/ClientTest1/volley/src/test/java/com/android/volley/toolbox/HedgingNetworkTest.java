@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.SystemClock;
+
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.VolleyError;
+import com.android.volley.mock.MockRequest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class HedgingNetworkTest {
+
+    private static final int WARM_UP_REQUESTS = 16;
+
+    @Test public void slowRequestIsHedgedAndLoserAborted() throws Exception {
+        FakeNetwork fake = new FakeNetwork();
+        HedgingNetwork network = new HedgingNetwork(fake, 0.95f, 1f);
+        warmUp(network);
+
+        fake.stallNext();
+        NetworkResponse response = network.performRequest(hedged("http://a.com/users"));
+        // The copy answered, and the stalled exchange was aborted rather than waited for.
+        assertEquals(String.valueOf(WARM_UP_REQUESTS + 2), new String(response.data));
+        assertTrue(fake.aborted.await(5, TimeUnit.SECONDS));
+        assertEquals(WARM_UP_REQUESTS + 2, fake.calls.get());
+    }
+
+    @Test public void hedgesAreCapped() throws Exception {
+        FakeNetwork fake = new FakeNetwork();
+        HedgingNetwork network = new HedgingNetwork(fake, 0.95f, 0f);
+        warmUp(network);
+
+        fake.stallNext();
+        // Nothing aborts the stalled exchange; it gives up by itself.
+        NetworkResponse response = network.performRequest(hedged("http://a.com/users"));
+        assertEquals(String.valueOf(WARM_UP_REQUESTS + 1), new String(response.data));
+        assertEquals(WARM_UP_REQUESTS + 1, fake.calls.get());
+    }
+
+    @Test public void requestsWhichDidNotOptInAreSentAsIs() throws Exception {
+        FakeNetwork fake = new FakeNetwork();
+        HedgingNetwork network = new HedgingNetwork(fake, 0.95f, 1f);
+        warmUp(network);
+
+        MockRequest request = new MockRequest("http://a.com/users", null);
+        network.performRequest(request);
+        assertSame(request, fake.requests.get(fake.requests.size() - 1));
+
+        MockRequest post = new MockRequest("http://a.com/users", null) {
+            @Override
+            public int getMethod() {
+                return Method.POST;
+            }
+        };
+        post.setShouldHedge(true);
+        network.performRequest(post);
+        assertSame(post, fake.requests.get(fake.requests.size() - 1));
+    }
+
+    private static void warmUp(HedgingNetwork network) throws VolleyError {
+        for (int i = 0; i < WARM_UP_REQUESTS; i++) {
+            network.performRequest(hedged("http://a.com/users"));
+        }
+    }
+
+    private static MockRequest hedged(String url) {
+        MockRequest request = new MockRequest(url, null);
+        request.setShouldHedge(true);
+        return request;
+    }
+
+    /**
+     * Answers each request after 10ms of test clock time, with the number of the call as
+     * body, except for a stalled call which only ends when aborted, or after a second.
+     */
+    private static class FakeNetwork implements Network {
+        final AtomicInteger calls = new AtomicInteger();
+        final List<Request<?>> requests =
+                Collections.synchronizedList(new ArrayList<Request<?>>());
+        final CountDownLatch aborted = new CountDownLatch(1);
+        private volatile boolean mStallNext;
+
+        void stallNext() {
+            mStallNext = true;
+        }
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            int call = calls.incrementAndGet();
+            requests.add(request);
+            if (mStallNext) {
+                mStallNext = false;
+                final CountDownLatch release = new CountDownLatch(1);
+                request.setCancelAction(new Runnable() {
+                    @Override
+                    public void run() {
+                        aborted.countDown();
+                        release.countDown();
+                    }
+                });
+                try {
+                    if (release.await(1, TimeUnit.SECONDS)) {
+                        throw new VolleyError("Aborted");
+                    }
+                } catch (InterruptedException e) {
+                    throw new VolleyError(e);
+                } finally {
+                    request.setCancelAction(null);
+                }
+            } else {
+                SystemClock.sleep(10);
+            }
+            return new NetworkResponse(String.valueOf(call).getBytes());
+        }
+    }
+}
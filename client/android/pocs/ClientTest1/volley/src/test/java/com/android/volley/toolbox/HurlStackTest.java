@@ -16,15 +16,34 @@
 
 package com.android.volley.toolbox;
 
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
 import com.android.volley.Request.Method;
+import com.android.volley.VolleyError;
 import com.android.volley.mock.MockHttpURLConnection;
+import com.android.volley.mock.MockRequest;
 import com.android.volley.mock.TestRequest;
+import com.android.volley.utils.LocalHttpServer;
 
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 import static org.junit.Assert.*;
 
 @RunWith(RobolectricTestRunner.class)
@@ -152,4 +171,119 @@ public class HurlStackTest {
         assertEquals("PATCH", mMockConnection.getRequestMethod());
         assertTrue(mMockConnection.getDoOutput());
     }
+
+    @Test public void cancelAbortsDownload() throws Exception {
+        final int bodySize = 1024 * 1024;
+        LocalHttpServer server = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                LocalHttpServer.Response response =
+                        new LocalHttpServer.Response(200, new byte[bodySize]);
+                response.throttleBytes = 16 * 1024;
+                response.throttleDelayMs = 10;
+                return response;
+            }
+        });
+        try {
+            final MockRequest request = new MockRequest(server.url("/large"), null);
+            final CountingStack stack = new CountingStack(new HurlStack());
+            final AtomicReference<Object> outcome = new AtomicReference<Object>();
+            final CountDownLatch done = new CountDownLatch(1);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        outcome.set(new BasicNetwork(stack).performRequest(request));
+                    } catch (VolleyError e) {
+                        outcome.set(e);
+                    }
+                    done.countDown();
+                }
+            }.start();
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (stack.bytesRead.get() < 64 * 1024 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            request.cancel();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+
+            assertTrue(outcome.get() instanceof VolleyError);
+            // At most what was already buffered locally when the connection was closed.
+            assertTrue(stack.bytesReadAfterCancel.get() < 64 * 1024);
+            // Not retried.
+            assertEquals(1, server.getRequestCount());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test public void cancelDisconnectsOffCallingThread() throws Exception {
+        final MockRequest request = new MockRequest("http://foo.com", null);
+        final AtomicReference<Thread> disconnectThread = new AtomicReference<Thread>();
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        HurlStack stack = new HurlStack() {
+            @Override
+            protected HttpURLConnection createConnection(URL url) throws IOException {
+                return new MockHttpURLConnection() {
+                    @Override
+                    public int getResponseCode() throws IOException {
+                        request.cancel();
+                        throw new IOException("Cancelled");
+                    }
+
+                    @Override
+                    public void disconnect() {
+                        disconnectThread.set(Thread.currentThread());
+                        disconnected.countDown();
+                    }
+                };
+            }
+        };
+        try {
+            stack.performRequest(request, Collections.<String, String>emptyMap());
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), disconnectThread.get());
+    }
+
+    /** Counts the response body bytes read through a stack, and those read after a cancel. */
+    private static class CountingStack implements HttpStack {
+        final AtomicLong bytesRead = new AtomicLong();
+        final AtomicLong bytesReadAfterCancel = new AtomicLong();
+        private final HttpStack mStack;
+
+        CountingStack(HttpStack stack) {
+            mStack = stack;
+        }
+
+        @Override
+        public HttpResponse performRequest(final Request<?> request,
+                Map<String, String> additionalHeaders) throws IOException, AuthFailureError {
+            HttpResponse response = mStack.performRequest(request, additionalHeaders);
+            response.setEntity(new HttpEntityWrapper(response.getEntity()) {
+                @Override
+                public InputStream getContent() throws IOException {
+                    return new FilterInputStream(super.getContent()) {
+                        @Override
+                        public int read(byte[] buffer, int offset, int length)
+                                throws IOException {
+                            int count = super.read(buffer, offset, length);
+                            if (count > 0) {
+                                bytesRead.addAndGet(count);
+                                if (request.isCanceled()) {
+                                    bytesReadAfterCancel.addAndGet(count);
+                                }
+                            }
+                            return count;
+                        }
+                    };
+                }
+            });
+            return response;
+        }
+    }
 }
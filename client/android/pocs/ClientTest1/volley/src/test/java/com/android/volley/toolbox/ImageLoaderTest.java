@@ -72,6 +72,23 @@ public class ImageLoaderTest {
         verify(mRequestQueue, times(1)).add(any(Request.class));
     }
 
+    @Test
+    public void containerPrioritySetsHighestOnSharedRequest() throws Exception {
+        when(mImageCache.getBitmap(anyString())).thenReturn(null);
+        ImageLoader.ImageListener listener = mock(ImageLoader.ImageListener.class);
+        ImageLoader.ImageContainer visible = mImageLoader.get("http://foo", listener);
+        ImageLoader.ImageContainer offScreen = mImageLoader.get("http://foo", listener);
+
+        offScreen.setPriority(Request.Priority.LOW);
+        visible.setPriority(Request.Priority.HIGH);
+        verify(mRequestQueue).setPriority(any(Request.class), eq(Request.Priority.HIGH));
+
+        visible.cancelRequest();
+        // ImageRequest's own priority is LOW too; the remaining container's choice is kept.
+        verify(mRequestQueue, times(2)).setPriority(any(Request.class),
+                eq(Request.Priority.LOW));
+    }
+
     @Test
     public void publicMethods() throws Exception {
         // Catch API breaking changes.
@@ -96,6 +113,8 @@ public class ImageLoaderTest {
 
         assertNotNull(ImageLoader.ImageListener.class.getMethod("onResponse",
                 ImageLoader.ImageContainer.class, boolean.class));
+        assertNotNull(ImageLoader.ImageContainer.class.getMethod("setPriority",
+                Request.Priority.class));
     }
 }
 
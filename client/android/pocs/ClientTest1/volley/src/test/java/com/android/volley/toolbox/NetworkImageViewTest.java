@@ -5,6 +5,8 @@ import android.util.AttributeSet;
 import android.view.ViewGroup.LayoutParams;
 import android.widget.ImageView.ScaleType;
 
+import com.android.volley.Request;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -65,5 +67,8 @@ public class NetworkImageViewTest {
         assertNotNull(NetworkImageView.class.getMethod("setImageUrl", String.class, ImageLoader.class));
         assertNotNull(NetworkImageView.class.getMethod("setDefaultImageResId", int.class));
         assertNotNull(NetworkImageView.class.getMethod("setErrorImageResId", int.class));
+        assertNotNull(NetworkImageView.class.getMethod("setOnScreen", boolean.class));
+        assertNotNull(NetworkImageView.class.getMethod("setOnScreenPriorities",
+                Request.Priority.class, Request.Priority.class));
     }
 }
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AsyncNetwork;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.android.volley.mock.MockRequest;
+import com.android.volley.utils.LocalHttpServer;
+
+import org.apache.http.HttpResponse;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class NioHttpStackTest {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private LocalHttpServer mServer;
+
+    @After public void tearDown() throws Exception {
+        if (mServer != null) {
+            mServer.shutdown();
+        }
+    }
+
+    @Test public void getWithContentLength() throws Exception {
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                LocalHttpServer.Response response = new LocalHttpServer.Response(200,
+                        request.method + " " + request.path + " " + request.headers.get("x-in"));
+                response.headers.put("X-Out", "bar");
+                return response;
+            }
+        });
+        MockRequest request = new MockRequest(mServer.url("/path?q=1"), null);
+        NetworkResponse response = new BasicAsyncNetwork(new NioHttpStack())
+                .performRequest(request);
+        assertEquals(200, response.statusCode);
+        assertEquals("GET /path?q=1 null", new String(response.data));
+        assertEquals("bar", response.headers.get("X-Out"));
+    }
+
+    @Test public void postBodyAndHeaders() throws Exception {
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                return new LocalHttpServer.Response(200, request.method + " "
+                        + request.headers.get("x-in") + " " + new String(request.body));
+            }
+        });
+        Request<String> request = new StringRequest(Request.Method.POST, mServer.url("/"),
+                null, null) {
+            @Override
+            public byte[] getBody() {
+                return "payload".getBytes();
+            }
+
+            @Override
+            public Map<String, String> getHeaders() {
+                return Collections.singletonMap("X-In", "foo");
+            }
+        };
+        HttpResponse response = new NioHttpStack().performRequest(request,
+                Collections.<String, String>emptyMap());
+        assertEquals("POST foo payload", readBody(response));
+    }
+
+    @Test public void chunkedAndCloseDelimitedBodies() throws Exception {
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                LocalHttpServer.Response response =
+                        new LocalHttpServer.Response(200, "0123456789abcdef");
+                response.chunked = request.path.equals("/chunked");
+                response.closeDelimited = request.path.equals("/close");
+                return response;
+            }
+        });
+        NioHttpStack stack = new NioHttpStack();
+        assertEquals("0123456789abcdef", readBody(stack.performRequest(
+                new MockRequest(mServer.url("/chunked"), null),
+                Collections.<String, String>emptyMap())));
+        assertEquals("0123456789abcdef", readBody(stack.performRequest(
+                new MockRequest(mServer.url("/close"), null),
+                Collections.<String, String>emptyMap())));
+    }
+
+    @Test public void readTimeout() throws Exception {
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                LocalHttpServer.Response response = new LocalHttpServer.Response(200, "late");
+                response.delayMs = 2000;
+                return response;
+            }
+        });
+        MockRequest request = new MockRequest(mServer.url("/"), null);
+        request.setRetryPolicy(new DefaultRetryPolicy(100, 0, 1f));
+        try {
+            new BasicAsyncNetwork(new NioHttpStack()).performRequest(request);
+            fail();
+        } catch (TimeoutError e) {
+            // expected
+        }
+    }
+
+    @Test public void cancelAbortsExchange() throws Exception {
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                LocalHttpServer.Response response = new LocalHttpServer.Response(200, "late");
+                response.delayMs = 5000;
+                return response;
+            }
+        });
+        MockRequest request = new MockRequest(mServer.url("/"), null);
+        final CountDownLatch failed = new CountDownLatch(1);
+        new BasicAsyncNetwork(new NioHttpStack()).performRequest(request,
+                new AsyncNetwork.OnRequestComplete() {
+                    @Override
+                    public void onSuccess(NetworkResponse networkResponse) {
+                    }
+
+                    @Override
+                    public void onError(VolleyError volleyError) {
+                        failed.countDown();
+                    }
+                });
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mServer.getRequestCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        request.cancel();
+        // Failed long before the response would have arrived, and not retried.
+        assertTrue(failed.await(1000, TimeUnit.MILLISECONDS));
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test public void connectionRefused() throws Exception {
+        mServer = new LocalHttpServer(null);
+        String url = mServer.url("/");
+        mServer.shutdown();
+        try {
+            new NioHttpStack().performRequest(new MockRequest(url, null),
+                    Collections.<String, String>emptyMap());
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test public void manySlowRequestsShareOneSelectorThread() throws Exception {
+        final int requestCount = 50;
+        final long responseDelayMs = 500;
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                LocalHttpServer.Response response = new LocalHttpServer.Response(200, "ok");
+                response.delayMs = responseDelayMs;
+                return response;
+            }
+        });
+        final CountDownLatch done = new CountDownLatch(requestCount);
+        final AtomicInteger successes = new AtomicInteger();
+        BasicAsyncNetwork network = new BasicAsyncNetwork(new NioHttpStack());
+
+        for (int i = 0; i < requestCount; i++) {
+            // Requests are issued from this one thread, which never blocks on them.
+            network.performRequest(new MockRequest(mServer.url("/" + i), null),
+                    new AsyncNetwork.OnRequestComplete() {
+                        @Override
+                        public void onSuccess(NetworkResponse networkResponse) {
+                            successes.incrementAndGet();
+                            done.countDown();
+                        }
+
+                        @Override
+                        public void onError(VolleyError volleyError) {
+                            done.countDown();
+                        }
+                    });
+        }
+        assertTrue(done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        assertEquals(requestCount, successes.get());
+        // All requests were in flight together rather than in waves of dispatcher threads.
+        assertEquals(requestCount, mServer.getMaxOpenConnections());
+    }
+
+    @Test public void negativeOrOversizedLengthsAreRejected() throws Exception {
+        assertMalformed("HTTP/1.1 200 OK\r\nContent-Length: -1\r\n\r\n");
+        assertMalformed("HTTP/1.1 200 OK\r\nContent-Length: 3000000000\r\n\r\n");
+        assertMalformed("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "-1\r\nab\r\n0\r\n\r\n");
+        assertMalformed("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "7fffffff\r\nab\r\n0\r\n\r\n");
+    }
+
+    private static void assertMalformed(String response) throws Exception {
+        NioHttpStack.ResponseReader reader = new NioHttpStack.ResponseReader(Request.Method.GET);
+        byte[] bytes = response.getBytes("ISO-8859-1");
+        reader.append(bytes, bytes.length);
+        try {
+            if (!reader.isComplete()) {
+                reader.onEndOfStream();
+            }
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static String readBody(HttpResponse response) throws Exception {
+        return new String(NetworkUtility.entityToBytes(response.getEntity(),
+                new ByteArrayPool(1024)));
+    }
+}
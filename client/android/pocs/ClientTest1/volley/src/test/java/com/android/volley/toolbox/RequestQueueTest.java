@@ -21,6 +21,8 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
+import java.util.concurrent.Executor;
+
 import static org.junit.Assert.assertNotNull;
 
 @RunWith(RobolectricTestRunner.class)
@@ -31,16 +33,39 @@ public class RequestQueueTest {
         // Catch-all test to find API-breaking changes.
         assertNotNull(RequestQueue.class.getConstructor(Cache.class, Network.class, int.class,
                 ResponseDelivery.class));
+        assertNotNull(RequestQueue.class.getConstructor(Cache.class, Network.class, int.class,
+                int.class, ResponseDelivery.class));
+        assertNotNull(RequestQueue.class.getConstructor(Cache.class, Network.class,
+                Executor.class, Executor.class, ResponseDelivery.class));
         assertNotNull(RequestQueue.class.getConstructor(Cache.class, Network.class, int.class));
         assertNotNull(RequestQueue.class.getConstructor(Cache.class, Network.class));
 
         assertNotNull(RequestQueue.class.getMethod("start"));
         assertNotNull(RequestQueue.class.getMethod("stop"));
+        assertNotNull(RequestQueue.class.getMethod("startLazily"));
         assertNotNull(RequestQueue.class.getMethod("getSequenceNumber"));
         assertNotNull(RequestQueue.class.getMethod("getCache"));
         assertNotNull(RequestQueue.class.getMethod("cancelAll", RequestQueue.RequestFilter.class));
         assertNotNull(RequestQueue.class.getMethod("cancelAll", Object.class));
         assertNotNull(RequestQueue.class.getMethod("add", Request.class));
+        assertNotNull(RequestQueue.class.getMethod("setMaxRequestsPerHost", int.class));
+        assertNotNull(RequestQueue.class.getMethod("setMaxRequestsPerHost", String.class,
+                int.class));
+        assertNotNull(RequestQueue.class.getMethod("getNetworkHostStats"));
+        assertNotNull(RequestQueue.class.getMethod("setReservedNetworkDispatchers", int.class,
+                Request.Priority.class));
+        assertNotNull(RequestQueue.class.getMethod("setAdmissionPolicy",
+                RequestQueue.AdmissionPolicy.class));
+        assertNotNull(RequestQueue.class.getMethod("getAdmissionStats"));
+        assertNotNull(RequestQueue.class.getMethod("setPriority", Request.class,
+                Request.Priority.class));
+        assertNotNull(RequestQueue.class.getMethod("setPriority", Object.class,
+                Request.Priority.class));
+        assertNotNull(RequestQueue.class.getMethod("pause", Object.class));
+        assertNotNull(RequestQueue.class.getMethod("setParsedResponseCacheSize", int.class));
+        assertNotNull(RequestQueue.class.getMethod("setRetryBudget",
+                RequestQueue.RetryBudget.class));
+        assertNotNull(RequestQueue.class.getMethod("resume", Object.class));
         assertNotNull(RequestQueue.class.getDeclaredMethod("finish", Request.class));
     }
 }
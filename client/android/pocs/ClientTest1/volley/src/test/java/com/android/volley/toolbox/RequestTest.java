@@ -49,6 +49,7 @@ public class RequestTest {
         assertNotNull(Request.class.getMethod("getCacheEntry"));
         assertNotNull(Request.class.getMethod("cancel"));
         assertNotNull(Request.class.getMethod("isCanceled"));
+        assertNotNull(Request.class.getMethod("setCancelAction", Runnable.class));
         assertNotNull(Request.class.getMethod("getHeaders"));
         assertNotNull(Request.class.getDeclaredMethod("getParams"));
         assertNotNull(Request.class.getDeclaredMethod("getParamsEncoding"));
@@ -56,11 +57,19 @@ public class RequestTest {
         assertNotNull(Request.class.getMethod("getBody"));
         assertNotNull(Request.class.getMethod("setShouldCache", boolean.class));
         assertNotNull(Request.class.getMethod("shouldCache"));
+        assertNotNull(Request.class.getMethod("setShouldCoalesce", boolean.class));
+        assertNotNull(Request.class.getMethod("shouldCoalesce"));
+        assertNotNull(Request.class.getMethod("setShouldHedge", boolean.class));
+        assertNotNull(Request.class.getMethod("shouldHedge"));
+        assertNotNull(Request.class.getMethod("setResponseSizeEstimate", int.class));
+        assertNotNull(Request.class.getMethod("getResponseSizeEstimate"));
         assertNotNull(Request.class.getMethod("getPriority"));
         assertNotNull(Request.class.getMethod("getTimeoutMs"));
         assertNotNull(Request.class.getMethod("getRetryPolicy"));
+        assertNotNull(Request.class.getMethod("canScheduleRetry"));
         assertNotNull(Request.class.getMethod("markDelivered"));
         assertNotNull(Request.class.getMethod("hasHadResponseDelivered"));
+        assertNotNull(Request.class.getMethod("canParseDataBuffer"));
         assertNotNull(Request.class.getDeclaredMethod("parseNetworkResponse", NetworkResponse.class));
         assertNotNull(Request.class.getDeclaredMethod("parseNetworkError", VolleyError.class));
         assertNotNull(Request.class.getDeclaredMethod("deliverResponse", Object.class));
@@ -16,12 +16,20 @@
 
 package com.android.volley.toolbox;
 
+import com.android.volley.NetworkResponse;
 import com.android.volley.Response;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(RobolectricTestRunner.class)
 public class StringRequestTest {
@@ -34,4 +42,39 @@ public class StringRequestTest {
         assertNotNull(StringRequest.class.getConstructor(int.class, String.class,
                 Response.Listener.class, Response.ErrorListener.class));
     }
+
+    @Test
+    public void parsesDataBuffer() throws Exception {
+        StringRequest request = new StringRequest("http://foo.com", null, null);
+        assertTrue(request.canParseDataBuffer());
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Type", "text/plain; charset=UTF-8");
+        ByteBuffer body = ByteBuffer.wrap("h\u00e9llo".getBytes("UTF-8")).asReadOnlyBuffer();
+
+        Response<String> response = request.parseNetworkResponse(new NetworkResponse(body, headers));
+        assertEquals("h\u00e9llo", response.result);
+        // The buffer is left as it was, for the next reader.
+        assertEquals(6, body.remaining());
+    }
+
+    @Test
+    public void subclassesDoNotParseDataBufferByDefault() throws Exception {
+        StringRequest subclass = new StringRequest("http://foo.com", null, null) {
+            @Override
+            protected Response<String> parseNetworkResponse(NetworkResponse response) {
+                return Response.success(new String(response.data), null);
+            }
+        };
+        assertFalse(subclass.canParseDataBuffer());
+    }
+
+    @Test
+    public void sharesParsedResponsesWithSameClassOnly() throws Exception {
+        StringRequest request = new StringRequest("http://foo.com", null, null);
+        StringRequest subclass = new StringRequest("http://foo.com", null, null) {};
+        assertEquals(request.getParsedResponseKey(),
+                new StringRequest("http://bar.com", null, null).getParsedResponseKey());
+        assertNotNull(subclass.getParsedResponseKey());
+        assertFalse(request.getParsedResponseKey().equals(subclass.getParsedResponseKey()));
+    }
 }
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal HTTP/1.1 server on the loopback interface, serving one request per connection on
+ * a thread of its own.
+ */
+public class LocalHttpServer {
+
+    /** Produces the response to a request. */
+    public interface Handler {
+        public Response handle(Request request) throws Exception;
+    }
+
+    /** A request received by the server. */
+    public static class Request {
+        public final String method;
+        public final String path;
+        /** Header names are lower case. */
+        public final Map<String, String> headers;
+        public final byte[] body;
+
+        Request(String method, String path, Map<String, String> headers, byte[] body) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    /** A response to send. */
+    public static class Response {
+        public final int statusCode;
+        public final Map<String, String> headers = new LinkedHashMap<String, String>();
+        public final byte[] body;
+        /** Whether to send the body with chunked transfer coding. */
+        public boolean chunked;
+        /** Whether to omit Content-Length and delimit the body by closing the connection. */
+        public boolean closeDelimited;
+        /** How long to wait before sending the response. */
+        public long delayMs;
+        /** If positive, send the body in pieces of this many bytes, pausing in between. */
+        public int throttleBytes;
+        /** How long to pause between pieces of a throttled body. */
+        public long throttleDelayMs;
+
+        public Response(int statusCode, byte[] body) {
+            this.statusCode = statusCode;
+            this.body = body;
+        }
+
+        public Response(int statusCode, String body) {
+            this(statusCode, body.getBytes());
+        }
+    }
+
+    private final ServerSocket mServerSocket;
+    private final Handler mHandler;
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mOpenConnections = new AtomicInteger();
+    private final AtomicInteger mMaxOpenConnections = new AtomicInteger();
+    private volatile boolean mShutdown;
+
+    public LocalHttpServer(Handler handler) throws IOException {
+        mHandler = handler;
+        mServerSocket = new ServerSocket(0, 1000, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "LocalHttpServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /** Returns the URL of the given path on this server. */
+    public String url(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /** Returns the largest number of connections which were open at the same time. */
+    public int getMaxOpenConnections() {
+        return mMaxOpenConnections.get();
+    }
+
+    public void shutdown() throws IOException {
+        mShutdown = true;
+        mServerSocket.close();
+    }
+
+    private void acceptConnections() {
+        while (!mShutdown) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Thread connection = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "LocalHttpServer-connection");
+            connection.setDaemon(true);
+            connection.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        int open = mOpenConnections.incrementAndGet();
+        while (true) {
+            int max = mMaxOpenConnections.get();
+            if (open <= max || mMaxOpenConnections.compareAndSet(max, open)) {
+                break;
+            }
+        }
+        try {
+            Request request = readRequest(socket.getInputStream());
+            mRequestCount.incrementAndGet();
+            Response response = mHandler.handle(request);
+            if (response.delayMs > 0) {
+                Thread.sleep(response.delayMs);
+            }
+            writeResponse(socket.getOutputStream(), request, response);
+        } catch (Exception e) {
+            // The client went away, or the handler failed; either way just drop the connection.
+        } finally {
+            mOpenConnections.decrementAndGet();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    private static Request readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        String[] parts = requestLine.split(" ");
+        Map<String, String> headers = new HashMap<String, String>();
+        String line;
+        while ((line = readLine(in)).length() > 0) {
+            int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).trim().toLowerCase(),
+                    line.substring(colon + 1).trim());
+        }
+        byte[] body = new byte[0];
+        if (headers.containsKey("content-length")) {
+            body = new byte[Integer.parseInt(headers.get("content-length"))];
+            int read = 0;
+            while (read < body.length) {
+                int count = in.read(body, read, body.length - read);
+                if (count < 0) {
+                    throw new IOException("Truncated request body");
+                }
+                read += count;
+            }
+        }
+        return new Request(parts[0], parts[1], headers, body);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        return line.toString("ISO-8859-1");
+    }
+
+    private static void writeResponse(OutputStream out, Request request, Response response)
+            throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.statusCode).append(" Status\r\n");
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        boolean hasBody = !"HEAD".equals(request.method) && response.statusCode != 204
+                && response.statusCode != 304;
+        if (hasBody && response.chunked) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        } else if (hasBody && !response.closeDelimited) {
+            head.append("Content-Length: ").append(response.body.length).append("\r\n");
+        }
+        head.append("Connection: close\r\n\r\n");
+        out.write(head.toString().getBytes("ISO-8859-1"));
+        if (hasBody && response.chunked) {
+            // Split the body in two chunks, flushing in between to exercise partial reads.
+            int half = response.body.length / 2;
+            writeChunk(out, response.body, 0, half);
+            out.flush();
+            writeChunk(out, response.body, half, response.body.length - half);
+            out.write("0\r\n\r\n".getBytes("ISO-8859-1"));
+        } else if (hasBody && response.throttleBytes > 0) {
+            for (int offset = 0; offset < response.body.length;
+                    offset += response.throttleBytes) {
+                out.write(response.body, offset,
+                        Math.min(response.throttleBytes, response.body.length - offset));
+                out.flush();
+                try {
+                    Thread.sleep(response.throttleDelayMs);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        } else if (hasBody) {
+            out.write(response.body);
+        }
+        out.flush();
+    }
+
+    private static void writeChunk(OutputStream out, byte[] data, int offset, int length)
+            throws IOException {
+        if (length == 0) {
+            return;
+        }
+        out.write((Integer.toHexString(length) + "\r\n").getBytes("ISO-8859-1"));
+        out.write(data, offset, length);
+        out.write("\r\n".getBytes("ISO-8859-1"));
+    }
+}